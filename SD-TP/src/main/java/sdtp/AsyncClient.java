@@ -0,0 +1,367 @@
+package sdtp;
+
+/**
+ * Cliente reutilizável que mantém uma sessão com o servidor apesar das quedas de conexão.
+ * O envio é assíncrono: send coloca o comando na fila de saída da conexão (ver DistributedClient), que junta
+ * os comandos pendentes em cada escrita, e nunca espera pelas respostas, pelo que vários pedidos seguem em pipeline.
+ * Quando a conexão cai, o cliente volta a ligar-se ao mesmo servidor ou ao seguinte da lista, com esperas
+ * crescentes (backoff exponencial com jitter), e retoma a sessão com o token recebido no login, indicando quantas
+ * linhas recebeu desde a linha com o token: o servidor reenvia apenas as que faltam, a partir da memória.
+ * Se o token for recusado (sessão expirada, ou outro servidor), envia a senha, pede as mensagens perdidas
+ * ao histórico e os comandos enviados enquanto estava desligado, sem esperar por nenhuma resposta pelo meio.
+ * Para saber a partir de onde retomar o histórico, o cliente pede periodicamente o cursor atual (comando "cursor")
+ * e retoma a partir do penúltimo cursor recebido, que já inclui todas as difusões em curso quando foi pedido.
+ * As mensagens recebidas entre esse cursor e a queda podem assim ser entregues duas vezes, mas nenhuma é perdida.
+ * Os comandos já entregues a uma conexão que cai não são reenviados, porque o servidor pode já os ter executado.
+ */
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.regex.*;
+
+class AsyncClient {
+    private static final Pattern CHECKPOINT = Pattern.compile("^Cursor atual: (\\d+)$");
+    private static final Pattern SESSION = Pattern.compile("^Token de sess\\S*: ([0-9a-f]+)$");
+    private static final Pattern PAGE_END = Pattern.compile("cursor: (\\d+) \\((h|fim)");
+    // Número de mensagens pedidas em cada página ao retomar o histórico (o máximo aceite pelo servidor)
+    private static final int RESUME_PAGE = 500;
+    private static final long CHECKPOINT_INTERVAL_MS = 1000;
+    private static final long INITIAL_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 5000;
+    // Comandos guardados enquanto não há conexão; acima disto, send falha
+    private static final int MAX_PENDING = 10_000;
+
+    private final List<InetSocketAddress> servers;
+    private final boolean binary;
+    private final String clientId;
+    private final String password;
+    private final Consumer<String> listener;
+    private final ScheduledExecutorService timer;
+    // Comandos à espera de uma conexão, protegidos pelo lock deste objeto
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    private DistributedClient current;
+    private int server;
+    private volatile boolean closing;
+    // Cursores do histórico recebidos nas duas últimas respostas ao comando "cursor"
+    private volatile int lastCheckpoint = -1;
+    private volatile int resumeCursor = -1;
+    private volatile boolean receivedSinceCheckpoint;
+    private volatile boolean resuming;
+    // Token da sessão e número de linhas recebidas desde a linha que o trouxe, contadas até a conexão cair
+    private volatile String token;
+    private volatile long received;
+    private volatile boolean counting;
+    // Conexão à espera da resposta ao pedido de retoma da sessão
+    private volatile DistributedClient attaching;
+
+    /**
+     * Um comando enviado enquanto não havia conexão.
+     */
+    private static final class Pending {
+        final String command;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Pending(String command) {
+            this.command = command;
+        }
+    }
+
+    /**
+     * Construtor da classe AsyncClient.
+     *
+     * @param servers Servidores a usar, por ordem (ex.: primário e standby)
+     * @param binary Se verdadeiro, usa o protocolo binário
+     * @param clientId ID do utilizador
+     * @param password Senha do utilizador, reenviada em cada nova conexão
+     * @param listener Recebe cada linha enviada pelo servidor, incluindo as mensagens recuperadas depois de uma queda
+     */
+    AsyncClient(List<InetSocketAddress> servers, boolean binary, String clientId, String password, Consumer<String> listener) {
+        this.servers = new ArrayList<>(servers);
+        this.binary = binary;
+        this.clientId = clientId;
+        this.password = password;
+        this.listener = listener;
+        this.timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "async-client-" + clientId);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Inicia a primeira conexão, em segundo plano. Os comandos enviados até lá ficam em fila.
+     */
+    void start() {
+        timer.execute(() -> reconnect(0));
+        timer.scheduleWithFixedDelay(this::checkpoint, CHECKPOINT_INTERVAL_MS, CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Envia um comando sem esperar pela resposta do servidor.
+     * O comando "sair" termina a sessão: depois dele, o cliente não volta a ligar-se.
+     *
+     * @param command Comando, no formato do protocolo de texto
+     * @return Future concluído quando o comando é entregue a uma conexão autenticada, ou com erro se o cliente
+     *         estiver fechado ou tiver demasiados comandos à espera de conexão
+     */
+    synchronized CompletableFuture<Void> send(String command) {
+        if (closing) {
+            return CompletableFuture.failedFuture(new IOException("Cliente fechado"));
+        }
+        closing = "sair".equals(command);
+        if (current != null && pending.isEmpty()) {
+            try {
+                current.send(command);
+                return CompletableFuture.completedFuture(null);
+            } catch (IOException e) {
+                // A conexão caiu antes de a leitura o detetar; o comando segue na próxima conexão
+            }
+        }
+        if (pending.size() >= MAX_PENDING) {
+            return CompletableFuture.failedFuture(new IOException("Demasiados comandos à espera de conexão"));
+        }
+        Pending entry = new Pending(command);
+        pending.add(entry);
+        return entry.future;
+    }
+
+    /**
+     * Obtém o cursor do histórico a partir do qual a sessão seria retomada se a conexão caísse agora.
+     *
+     * @return Cursor, ou -1 se ainda não houver nenhum
+     */
+    int resumeCursor() {
+        return resumeCursor;
+    }
+
+    /**
+     * Fecha a sessão: não volta a ligar-se e falha os comandos ainda à espera de conexão.
+     */
+    void close() {
+        DistributedClient client;
+        synchronized (this) {
+            closing = true;
+            client = current;
+            current = null;
+            for (Pending entry : pending) {
+                entry.future.completeExceptionally(new IOException("Cliente fechado"));
+            }
+            pending.clear();
+        }
+        timer.shutdownNow();
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    /**
+     * Tenta ligar-se aos servidores, por ordem, até conseguir. Corre na thread do timer.
+     * Em caso de falha, agenda uma nova tentativa com o dobro da espera anterior (com jitter), até ao máximo.
+     *
+     * @param attempt Número de tentativas falhadas desde a última conexão
+     */
+    private void reconnect(int attempt) {
+        synchronized (this) {
+            // Um "sair" ainda por enviar também precisa de uma conexão
+            if (closing && pending.isEmpty()) {
+                return;
+            }
+        }
+        InetSocketAddress address = servers.get(server);
+        try {
+            DistributedClient client = new DistributedClient(address.getHostString(), address.getPort(), binary,
+                    clientId, this::onLine);
+            // A thread de leitura não é daemon: mantém o processo vivo enquanto a sessão está aberta
+            client.listen(task -> new Thread(task, "async-client-reader-" + clientId).start(), () -> onDisconnect(client));
+            resume(client);
+            if (attempt > 0) {
+                listener.accept("Ligado a " + address.getHostString() + ":" + address.getPort());
+            }
+        } catch (IOException e) {
+            server = (server + 1) % servers.size();
+            long backoff = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(attempt, 16));
+            long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+            if (attempt == 0 || backoff == MAX_BACKOFF_MS) {
+                listener.accept("Servidor " + address.getHostString() + ":" + address.getPort()
+                        + " indisponível; nova tentativa em " + delay + "ms");
+            }
+            timer.schedule(() -> reconnect(attempt + 1), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Retoma a sessão na nova conexão com o token, se houver um; a resposta é tratada em onLine.
+     * Os comandos em fila só são enviados depois dessa resposta, porque se o token for recusado
+     * a linha seguinte é lida como senha.
+     *
+     * @param client Conexão acabada de abrir
+     * @throws IOException Se a conexão cair entretanto
+     */
+    private void resume(DistributedClient client) throws IOException {
+        String previous = token;
+        if (previous == null) {
+            authenticate(client);
+            return;
+        }
+        attaching = client;
+        client.login("retomar:" + previous + ":" + received);
+    }
+
+    /**
+     * Autentica a nova conexão com a senha e envia, em pipeline, o pedido das mensagens perdidas, o pedido de cursor
+     * e os comandos em fila.
+     *
+     * @param client Conexão acabada de abrir
+     * @throws IOException Se a conexão cair entretanto
+     */
+    private void authenticate(DistributedClient client) throws IOException {
+        client.login(password);
+        int cursor = resumeCursor;
+        if (cursor >= 0) {
+            resuming = true;
+            client.send("ler mensagens desde:" + cursor + ":" + RESUME_PAGE);
+        }
+        client.send("cursor");
+        attach(client);
+    }
+
+    /**
+     * Envia os comandos em fila e passa a usar a conexão diretamente em send.
+     *
+     * @param client Conexão autenticada
+     * @throws IOException Se a conexão cair entretanto
+     */
+    private void attach(DistributedClient client) throws IOException {
+        synchronized (this) {
+            if (closing && pending.isEmpty()) {
+                client.close();
+                return;
+            }
+            Pending entry;
+            while ((entry = pending.poll()) != null) {
+                client.send(entry.command);
+                entry.future.complete(null);
+            }
+            current = client;
+        }
+    }
+
+    /**
+     * Chamado pela thread de leitura quando a conexão cai sem ter sido fechada por este cliente.
+     *
+     * @param client Conexão que caiu
+     */
+    private void onDisconnect(DistributedClient client) {
+        // As linhas da próxima conexão só contam depois de o servidor enviar o token
+        counting = false;
+        synchronized (this) {
+            if (current == client) {
+                current = null;
+            }
+        }
+        if (!closing) {
+            listener.accept("Conexão perdida; a retomar a sessão...");
+            timer.execute(() -> reconnect(1));
+        }
+    }
+
+    /**
+     * Pede o cursor atual do histórico, se tiverem chegado mensagens desde o último pedido.
+     */
+    private void checkpoint() {
+        if (!receivedSinceCheckpoint) {
+            return;
+        }
+        receivedSinceCheckpoint = false;
+        DistributedClient client;
+        synchronized (this) {
+            client = current;
+        }
+        if (client != null) {
+            try {
+                client.send("cursor");
+            } catch (IOException e) {
+                // A conexão caiu; a leitura trata de voltar a ligar
+            }
+        }
+    }
+
+    /**
+     * Trata cada linha recebida: a linha com o token e as respostas aos pedidos de cursor feitos por este cliente
+     * não chegam ao listener, e as páginas do histórico pedidas ao retomar são pedidas umas atrás das outras até ao fim.
+     *
+     * @param line Linha recebida
+     */
+    private void onLine(String line) {
+        Matcher session = SESSION.matcher(line);
+        if (session.matches()) {
+            token = session.group(1);
+            received = 0;
+            counting = true;
+            DistributedClient client = attaching;
+            if (client != null) {
+                attaching = null;
+                try {
+                    attach(client);
+                } catch (IOException e) {
+                    // A conexão caiu; a leitura trata de voltar a ligar
+                }
+            }
+            return;
+        }
+        if (counting) {
+            received++;
+        }
+        DistributedClient attempt = attaching;
+        if (attempt != null && line.contains("ou expirada")) {
+            attaching = null;
+            token = null;
+            try {
+                authenticate(attempt);
+            } catch (IOException e) {
+                // A conexão caiu; a leitura trata de voltar a ligar
+            }
+        }
+        Matcher checkpoint = CHECKPOINT.matcher(line);
+        if (checkpoint.matches()) {
+            int previous = lastCheckpoint;
+            lastCheckpoint = Integer.parseInt(checkpoint.group(1));
+            if (resumeCursor < 0) {
+                // Primeira resposta da sessão: as mensagens anteriores já não interessam
+                resumeCursor = lastCheckpoint;
+            } else if (!resuming) {
+                // Enquanto se recuperam mensagens perdidas, o cursor de retoma fica onde estava
+                resumeCursor = previous;
+            }
+            return;
+        }
+        receivedSinceCheckpoint = true;
+        if (line.contains("falhou. Conex")) {
+            // Senha recusada: voltar a ligar só repetiria a recusa
+            closing = true;
+        }
+        if (resuming) {
+            Matcher end = PAGE_END.matcher(line);
+            if (end.find()) {
+                if ("h".equals(end.group(2))) {
+                    DistributedClient client;
+                    synchronized (this) {
+                        client = current;
+                    }
+                    if (client != null) {
+                        try {
+                            client.send("ler mensagens desde:" + end.group(1) + ":" + RESUME_PAGE);
+                        } catch (IOException e) {
+                            // A conexão caiu; a próxima retoma volta a pedir a partir do mesmo cursor
+                        }
+                    }
+                } else {
+                    resuming = false;
+                }
+            }
+        }
+        listener.accept(line);
+    }
+}
@@ -0,0 +1,279 @@
+package sdtp;
+
+/**
+ * Classe que define o protocolo binário, alternativo ao protocolo de texto.
+ * Uma conexão binária começa com um cumprimento de 4 bytes (0x00, 'S', 'D', versão); o servidor responde com
+ * o mesmo cumprimento e a versão aceite, a menor entre a do cliente e a sua. Depois disso, cada mensagem é uma trama
+ * [comprimento:int][código:byte][campos], em que cada campo de texto é [comprimento:int][bytes UTF-8].
+ * Como os campos têm comprimento explícito, o texto das mensagens pode conter ':' ou quebras de linha.
+ * Nenhum comando de texto começa pelo byte 0x00, pelo que o servidor distingue os dois protocolos pelo primeiro byte.
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.*;
+
+class BinaryProtocol {
+    static final byte MAGIC = 0;
+    static final int VERSION = 1;
+    static final int HELLO_LENGTH = 4;
+    static final int MAX_FRAME_LENGTH = 256 * 1024;
+
+    // Tramas enviadas pelo cliente
+    static final byte LOGIN = 1;
+    static final byte DIRECT_MESSAGE = 2;
+    static final byte CHANNEL_MESSAGE = 3;
+    static final byte JOIN_CHANNEL = 4;
+    static final byte LEAVE_CHANNEL = 5;
+    static final byte REQUEST = 6;
+    static final byte APPROVE = 7;
+    static final byte EMERGENCY = 8;
+    // Qualquer outro comando, no formato do protocolo de texto (ex.: "ajuda", "ler mensagens")
+    static final byte COMMAND = 9;
+    // Tramas enviadas pelo servidor: uma linha de texto para o utilizador
+    static final byte TEXT = 64;
+
+    /**
+     * Uma trama recebida: o código da operação e os respetivos campos.
+     */
+    static final class Frame {
+        final byte opcode;
+        final String[] fields;
+
+        Frame(byte opcode, String[] fields) {
+            this.opcode = opcode;
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * Cria o cumprimento que abre uma conexão binária.
+     *
+     * @param version Versão do protocolo proposta (cliente) ou aceite (servidor)
+     * @return Bytes do cumprimento
+     */
+    static byte[] hello(int version) {
+        return new byte[] {MAGIC, 'S', 'D', (byte) version};
+    }
+
+    /**
+     * Lê o cumprimento de um buffer, que deve ter pelo menos HELLO_LENGTH bytes disponíveis.
+     *
+     * @param buffer Buffer posicionado no início do cumprimento
+     * @return Versão a usar na conexão, ou -1 se o cumprimento for inválido ou a versão não for suportada
+     */
+    static int readHello(ByteBuffer buffer) {
+        byte magic = buffer.get();
+        byte s = buffer.get();
+        byte d = buffer.get();
+        int version = Math.min(buffer.get() & 0xff, VERSION);
+        if (magic != MAGIC || s != 'S' || d != 'D' || version < 1) {
+            return -1;
+        }
+        return version;
+    }
+
+    /**
+     * Lê o cumprimento de um stream bloqueante.
+     *
+     * @param in Stream da conexão
+     * @return Versão a usar na conexão, ou -1 se o cumprimento for inválido ou a versão não for suportada
+     * @throws IOException Se ocorrer um erro ao ler ou a conexão terminar
+     */
+    static int readHello(DataInputStream in) throws IOException {
+        byte[] hello = new byte[HELLO_LENGTH];
+        in.readFully(hello);
+        return readHello(ByteBuffer.wrap(hello));
+    }
+
+    /**
+     * Codifica uma trama.
+     *
+     * @param opcode Código da operação
+     * @param fields Campos da trama
+     * @return Bytes da trama, incluindo o comprimento
+     */
+    static byte[] encode(byte opcode, String... fields) {
+        byte[][] encoded = new byte[fields.length][];
+        int length = 1;
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            length += 4 + encoded[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length).put(opcode);
+        for (byte[] field : encoded) {
+            buffer.putInt(field.length).put(field);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Codifica uma trama com um único campo já em UTF-8.
+     *
+     * @param opcode Código da operação
+     * @param field Bytes do campo
+     * @param length Número de bytes do campo a usar
+     * @return Bytes da trama, incluindo o comprimento
+     */
+    static byte[] encode(byte opcode, byte[] field, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + 4 + length);
+        buffer.putInt(1 + 4 + length).put(opcode).putInt(length).put(field, 0, length);
+        return buffer.array();
+    }
+
+    /**
+     * Descodifica a próxima trama de um buffer com suporte em array, se já tiver chegado completa.
+     * Se a trama estiver incompleta, a posição do buffer não é alterada.
+     *
+     * @param buffer Buffer posicionado no início de uma trama
+     * @return Trama descodificada, ou null se ainda faltarem bytes
+     * @throws ProtocolException Se a trama for inválida
+     */
+    static Frame decode(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int length = checkLength(buffer.getInt(buffer.position()));
+        if (buffer.remaining() < 4 + length) {
+            return null;
+        }
+        buffer.position(buffer.position() + 4);
+        return decodeBody(buffer, buffer.position() + length);
+    }
+
+    /**
+     * Lê a próxima trama de um stream bloqueante.
+     *
+     * @param in Stream da conexão
+     * @return Trama lida, ou null se a conexão terminou entre tramas
+     * @throws IOException Se ocorrer um erro ao ler ou a trama for inválida
+     */
+    static Frame read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = checkLength(in.readInt());
+        } catch (EOFException e) {
+            return null;
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return decodeBody(ByteBuffer.wrap(body), length);
+    }
+
+    /**
+     * Converte um comando no formato do protocolo de texto na trama binária correspondente.
+     * Os comandos sem operação própria são enviados numa trama COMMAND. Além dos comandos de texto,
+     * aceita "aprovar:<cliente>:<tipo>", que aprova diretamente um pedido pendente.
+     *
+     * @param line Comando escrito pelo utilizador
+     * @return Bytes da trama
+     */
+    static byte[] encodeCommand(String line) {
+        String[] parts;
+        if (line.startsWith("mensagem:") && (parts = line.split(":", 3)).length == 3) {
+            return encode(DIRECT_MESSAGE, parts[1], parts[2]);
+        } else if (line.startsWith("canal:") && (parts = line.split(":", 3)).length == 3) {
+            return encode(CHANNEL_MESSAGE, parts[1], parts[2]);
+        } else if (line.startsWith("entrar canal:")) {
+            return encode(JOIN_CHANNEL, line.substring("entrar canal:".length()));
+        } else if (line.startsWith("sair canal:")) {
+            return encode(LEAVE_CHANNEL, line.substring("sair canal:".length()));
+        } else if (line.startsWith("solicitar:")) {
+            return encode(REQUEST, line.substring("solicitar:".length()));
+        } else if (line.startsWith("aprovar:") && (parts = line.split(":", 3)).length == 3) {
+            return encode(APPROVE, parts[1], parts[2]);
+        } else if (line.startsWith("mensagem emergencia:")) {
+            return encode(EMERGENCY, line.substring("mensagem emergencia:".length()));
+        }
+        return encode(COMMAND, line);
+    }
+
+    /**
+     * Obtém o nome do comando de texto equivalente a uma trama, usado nas métricas do servidor.
+     *
+     * @param opcode Código da operação
+     * @return Nome do comando
+     */
+    static String commandName(byte opcode) {
+        switch (opcode) {
+            case DIRECT_MESSAGE:
+                return "mensagem";
+            case CHANNEL_MESSAGE:
+                return "canal";
+            case JOIN_CHANNEL:
+                return "entrar canal";
+            case LEAVE_CHANNEL:
+                return "sair canal";
+            case REQUEST:
+                return "solicitar";
+            case APPROVE:
+                return "aprovar";
+            case EMERGENCY:
+                return "mensagem emergencia";
+            default:
+                return "desconhecido";
+        }
+    }
+
+    /**
+     * Obtém o número de campos de cada tipo de trama.
+     *
+     * @param opcode Código da operação
+     * @return Número de campos
+     * @throws ProtocolException Se o código for desconhecido
+     */
+    private static int fieldCount(byte opcode) throws ProtocolException {
+        switch (opcode) {
+            case LOGIN:
+            case DIRECT_MESSAGE:
+            case CHANNEL_MESSAGE:
+            case APPROVE:
+                return 2;
+            case JOIN_CHANNEL:
+            case LEAVE_CHANNEL:
+            case REQUEST:
+            case EMERGENCY:
+            case COMMAND:
+            case TEXT:
+                return 1;
+            default:
+                throw new ProtocolException("Código de operação desconhecido: " + opcode);
+        }
+    }
+
+    private static int checkLength(int length) throws ProtocolException {
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Comprimento de trama inválido: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Descodifica o corpo de uma trama, lendo os campos diretamente do array do buffer.
+     *
+     * @param buffer Buffer posicionado no código da operação
+     * @param end Posição a seguir ao fim da trama
+     * @return Trama descodificada
+     * @throws ProtocolException Se os campos não corresponderem ao comprimento da trama
+     */
+    private static Frame decodeBody(ByteBuffer buffer, int end) throws ProtocolException {
+        byte opcode = buffer.get();
+        String[] fields = new String[fieldCount(opcode)];
+        for (int i = 0; i < fields.length; i++) {
+            if (end - buffer.position() < 4) {
+                throw new ProtocolException("Trama truncada");
+            }
+            int length = buffer.getInt();
+            if (length < 0 || length > end - buffer.position()) {
+                throw new ProtocolException("Campo com comprimento inválido: " + length);
+            }
+            fields[i] = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        }
+        if (buffer.position() != end) {
+            throw new ProtocolException("Trama com dados a mais");
+        }
+        return new Frame(opcode, fields);
+    }
+}
@@ -0,0 +1,505 @@
+package sdtp;
+
+/**
+ * Classe que reparte os canais pelos nós do cluster com hashing consistente sobre os IDs dos canais.
+ * O dono de um canal ordena as suas mensagens, regista-as no seu histórico e envia-as uma vez a cada outro nó,
+ * que as entrega apenas aos membros ligados a ele; os outros nós não registam as mensagens do canal.
+ * As mensagens enviadas noutro nó são encaminhadas para o dono, e a leitura do histórico do canal é pedida ao dono.
+ * Os membros de cada canal são conhecidos por todos os nós (para entregarem aos seus clientes), mas o conjunto
+ * do dono é o de referência: é o que segue com o canal quando este muda de dono.
+ * Quando a vista do cluster muda, só os canais cujo dono muda são passados: o antigo dono envia os membros e o
+ * histórico que registou enquanto dono, e o novo dono guarda as mensagens que entretanto recebe para o canal,
+ * aplicando-as pela ordem depois de receber o histórico (ou se o antigo dono sair do cluster a meio da passagem).
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+
+class ChannelOwnership {
+    // Número de linhas do histórico por trama, na passagem de um canal
+    private static final int HANDOFF_CHUNK = 256;
+    // Tempo máximo à espera do histórico do antigo dono; depois disso, as mensagens guardadas são aplicadas
+    private static final long HANDOFF_TIMEOUT_MS = 5000;
+    private static final long HISTORY_TIMEOUT_MS = 2000;
+    // Ao arrancar, espera-se este tempo pela vista do cluster antes de repartir os canais, para que a descoberta
+    // dos outros nós não seja tratada como uma mudança de vista
+    private static final long STARTUP_GRACE_MS = 2000;
+
+    // Anel dos nós da vista atual; null fora de um cluster e durante o arranque, em que todos os canais são locais
+    private static volatile HashRing ring;
+    private static volatile long startTime;
+    // O anel só muda com o lock de escrita, pelo que nenhuma mensagem é registada por um dono que já o deixou de ser
+    private static final ReadWriteLock ringLock = new ReentrantReadWriteLock();
+    // Sequência do histórico a partir da qual este nó registou cada canal enquanto dono
+    private static final Map<String, Integer> ownedSince = new ConcurrentHashMap<>();
+    private static volatile int startSequence;
+    // Canais recebidos de outro nó cuja passagem ainda não terminou
+    private static final Map<String, Handoff> incoming = new ConcurrentHashMap<>();
+    // Canais cuja passagem terminou há pouco -> instante em que terminou (a vista deste nó pode mudar depois)
+    private static final Map<String, Long> recentlyReceived = new ConcurrentHashMap<>();
+    private static final Map<Long, CompletableFuture<BinaryProtocol.Frame>> queries = new ConcurrentHashMap<>();
+    private static final AtomicLong nextQuery = new AtomicLong();
+    private static final LongAdder handedOff = new LongAdder();
+    private static final LongAdder received = new LongAdder();
+    private static final ExecutorService handoffs = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "cluster-handoff");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Canal a ser recebido de outro nó, com as mensagens que chegaram antes do fim da passagem.
+     */
+    private static final class Handoff {
+        final String from;
+        final long deadline;
+        final List<String[]> pending = new ArrayList<>();
+        int lines;
+        boolean done;
+
+        Handoff(String from) {
+            this.from = from;
+            this.deadline = System.currentTimeMillis() + HANDOFF_TIMEOUT_MS;
+        }
+    }
+
+    /**
+     * Prepara a repartição dos canais, que começa com a primeira vista do cluster ou no fim do arranque.
+     * As mensagens registadas antes do arranque já estão em todos os nós e não são passadas.
+     */
+    static void start() {
+        startSequence = MessageStore.size();
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Obtém o nó dono de um canal.
+     *
+     * @param channelId ID do canal
+     * @return ID do nó dono, ou null se o servidor não fizer parte de um cluster
+     */
+    static String ownerOf(String channelId) {
+        HashRing current = ring;
+        return current == null ? null : current.owner(channelId);
+    }
+
+    /**
+     * Indica se este nó é o dono de um canal.
+     *
+     * @param channelId ID do canal
+     * @return Verdadeiro se o canal é deste nó ou se o servidor não fizer parte de um cluster
+     */
+    static boolean isLocal(String channelId) {
+        String owner = ownerOf(channelId);
+        return owner == null || owner.equals(Cluster.nodeId());
+    }
+
+    /**
+     * Obtém o número de canais de que este nó é dono.
+     *
+     * @return Número de canais
+     */
+    static int localChannelCount() {
+        int count = 0;
+        for (CommunicationChannel channel : ServerChannels.getChannels()) {
+            if (isLocal(channel.getChannelId())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Envia uma mensagem para um canal: regista-a e difunde-a, se este nó for o dono, ou encaminha-a para o dono.
+     *
+     * @param channel Canal de destino
+     * @param senderId ID do remetente
+     * @param message Mensagem a ser enviada
+     */
+    static void send(CommunicationChannel channel, String senderId, String message) {
+        String channelId = channel.getChannelId();
+        ringLock.readLock().lock();
+        try {
+            String owner = ownerOf(channelId);
+            // Se a ligação ao dono estiver em baixo, a mensagem é aceite aqui para não se perder
+            if (owner == null || owner.equals(Cluster.nodeId())
+                    || !Cluster.sendTo(owner, ClusterProtocol.encode(ClusterProtocol.CHANNEL, channelId, senderId, message))) {
+                accept(channel, senderId, message);
+            }
+        } finally {
+            ringLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Aplica um evento de canal recebido de outro nó.
+     *
+     * @param from ID do nó que enviou o evento
+     * @param frame Trama recebida
+     */
+    static void receive(String from, BinaryProtocol.Frame frame) {
+        String[] f = frame.fields;
+        switch (frame.opcode) {
+            case ClusterProtocol.CHANNEL:
+                ringLock.readLock().lock();
+                try {
+                    String owner = ownerOf(f[0]);
+                    if (owner != null && !owner.equals(Cluster.nodeId())
+                            && Cluster.sendTo(owner, ClusterProtocol.encode(ClusterProtocol.FORWARDED, f))) {
+                        break;
+                    }
+                    accept(Cluster.localChannel(f[0]), f[1], f[2]);
+                } finally {
+                    ringLock.readLock().unlock();
+                }
+                break;
+            case ClusterProtocol.FORWARDED:
+                accept(Cluster.localChannel(f[0]), f[1], f[2]);
+                break;
+            case ClusterProtocol.DELIVER:
+                Cluster.localChannel(f[0]).broadcastMessage(f[1], f[2]);
+                break;
+            case ClusterProtocol.HANDOFF_BEGIN:
+                beginHandoff(from, f);
+                break;
+            case ClusterProtocol.HANDOFF_HISTORY:
+                for (int i = 1; i < f.length; i++) {
+                    MessageStore.appendLine(f[i]);
+                }
+                Handoff current = incoming.get(f[0]);
+                if (current != null) {
+                    current.lines += f.length - 1;
+                }
+                break;
+            case ClusterProtocol.HANDOFF_END:
+                Handoff handoff = incoming.get(f[0]);
+                if (handoff != null && handoff.from.equals(from)) {
+                    finishHandoff(f[0], handoff);
+                    if (handoff.lines > 0 || !handoff.pending.isEmpty()) {
+                        System.out.println("Canal " + f[0] + " recebido do nó " + from + " (" + handoff.lines
+                                + " mensagens de histórico, " + handoff.pending.size() + " em espera)");
+                    }
+                }
+                recentlyReceived.put(f[0], System.currentTimeMillis());
+                received.increment();
+                break;
+            case ClusterProtocol.HISTORY_QUERY:
+                answerHistoryQuery(from, f);
+                break;
+            case ClusterProtocol.HISTORY_PAGE:
+                CompletableFuture<BinaryProtocol.Frame> query = queries.remove(Long.parseLong(f[0]));
+                if (query != null) {
+                    query.complete(frame);
+                }
+                break;
+            default:
+                System.out.println("Evento de canal desconhecido: " + frame.opcode);
+                break;
+        }
+    }
+
+    /**
+     * Aceita uma mensagem de um canal de que este nó é dono; se o canal ainda estiver a ser recebido de outro nó,
+     * a mensagem fica guardada até ao fim da passagem.
+     *
+     * @param channel Canal de destino
+     * @param senderId ID do remetente
+     * @param message Mensagem enviada
+     */
+    private static void accept(CommunicationChannel channel, String senderId, String message) {
+        Handoff handoff = incoming.get(channel.getChannelId());
+        if (handoff != null) {
+            synchronized (handoff) {
+                if (!handoff.done) {
+                    handoff.pending.add(new String[] {senderId, message});
+                    return;
+                }
+            }
+        }
+        commit(channel, senderId, message);
+    }
+
+    /**
+     * Regista uma mensagem no histórico, entrega-a aos membros ligados a este nó e envia-a aos outros nós.
+     *
+     * @param channel Canal de destino
+     * @param senderId ID do remetente
+     * @param message Mensagem enviada
+     */
+    private static void commit(CommunicationChannel channel, String senderId, String message) {
+        MessageStore.appendChannel(channel.getChannelId(), senderId, message);
+        channel.broadcastMessage(senderId, message);
+        Cluster.broadcast(ClusterProtocol.DELIVER, channel.getChannelId(), senderId, message);
+    }
+
+    /**
+     * Atualiza o anel depois de uma mudança da vista e passa aos novos donos os canais que este nó perdeu.
+     *
+     * @param view Nova vista do cluster
+     */
+    static void viewChanged(Set<String> view) {
+        HashRing next = new HashRing(view);
+        String self = Cluster.nodeId();
+        Map<String, String> outgoing = new TreeMap<>();
+        long now = System.currentTimeMillis();
+        ringLock.writeLock().lock();
+        try {
+            HashRing previous = ring;
+            ring = next;
+            if (previous == null) {
+                // Primeira vista: os dados de arranque são iguais em todos os nós, não há nada a passar
+                return;
+            }
+            for (CommunicationChannel channel : ServerChannels.getChannels()) {
+                String channelId = channel.getChannelId();
+                String before = previous.owner(channelId);
+                String after = next.owner(channelId);
+                if (before.equals(after)) {
+                    continue;
+                }
+                if (after.equals(self)) {
+                    ownedSince.put(channelId, MessageStore.size());
+                    // O antigo dono, se continua no cluster, envia o histórico; até lá as mensagens ficam guardadas
+                    Long receivedAt = recentlyReceived.get(channelId);
+                    if (view.contains(before) && (receivedAt == null || now - receivedAt > HANDOFF_TIMEOUT_MS)) {
+                        incoming.putIfAbsent(channelId, new Handoff(before));
+                    }
+                } else if (before.equals(self)) {
+                    outgoing.put(channelId, after);
+                }
+            }
+        } finally {
+            ringLock.writeLock().unlock();
+        }
+        checkHandoffs(view);
+        if (!outgoing.isEmpty()) {
+            handoffs.execute(() -> handOff(outgoing));
+        }
+    }
+
+    /**
+     * Termina as passagens cujo antigo dono saiu do cluster ou que excederam o tempo máximo.
+     * Chamado a cada sinal de vida.
+     *
+     * @param view Vista atual do cluster
+     */
+    static void checkHandoffs(Set<String> view) {
+        long now = System.currentTimeMillis();
+        if (ring == null && now - startTime > STARTUP_GRACE_MS) {
+            ring = new HashRing(view);
+        }
+        for (Map.Entry<String, Handoff> entry : incoming.entrySet()) {
+            Handoff handoff = entry.getValue();
+            if (!view.contains(handoff.from) || now > handoff.deadline) {
+                System.out.println("Canal " + entry.getKey() + " assumido sem o histórico do nó " + handoff.from);
+                finishHandoff(entry.getKey(), handoff);
+            }
+        }
+        recentlyReceived.values().removeIf(time -> now - time > HANDOFF_TIMEOUT_MS);
+    }
+
+    /**
+     * Envia cada canal ao seu novo dono: membros, histórico registado enquanto dono, e fim da passagem.
+     * As mensagens que chegam entretanto a este nó já são encaminhadas para o novo dono, que as guarda até ao fim.
+     *
+     * @param channels Canais a passar -> novo dono
+     */
+    private static void handOff(Map<String, String> channels) {
+        // O histórico só pode ser lido depois de escrito no ficheiro
+        MessageStore.awaitWritten();
+        Map<String, Integer> lines = new TreeMap<>();
+        for (Map.Entry<String, String> entry : channels.entrySet()) {
+            String channelId = entry.getKey();
+            String target = entry.getValue();
+            CommunicationChannel channel = ServerChannels.getChannel(channelId);
+            if (channel == null) {
+                continue;
+            }
+            List<String> fields = new ArrayList<>();
+            fields.add(channelId);
+            fields.addAll(channel.getMembers());
+            Cluster.sendTo(target, ClusterProtocol.encode(ClusterProtocol.HANDOFF_BEGIN, fields.toArray(new String[0])));
+
+            int sent = 0;
+            MessageStore.Page page = new MessageStore.Page(ownedSince.getOrDefault(channelId, startSequence), true);
+            try {
+                while (page.hasMore) {
+                    List<String> chunk = new ArrayList<>();
+                    chunk.add(channelId);
+                    page = MessageStore.readPage(null, null, Collections.singleton(channelId), page.nextCursor, HANDOFF_CHUNK, chunk::add);
+                    if (chunk.size() > 1) {
+                        Cluster.sendTo(target, ClusterProtocol.encode(ClusterProtocol.HANDOFF_HISTORY, chunk.toArray(new String[0])));
+                        sent += chunk.size() - 1;
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Erro ao ler o histórico do canal " + channelId + ": " + e.getMessage());
+            }
+            Cluster.sendTo(target, ClusterProtocol.encode(ClusterProtocol.HANDOFF_END, channelId));
+            ownedSince.remove(channelId);
+            handedOff.increment();
+            lines.merge(target, sent, Integer::sum);
+        }
+        for (Map.Entry<String, Integer> entry : lines.entrySet()) {
+            System.out.println("Canais passados ao nó " + entry.getKey() + " (" + entry.getValue() + " mensagens de histórico)");
+        }
+    }
+
+    /**
+     * Começa a receber um canal: o conjunto de membros do antigo dono substitui o deste nó.
+     *
+     * @param from ID do antigo dono
+     * @param fields Canal, seguido dos membros
+     */
+    private static void beginHandoff(String from, String[] fields) {
+        // A vista deste nó pode ainda não ter mudado; as mensagens que chegarem ficam guardadas na mesma
+        incoming.putIfAbsent(fields[0], new Handoff(from));
+        CommunicationChannel channel = Cluster.localChannel(fields[0]);
+        Set<String> members = new HashSet<>(Arrays.asList(fields).subList(1, fields.length));
+        for (String member : new ArrayList<>(channel.getMembers())) {
+            if (!members.contains(member)) {
+                ServerChannels.leaveChannel(member, channel);
+            }
+        }
+        for (String member : members) {
+            if (!channel.isMember(member)) {
+                ServerChannels.joinChannel(member, channel);
+            }
+        }
+    }
+
+    /**
+     * Termina a receção de um canal, aplicando pela ordem as mensagens guardadas.
+     *
+     * @param channelId ID do canal
+     * @param handoff Passagem a terminar
+     */
+    private static void finishHandoff(String channelId, Handoff handoff) {
+        CommunicationChannel channel = Cluster.localChannel(channelId);
+        synchronized (handoff) {
+            if (handoff.done) {
+                return;
+            }
+            for (String[] message : handoff.pending) {
+                commit(channel, message[0], message[1]);
+            }
+            handoff.done = true;
+        }
+        incoming.remove(channelId, handoff);
+    }
+
+    /**
+     * Lê uma página do histórico de um canal, localmente ou pedindo-a ao dono do canal.
+     * O cursor é uma sequência do histórico do dono. Um pedido ao dono não bloqueia quem chama: a página é entregue
+     * ao consumidor na thread que recebe a resposta do dono.
+     *
+     * @param channelId ID do canal
+     * @param cursor Primeira sequência a considerar
+     * @param limit Número máximo de mensagens
+     * @param consumer Recebe cada linha da página
+     * @return Future com o cursor para pedir a página seguinte e se há mais mensagens a partir dele; falha com
+     *         IOException se ocorrer um erro ao ler o ficheiro ou o dono não responder
+     */
+    static CompletableFuture<MessageStore.Page> readPage(String channelId, int cursor, int limit, Consumer<String> consumer) {
+        String owner = ownerOf(channelId);
+        if (owner == null || owner.equals(Cluster.nodeId())) {
+            try {
+                return CompletableFuture.completedFuture(
+                        MessageStore.readPage(null, null, Collections.singleton(channelId), cursor, limit, consumer));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        long id = nextQuery.incrementAndGet();
+        CompletableFuture<BinaryProtocol.Frame> reply = new CompletableFuture<>();
+        queries.put(id, reply);
+        byte[] query = ClusterProtocol.encode(ClusterProtocol.HISTORY_QUERY, Long.toString(id), channelId,
+                Integer.toString(cursor), Integer.toString(limit));
+        if (!Cluster.sendTo(owner, query)) {
+            queries.remove(id);
+            return CompletableFuture.failedFuture(new IOException("o nó " + owner + ", dono do canal, não está disponível"));
+        }
+        return reply.orTimeout(HISTORY_TIMEOUT_MS, TimeUnit.MILLISECONDS).handle((frame, error) -> {
+            queries.remove(id);
+            if (error != null) {
+                throw new CompletionException(new IOException("o nó " + owner + ", dono do canal, não respondeu"));
+            }
+            String[] f = frame.fields;
+            for (int i = 3; i < f.length; i++) {
+                consumer.accept(f[i]);
+            }
+            return new MessageStore.Page(Integer.parseInt(f[1]), Boolean.parseBoolean(f[2]));
+        });
+    }
+
+    /**
+     * Percorre, por ordem, todo o histórico de um canal, localmente ou pedindo-o ao dono do canal, página a página.
+     *
+     * @param channelId ID do canal
+     * @param consumer Recebe cada linha do histórico
+     * @return Future concluído depois da última página; falha com IOException como readPage
+     */
+    static CompletableFuture<Void> forEachInHistory(String channelId, Consumer<String> consumer) {
+        return forEachInHistory(channelId, 0, consumer);
+    }
+
+    /**
+     * Percorre o histórico de um canal a partir de um cursor. As páginas lidas localmente são percorridas num ciclo,
+     * e só as pedidas ao dono continuam quando a resposta chega, para que um histórico longo não encadeie
+     * uma chamada por página.
+     *
+     * @param channelId ID do canal
+     * @param cursor Primeira sequência a considerar
+     * @param consumer Recebe cada linha do histórico
+     * @return Future concluído depois da última página
+     */
+    private static CompletableFuture<Void> forEachInHistory(String channelId, int cursor, Consumer<String> consumer) {
+        MessageStore.Page page = new MessageStore.Page(cursor, true);
+        while (page.hasMore) {
+            CompletableFuture<MessageStore.Page> next = readPage(channelId, page.nextCursor, HANDOFF_CHUNK, consumer);
+            if (!next.isDone() || next.isCompletedExceptionally()) {
+                return next.thenCompose(read -> read.hasMore
+                        ? forEachInHistory(channelId, read.nextCursor, consumer)
+                        : CompletableFuture.completedFuture(null));
+            }
+            page = next.join();
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Responde a um pedido de leitura do histórico de um canal de que este nó é dono.
+     *
+     * @param from ID do nó que fez o pedido
+     * @param fields Pedido, canal, cursor e limite
+     */
+    private static void answerHistoryQuery(String from, String[] fields) {
+        List<String> reply = new ArrayList<>();
+        reply.add(fields[0]);
+        reply.add("");
+        reply.add("");
+        try {
+            MessageStore.Page page = MessageStore.readPage(null, null, Collections.singleton(fields[1]),
+                    Integer.parseInt(fields[2]), Integer.parseInt(fields[3]), reply::add);
+            reply.set(1, Integer.toString(page.nextCursor));
+            reply.set(2, Boolean.toString(page.hasMore));
+        } catch (IOException e) {
+            System.out.println("Erro ao ler o histórico do canal " + fields[1] + ": " + e.getMessage());
+            return;
+        }
+        Cluster.sendTo(from, ClusterProtocol.encode(ClusterProtocol.HISTORY_PAGE, reply.toArray(new String[0])));
+    }
+
+    /**
+     * Resume a repartição dos canais para as métricas.
+     *
+     * @return Texto com os canais deste nó e as passagens feitas
+     */
+    static String summary() {
+        return localChannelCount() + "/" + ServerChannels.getChannels().size() + " canais neste no, "
+                + handedOff.sum() + " passados, " + received.sum() + " recebidos, " + incoming.size() + " em passagem";
+    }
+}
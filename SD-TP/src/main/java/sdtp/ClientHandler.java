@@ -0,0 +1,1311 @@
+package sdtp;
+
+/**
+ * Classe que gere o tratamento de clientes conectados ao sistema de comunicação.
+ * Implementa a interface Runnable para que cada cliente possa ser gerido numa thread separada.
+ */
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+class ClientHandler implements Runnable {
+    
+    private final BufferedReader in;
+    private final DataInputStream frames;
+    private final WireFormat format;
+    private final OutboundQueue outbound;
+    private final PrintWriter out;
+    private final String clientId;
+    // Número do cliente em IdTable.USERS, atribuído quando passa a receber mensagens (ver register)
+    private int userIndex = -1;
+    private final RateLimiter commandLimiter = COMMAND_RATE > 0 ? new RateLimiter(COMMAND_RATE, COMMAND_BURST) : null;
+    private volatile SessionState state = SessionState.AWAITING_PASSWORD;
+    private Sessions.Session session;
+    private boolean loggedOut;
+    // Verdadeiro no ClientHandler sem conexão de uma sessão desligada (ver detachSession): o utilizador conta como
+    // desligado e as mensagens diretas vão para a OfflineInbox, que sobrevive à expiração da sessão
+    private boolean detached;
+    // Fecho da sessão; não é um monitor porque chama Sessions e a fila de saída, que podem bloquear uma thread virtual
+    private final ReentrantLock closeLock = new ReentrantLock();
+    private List<String> approvalChoices = Collections.emptyList();
+    protected static final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
+    // Os mesmos clientes, indexados pelo número do utilizador, para encaminhar as mensagens sem comparar texto.
+    // Cada alteração é feita com routesLock e publica o array outra vez, para que as leituras sem lock a vejam
+    private static volatile ClientHandler[] routes = new ClientHandler[0];
+    private static final Object routesLock = new Object();
+    private static final Map<String, String> userCredentials = new ConcurrentHashMap<>();
+    // Nível de cada utilizador, indexado pelo número do utilizador; -1 se desconhecido. Publicado como routes
+    private static volatile int[] userRoles = new int[0];
+    private static final String USERS_FILE = DataFiles.path("users.txt");
+    private static final int MAX_HISTORY_PAGE = 500;
+    // Comandos por segundo aceites de cada cliente, com rajadas até COMMAND_BURST; 0 desativa o limite
+    private static final int COMMAND_RATE = Integer.getInteger("sdtp.client.commandRate", 100);
+    private static final int COMMAND_BURST = Integer.getInteger("sdtp.client.commandBurst", 200);
+    // Em vez da senha, um cliente pode enviar retomar:<token>:<linhas recebidas> para retomar uma sessão
+    private static final String RESUME_PREFIX = "retomar:";
+    // Linha que entrega o token de sessão; o cliente conta as linhas recebidas a partir dela
+    private static final String SESSION_MARKER = "Token de sessão: ";
+    // Comandos de texto aceites numa sessão ativa; novos comandos são registados aqui
+    static final CommandDispatcher<ClientHandler> COMMANDS = new CommandDispatcher<>();
+    // Garante que o estado persistido é carregado uma única vez (ver loadState)
+    private static final ReentrantLock stateLock = new ReentrantLock();
+    private static boolean stateLoaded;
+
+    /**
+     * Estados possíveis de uma sessão de cliente.
+     * Permite processar as linhas recebidas uma a uma, independentemente do modo de I/O.
+     */
+    private enum SessionState {
+        AWAITING_PASSWORD,
+        ACTIVE,
+        AWAITING_APPROVAL_CHOICE,
+        CLOSED
+    }
+
+    /**
+     * Carrega o estado persistido (utilizadores, canais, pedidos, histórico e caixas offline), a partir do snapshot
+     * e do fim dos registos. É chamado no arranque, antes de o servidor aceitar clientes ou eventos de outros nós;
+     * o carregamento é feito uma única vez, e quem chamar enquanto decorre espera que termine.
+     */
+    static void loadState() {
+        stateLock.lock();
+        try {
+            if (stateLoaded) {
+                return;
+            }
+            Snapshot.restore();
+            loadUsersFromFile();
+            ServerChannels.loadChannelsFromFile();
+            ServerChannels.loadMembershipFromFile();
+            PendingRequests.load();
+            MessageStore.load();
+            OfflineInbox.load();
+            stateLoaded = true;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    static {
+        COMMANDS.registerExact("ajuda", (client, args, out) -> client.showHelp(out));
+        COMMANDS.registerExact("sair", (client, args, out) -> {
+            out.println("Desconectando...");
+            client.logout();
+        });
+        COMMANDS.registerExact("aprovar", (client, args, out) -> client.handleApproveRequests(out));
+        COMMANDS.registerExact("ler mensagens", (client, args, out) -> client.handleReadMessages(out));
+        COMMANDS.registerExact("metricas", (client, args, out) -> client.handleShowMetrics(out));
+        COMMANDS.registerExact("cursor", (client, args, out) -> client.handleShowCursor(out));
+        COMMANDS.registerPrefix("ler mensagens desde:", 2, 3, "ler mensagens desde:<cursor>:<limite>[:canal=<canal_id>|de=<utilizador>]",
+                (client, args, out) -> client.handleReadMessagesPage(args.get(0), args.get(1),
+                        args.count() > 2 ? args.get(2) : null, out));
+        COMMANDS.registerPrefix("mensagem:", 2, "mensagem:<destinatário>:<mensagem>",
+                (client, args, out) -> client.sendDirectMessage(args.get(0), args.get(1)));
+        COMMANDS.registerPrefix("criar canal:", 1, "criar canal:<canal_id>",
+                (client, args, out) -> client.createChannel(args.get(0), out));
+        COMMANDS.registerPrefix("entrar canal:", 1, "entrar canal:<canal_id>",
+                (client, args, out) -> client.joinChannel(args.get(0), out));
+        COMMANDS.registerPrefix("sair canal:", 1, "sair canal:<canal_id>",
+                (client, args, out) -> client.leaveChannel(args.get(0), out));
+        COMMANDS.registerPrefix("canal:", 2, "canal:<canal_id>:<mensagem>",
+                (client, args, out) -> client.broadcastToChannel(args.get(0), args.get(1), out));
+        COMMANDS.registerPrefix("solicitar:", 1, "solicitar:<tipo_operação>",
+                (client, args, out) -> client.requestApproval(args.get(0), out));
+        COMMANDS.registerPrefix("criar_user:", 3, "criar_user:<nome_user>:<senha>:<perfil>",
+                (client, args, out) -> client.createUser(args.get(0), args.get(1), args.get(2), out));
+        COMMANDS.registerPrefix("mensagem emergencia:", 1, "mensagem_emergencia:<mensagem>",
+                (client, args, out) -> client.sendEmergencyMessage(args.get(0), out));
+    }
+
+    /**
+     * Construtor da classe ClientHandler.
+     * 
+     * @param socket Socket associado ao cliente
+     * @param clientId ID do cliente
+     * @param in Leitor já criado sobre o socket durante o handshake, para não perder dados em buffer
+     * @throws IOException Se não for possível obter o stream de saída do socket
+     */
+    public ClientHandler(Socket socket, String clientId, BufferedReader in) throws IOException {
+        this.in = in;
+        this.frames = null;
+        this.format = WireFormat.TEXT;
+        this.outbound = new OutboundQueue(socket.getOutputStream());
+        this.outbound.limitAsClient(format);
+        this.out = outbound.newWriter(format);
+        this.clientId = clientId;
+    }
+
+    /**
+     * Construtor usado para um cliente que negociou o protocolo binário.
+     * 
+     * @param socket Socket associado ao cliente
+     * @param clientId ID do cliente
+     * @param frames Stream já criado sobre o socket durante o handshake, de onde são lidas as tramas
+     * @throws IOException Se não for possível obter o stream de saída do socket
+     */
+    public ClientHandler(Socket socket, String clientId, DataInputStream frames) throws IOException {
+        this.in = null;
+        this.frames = frames;
+        this.format = WireFormat.BINARY;
+        this.outbound = new OutboundQueue(socket.getOutputStream());
+        this.outbound.limitAsClient(format);
+        this.out = outbound.newWriter(format);
+        this.clientId = clientId;
+    }
+
+    /**
+     * Construtor usado quando a leitura e escrita da conexão são geridas externamente (ex.: modo NIO).
+     * 
+     * @param outbound Fila de saída da conexão, fechada no fim da sessão
+     * @param clientId ID do cliente
+     * @param format Protocolo negociado pela conexão
+     */
+    public ClientHandler(OutboundQueue outbound, String clientId, WireFormat format) {
+        this.in = null;
+        this.frames = null;
+        this.format = format;
+        this.outbound = outbound;
+        this.outbound.limitAsClient(format);
+        this.out = outbound.newWriter(format);
+        this.clientId = clientId;
+    }
+
+    /**
+     * Método que corre numa thread separada para gerir as interações do cliente.
+     * A sessão já foi aberta e autenticada pelo handshake de login.
+     */
+    @Override
+    public void run() {
+        try {
+            if (format == WireFormat.BINARY) {
+                BinaryProtocol.Frame frame;
+                while (state != SessionState.CLOSED && (frame = BinaryProtocol.read(frames)) != null) {
+                    handleFrame(frame);
+                }
+            } else {
+                String message;
+                while (state != SessionState.CLOSED && (message = in.readLine()) != null) {
+                    handleLine(message);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Erro no cliente " + clientId + ": " + e.getMessage());
+        } finally {
+            closeSession();
+        }
+    }
+
+    /**
+     * Inicia a sessão do cliente, enviando as mensagens de boas-vindas.
+     */
+    void openSession() {
+        out.println("=== Bem-vindo ao Sistema de Emergência ===");
+        out.println("Por favor, insira a sua senha:");
+    }
+
+    /**
+     * Processa uma linha recebida do cliente de acordo com o estado atual da sessão.
+     * 
+     * @param line Linha recebida do cliente
+     */
+    void handleLine(String line) {
+        switch (state) {
+            case AWAITING_PASSWORD:
+                if (line.startsWith(RESUME_PREFIX)) {
+                    resumeSession(line.substring(RESUME_PREFIX.length()));
+                    return;
+                }
+                if (!authenticate(clientId, line)) {
+                    out.println("Autenticação falhou. Conexão encerrada.");
+                    closeSession();
+                    return;
+                }
+                state = SessionState.ACTIVE;
+                ClientHandler previous = register(this);
+                Cluster.userOnline(clientId);
+                out.println("Autenticação bem-sucedida! Bem-vindo, " + clientId + "!");
+                String token = Sessions.newToken();
+                session = Sessions.open(token, this, format, startReplayLog(token));
+                out.println("Digite 'ajuda' para ver os comandos disponíveis.");
+                if (previous != null && previous.detached) {
+                    // Login com a senha durante uma sessão desligada: as mensagens guardadas passam para esta conexão
+                    previous.drainOutboundTo(outbound);
+                    previous.outbound.close();
+                }
+                OfflineInbox.deliverTo(this);
+                break;
+            case ACTIVE:
+                if (allowCommand()) {
+                    handleClientMessage(line, out);
+                }
+                break;
+            case AWAITING_APPROVAL_CHOICE:
+                state = SessionState.ACTIVE;
+                handleApprovalChoice(line, out);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Processa uma trama do protocolo binário. As operações com código próprio são executadas diretamente
+     * a partir dos campos da trama, sem interpretar texto; as restantes seguem o caminho do protocolo de texto.
+     * 
+     * @param frame Trama recebida do cliente
+     */
+    void handleFrame(BinaryProtocol.Frame frame) {
+        if (frame.opcode == BinaryProtocol.COMMAND) {
+            handleLine(frame.fields[0]);
+            return;
+        }
+        if (frame.opcode == BinaryProtocol.LOGIN && state == SessionState.AWAITING_PASSWORD) {
+            // Nova tentativa depois de uma retoma de sessão recusada
+            handleLine(frame.fields[1]);
+            return;
+        }
+        if (!isAuthenticated() || !allowCommand()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            executeFrame(frame.opcode, frame.fields);
+        } finally {
+            ServerMetrics.recordCommand(BinaryProtocol.commandName(frame.opcode), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Executa uma operação do protocolo binário a partir dos campos da trama.
+     * 
+     * @param opcode Código da operação
+     * @param fields Campos da trama
+     */
+    private void executeFrame(byte opcode, String[] fields) {
+        switch (opcode) {
+            case BinaryProtocol.DIRECT_MESSAGE:
+                sendDirectMessage(fields[0], fields[1]);
+                break;
+            case BinaryProtocol.CHANNEL_MESSAGE:
+                broadcastToChannel(fields[0], fields[1], out);
+                break;
+            case BinaryProtocol.JOIN_CHANNEL:
+                joinChannel(fields[0], out);
+                break;
+            case BinaryProtocol.LEAVE_CHANNEL:
+                leaveChannel(fields[0], out);
+                break;
+            case BinaryProtocol.REQUEST:
+                requestApproval(fields[0], out);
+                break;
+            case BinaryProtocol.APPROVE:
+                approveRequest(fields[0], fields[1], out);
+                break;
+            case BinaryProtocol.EMERGENCY:
+                sendEmergencyMessage(fields[0], out);
+                break;
+            default:
+                out.println("Comando não reconhecido. Digite 'ajuda' para ver os comandos disponíveis.");
+                break;
+        }
+    }
+
+    /**
+     * Aplica o limite de comandos por segundo do cliente. Um comando acima do limite é ignorado e o cliente avisado,
+     * para que um cliente que envia demasiado não ocupe a thread ou o event loop à custa dos restantes.
+     * 
+     * @return Verdadeiro se o comando pode ser executado
+     */
+    private boolean allowCommand() {
+        if (commandLimiter == null || commandLimiter.tryAcquire()) {
+            return true;
+        }
+        ServerMetrics.recordCommandThrottled();
+        out.println("Limite de comandos excedido (" + COMMAND_RATE + "/s). Comando ignorado.");
+        return false;
+    }
+
+    /**
+     * Indica se o cliente já se autenticou e a sessão continua aberta.
+     * 
+     * @return Verdadeiro se a sessão está autenticada, falso caso contrário
+     */
+    boolean isAuthenticated() {
+        return state == SessionState.ACTIVE || state == SessionState.AWAITING_APPROVAL_CHOICE;
+    }
+
+    /**
+     * Indica se a conexão ainda espera pela senha (ou por uma nova tentativa, depois de uma retoma recusada).
+     * 
+     * @return Verdadeiro se a próxima linha recebida é tratada como senha
+     */
+    boolean isAwaitingPassword() {
+        return state == SessionState.AWAITING_PASSWORD;
+    }
+
+    /**
+     * Termina a sessão a pedido do cliente: o token deixa de ser válido e o cliente fica desligado de imediato.
+     */
+    private void logout() {
+        loggedOut = true;
+        closeSession();
+    }
+
+    /**
+     * Termina a conexão do cliente e fecha-a.
+     * Se a conexão caiu numa sessão que pode ser retomada, o cliente continua em clients, representado por um
+     * ClientHandler sem conexão que guarda as mensagens até a sessão ser retomada ou expirar (ver Sessions).
+     * Caso contrário, o cliente é removido dos clientes conectados.
+     */
+    void closeSession() {
+        closeLock.lock();
+        try {
+            if (state == SessionState.CLOSED) {
+                return;
+            }
+            state = SessionState.CLOSED;
+            if (session != null && !loggedOut && detachSession()) {
+                return;
+            }
+            if (session != null) {
+                Sessions.close(session);
+            }
+            if (unregister()) {
+                Cluster.userOffline(clientId);
+            }
+            outbound.close();
+        } finally {
+            closeLock.unlock();
+        }
+    }
+
+    /**
+     * Desliga a sessão desta conexão. As mensagens que ainda não tinham sido escritas passam para o ReplayLog,
+     * como se tivessem sido escritas, e as seguintes ficam na fila de um ClientHandler sem conexão, exceto as
+     * mensagens diretas, guardadas na OfflineInbox para não se perderem se a sessão expirar.
+     * O utilizador é anunciado aos outros nós como desligado neste nó, que lhe envia as mensagens diretas para
+     * ficarem na caixa offline daqui, onde a sessão será retomada.
+     * 
+     * @return Verdadeiro se a sessão ficou desligada, falso se já não pertencia a esta conexão
+     */
+    private boolean detachSession() {
+        ClientHandler buffer = new ClientHandler(new OutboundQueue(() -> { }, () -> { }, () -> { }), clientId, format);
+        buffer.detached = true;
+        if (!Sessions.detach(session, this, buffer)) {
+            return false;
+        }
+        if (reroute(buffer)) {
+            Cluster.userDetached(clientId);
+        }
+        outbound.close();
+        while (outbound.poll() != null) {
+            // A mensagem fica registada no ReplayLog
+        }
+        return true;
+    }
+
+    /**
+     * Envia a linha com o token de sessão e começa a registar as mensagens escritas a seguir a ela.
+     * 
+     * @param token Token da sessão
+     * @return Registo das mensagens escritas nesta conexão
+     */
+    private ReplayLog startReplayLog(String token) {
+        byte[] marker = format.encode(SESSION_MARKER + token);
+        ReplayLog log = new ReplayLog(marker, Sessions.REPLAY_CAPACITY);
+        outbound.recordTo(log);
+        outbound.enqueue(marker);
+        return log;
+    }
+
+    /**
+     * Retoma uma sessão desligada nesta conexão, numa única resposta: reenvia as mensagens escritas na conexão
+     * antiga que o cliente não recebeu e as que foram entregues enquanto esteve desligado.
+     * Se o token não for válido, o cliente pode ainda autenticar-se com a senha.
+     * 
+     * @param request Token da sessão e número de linhas recebidas depois da linha com o token, separados por ':'
+     */
+    private void resumeSession(String request) {
+        String[] parts = request.split(":", 2);
+        long received;
+        try {
+            received = parts.length == 2 ? Long.parseLong(parts[1]) : 0;
+        } catch (NumberFormatException e) {
+            received = 0;
+        }
+        Sessions.Session resumed = Sessions.claim(clientId, parts[0], format);
+        if (resumed == null) {
+            out.println("Sessão inválida ou expirada. Insira a sua senha:");
+            return;
+        }
+        ClientHandler buffer = resumed.handler;
+        state = SessionState.ACTIVE;
+        session = resumed;
+        ReplayLog log = startReplayLog(resumed.token);
+        List<byte[]> missed = resumed.log.since(received);
+        long lost = resumed.log.lost(received);
+        for (byte[] frame : missed) {
+            outbound.enqueue(frame);
+        }
+        int count = missed.size() + buffer.drainOutboundTo(outbound);
+        register(this);
+        Cluster.userOnline(clientId);
+        // Mensagens entregues ao ClientHandler sem conexão enquanto este era substituído
+        count += buffer.drainOutboundTo(outbound);
+        buffer.outbound.close();
+        Sessions.attach(resumed, this, log, count);
+        if (lost > 0 || buffer.outboundDropped() > 0) {
+            out.println("Atenção: " + (lost + buffer.outboundDropped()) + " mensagens não puderam ser reenviadas;"
+                    + " use 'ler mensagens desde:<cursor>:<limite>' para as recuperar.");
+        }
+        out.println("Sessão retomada: " + count + " mensagens reenviadas.");
+        // Mensagens diretas recebidas enquanto a sessão esteve desligada
+        OfflineInbox.deliverTo(this);
+    }
+
+    /**
+     * Passa as mensagens em fila para a fila de outra conexão do mesmo cliente.
+     * 
+     * @param target Fila de saída da nova conexão
+     * @return Número de mensagens passadas
+     */
+    private int drainOutboundTo(OutboundQueue target) {
+        int count = 0;
+        byte[] frame;
+        while ((frame = outbound.poll()) != null) {
+            target.enqueue(frame);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Gere as mensagens enviadas pelo cliente.
+     * 
+     * @param message Mensagem enviada pelo cliente
+     * @param out PrintWriter para responder ao cliente
+     */
+    private void handleClientMessage(String message, PrintWriter out) {
+        try {
+            if (!COMMANDS.dispatch(this, message, out)) {
+                out.println("Comando não reconhecido. Digite 'ajuda' para ver os comandos disponíveis.");
+            }
+        } catch (IOException e) {
+            out.println("Erro ao processar o comando: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Mostra os comandos disponíveis.
+     * 
+     * @param out PrintWriter para responder ao cliente
+     */
+    private void showHelp(PrintWriter out) {
+        out.println("Comandos disponíveis:");
+        out.println("1. mensagem:<destinatário>:<mensagem> - Enviar mensagem para um destinatário específico");
+        out.println("2. canal:<canal_id>:<mensagem> - Enviar mensagem para um canal específico");
+        out.println("3. criar canal:<canal_id> - Criar um novo canal de comunicação");
+        out.println("4. entrar canal:<canal_id> - Entrar num canal de comunicação existente");
+        out.println("5. sair canal:<canal_id> - Sair de um canal de comunicação");
+        out.println("6. solicitar:<tipo_operação> - Solicitar aprovação para uma operação específica");
+        out.println("7. aprovar - Aprovar solicitações pendentes");
+        out.println("8. ler mensagens - Ler todas as mensagens enviadas anteriormente");
+        out.println("9. criar_user:<nome_user>:<senha>:<perfil> - Criar um novo utilizador");
+        out.println("10. mensagem emergencia:<mensagem> - Enviar uma mensagem de emergência para todos os clientes (somente Administrador)");
+        out.println("11. ler mensagens desde:<cursor>:<limite>[:canal=<canal_id>|de=<utilizador>] - Ler o histórico por páginas, a partir de um cursor (0 para o início)");
+        out.println("12. metricas - Mostrar as métricas do servidor (somente Administrador)");
+        out.println("13. cursor - Mostrar o cursor atual do histórico, a partir do qual se pode retomar a leitura");
+        out.println("0. sair - Desconectar do sistema");
+    }
+
+    /**
+     * Envia uma mensagem de emergência a todos os utilizadores ligados, pela via de emergência (ver EmergencyLane).
+     * 
+     * @param emergencyMessage Texto da mensagem de emergência
+     * @param out PrintWriter para responder ao cliente
+     */
+    private void sendEmergencyMessage(String emergencyMessage, PrintWriter out) {
+        if (roleOf(userIndex) != 3) { // Apenas Administradores (nivel 3)
+            out.println("Você não tem permissão para enviar mensagens de emergência.");
+            return;
+        }
+
+        EmergencyLane.submit(clientId, emergencyMessage);
+        Cluster.publishEmergency(clientId, emergencyMessage);
+        out.println("Mensagem de emergência enviada com sucesso.");
+    }
+
+    /**
+     * Envia uma mensagem para outro cliente.
+     * A mensagem é apenas colocada na fila de saída do destinatário, pelo que esta chamada não bloqueia
+     * mesmo que o destinatário seja lento, nem prende a thread de suporte quando o cliente corre numa thread virtual.
+     * Se o destinatário não estiver ligado a nenhum servidor, a mensagem fica na sua caixa offline até ao próximo login.
+     * 
+     * @param targetClientId ID do destinatário
+     * @param message Mensagem a enviar
+     */
+    protected void sendMessage(String targetClientId, String message) {
+        // Um destinatário ligado a outro nó, ou com a sessão desligada noutro nó, recebe a mensagem por esse nó
+        if (deliverDirect(clientId, targetClientId, message) || Cluster.locate(targetClientId) != null
+                || Cluster.locateDetached(targetClientId) != null) {
+            return;
+        }
+        if (userCredentials.containsKey(targetClientId)) {
+            OfflineInbox.store(targetClientId, directLine(clientId, message));
+        } else {
+            System.out.println("Cliente não encontrado: " + targetClientId);
+        }
+    }
+
+    /**
+     * Entrega uma mensagem a um cliente, se este estiver ligado a este servidor.
+     * 
+     * @param senderId ID do remetente
+     * @param targetClientId ID do destinatário
+     * @param message Mensagem a ser enviada
+     * @return Verdadeiro se o destinatário está ligado a este servidor, com uma conexão
+     */
+    static boolean deliverDirect(String senderId, String targetClientId, String message) {
+        ClientHandler targetClient = route(IdTable.USERS.find(targetClientId));
+        if (targetClient == null || targetClient.detached) {
+            return false;
+        }
+        targetClient.out.println(directLine(senderId, message));
+        return true;
+    }
+
+    /**
+     * Entrega uma mensagem direta recebida de outro nó. Se o destinatário tiver a sessão desligada neste nó,
+     * a mensagem fica na caixa offline deste nó, onde a sessão será retomada (o nó do remetente não a guarda).
+     * 
+     * @param senderId ID do remetente
+     * @param targetClientId ID do destinatário
+     * @param message Mensagem a ser entregue
+     */
+    static void receiveDirect(String senderId, String targetClientId, String message) {
+        if (deliverDirect(senderId, targetClientId, message)) {
+            return;
+        }
+        ClientHandler targetClient = route(IdTable.USERS.find(targetClientId));
+        if (targetClient != null && targetClient.detached) {
+            OfflineInbox.store(targetClientId, directLine(senderId, message));
+        }
+    }
+
+    /**
+     * Passa a entregar a um cliente as mensagens dirigidas ao seu ID, atribuindo-lhe um número se ainda não tiver um.
+     * Substitui a conexão anterior do mesmo cliente, se existir.
+     * 
+     * @param client Cliente autenticado
+     * @return ClientHandler substituído, ou null se o cliente não estava registado
+     */
+    static ClientHandler register(ClientHandler client) {
+        synchronized (routesLock) {
+            client.userIndex = IdTable.USERS.intern(client.clientId);
+            ClientHandler previous = clients.put(client.clientId, client);
+            setRoute(client.userIndex, client);
+            return previous;
+        }
+    }
+
+    /**
+     * Deixa de entregar mensagens a este cliente, se ainda for ele a recebê-las.
+     * 
+     * @return Verdadeiro se o cliente estava registado
+     */
+    private boolean unregister() {
+        synchronized (routesLock) {
+            if (!clients.remove(clientId, this)) {
+                return false;
+            }
+            setRoute(userIndex, null);
+            return true;
+        }
+    }
+
+    /**
+     * Passa as mensagens dirigidas a este cliente para outro ClientHandler do mesmo cliente, se ainda for ele a recebê-las.
+     * 
+     * @param next ClientHandler que passa a receber as mensagens
+     * @return Verdadeiro se as mensagens passaram para next
+     */
+    private boolean reroute(ClientHandler next) {
+        synchronized (routesLock) {
+            next.userIndex = userIndex;
+            if (!clients.replace(clientId, this, next)) {
+                return false;
+            }
+            setRoute(userIndex, next);
+            return true;
+        }
+    }
+
+    /**
+     * Altera a entrada de um utilizador no array de encaminhamento. Chamado com routesLock.
+     * 
+     * @param userIndex Número do utilizador
+     * @param client Cliente que recebe as mensagens, ou null
+     */
+    private static void setRoute(int userIndex, ClientHandler client) {
+        ClientHandler[] current = routes;
+        if (userIndex >= current.length) {
+            current = Arrays.copyOf(current, Math.max(userIndex + 1, Math.max(current.length * 2, IdTable.USERS.size())));
+        }
+        current[userIndex] = client;
+        routes = current;
+    }
+
+    /**
+     * Obtém o cliente ligado a este servidor com o número de utilizador indicado.
+     * 
+     * @param userIndex Número do utilizador (IdTable.USERS)
+     * @return Cliente ligado, ou null se não estiver ligado ou o número for -1
+     */
+    static ClientHandler route(int userIndex) {
+        ClientHandler[] current = routes;
+        return userIndex >= 0 && userIndex < current.length ? current[userIndex] : null;
+    }
+
+    /**
+     * Indica se este ClientHandler apenas guarda as mensagens de uma sessão desligada, sem conexão.
+     * 
+     * @return Verdadeiro se o utilizador está desligado à espera de retomar a sessão
+     */
+    boolean isDetached() {
+        return detached;
+    }
+
+    /**
+     * Obtém o número de utilizador deste cliente.
+     * 
+     * @return Número em IdTable.USERS, ou -1 se o cliente ainda não se autenticou
+     */
+    int getUserIndex() {
+        return userIndex;
+    }
+
+    /**
+     * Produz a linha com que uma mensagem direta é entregue ao destinatário.
+     * 
+     * @param senderId ID do remetente
+     * @param message Mensagem enviada
+     * @return Linha a enviar ao destinatário
+     */
+    private static String directLine(String senderId, String message) {
+        return "Mensagem recebida de " + senderId + ": " + message;
+    }
+
+    /**
+     * Obtém o ID do cliente.
+     * 
+     * @return ID do cliente
+     */
+    String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * Obtém o número de mensagens à espera de serem enviadas a este cliente.
+     * 
+     * @return Tamanho da fila de saída
+     */
+    int outboundDepth() {
+        return outbound.size();
+    }
+
+    /**
+     * Obtém há quanto tempo este cliente não recebe mensagens que tem à espera.
+     * 
+     * @return Atraso da fila de saída, em nanossegundos
+     */
+    long outboundLagNanos() {
+        return outbound.lagNanos();
+    }
+
+    /**
+     * Obtém o número de mensagens para este cliente descartadas por a fila de saída ter passado do limite.
+     * 
+     * @return Número de mensagens descartadas
+     */
+    long outboundDropped() {
+        return outbound.droppedCount();
+    }
+
+    /**
+     * Coloca uma mensagem já codificada na fila de saída deste cliente.
+     * Permite partilhar o mesmo buffer entre vários destinatários de uma difusão.
+     * 
+     * @param payloads Bytes da mensagem em cada formato, tal como devolvidos por WireFormat.encodeAll
+     */
+    void deliver(Map<WireFormat, byte[]> payloads) {
+        outbound.enqueue(payloads.get(format));
+    }
+
+    /**
+     * Coloca várias linhas seguidas na fila de saída deste cliente, de uma só vez.
+     * Cada linha é uma mensagem separada na fila, para que o cliente as possa contar ao retomar a sessão.
+     * 
+     * @param lines Linhas a enviar, sem terminador
+     */
+    void deliverLines(List<String> lines) {
+        for (String line : lines) {
+            outbound.enqueue(format.encode(line));
+        }
+    }
+
+    /**
+     * Coloca uma mensagem já codificada à frente das mensagens normais na fila de saída deste cliente.
+     * 
+     * @param payloads Bytes da mensagem em cada formato, tal como devolvidos por WireFormat.encodeAll
+     */
+    void deliverUrgent(Map<WireFormat, byte[]> payloads) {
+        outbound.enqueueUrgent(payloads.get(format));
+    }
+
+    /**
+     * Verifica a autenticidade de um utilizador.
+     * 
+     * @param clientId ID do cliente
+     * @param password Senha fornecida
+     * @return Verdadeiro se a autenticação for bem-sucedida, falso caso contrário
+     */
+    private boolean authenticate(String clientId, String password) {
+        return userCredentials.containsKey(clientId) && userCredentials.get(clientId).equals(password);
+    }
+
+    /**
+     * Envia uma mensagem para um destinatário específico e regista-a no histórico.
+     * 
+     * @param targetClientId ID do destinatário
+     * @param msgContent Texto da mensagem
+     */
+    private void sendDirectMessage(String targetClientId, String msgContent) {
+        sendMessage(targetClientId, clientId + ": " + msgContent);
+        logMessage(clientId, targetClientId, msgContent);
+        Cluster.publishDirect(clientId, targetClientId, msgContent);
+    }
+
+    /**
+     * Regista uma mensagem enviada para um destinatário.
+     * 
+     * @param senderId ID do remetente
+     * @param receiverId ID do destinatário
+     * @param message Mensagem enviada
+     */
+    private void logMessage(String senderId, String receiverId, String message) {
+        MessageStore.appendDirect(senderId, receiverId, message);
+    }
+
+    /**
+     * Cria um canal de comunicação.
+     * 
+     * @param channelId ID do canal a criar
+     * @param out PrintWriter para responder ao cliente
+     */
+    private void createChannel(String channelId, PrintWriter out) {
+        CommunicationChannel channel = new CommunicationChannel(channelId);
+        ServerChannels.addChannel(channel);
+        ServerChannels.saveChannelToFile(channelId);
+        Cluster.publishChannelCreated(channelId);
+        out.println("Canal " + channelId + " criado com sucesso!");
+    }
+
+    /**
+     * Adiciona o cliente a um canal.
+     * 
+     * @param channelId ID do canal
+     * @param out PrintWriter para responder ao cliente
+     */
+    private void joinChannel(String channelId, PrintWriter out) {
+        if (ServerChannels.isMember(clientId, channelId)) {
+            out.println("Você já está no canal " + channelId);
+            return;
+        }
+        CommunicationChannel channel = ServerChannels.getChannel(channelId);
+        if (channel != null) {
+            if (!ServerChannels.joinChannel(clientId, channel)) {
+                out.println("Você já está no canal " + channelId);
+                return;
+            }
+            Cluster.publishJoin(clientId, channelId);
+            out.println("Você entrou no canal " + channelId);
+        } else {
+            out.println("Canal " + channelId + " não encontrado.");
+        }
+    }
+
+    /**
+     * Remove o cliente de um canal.
+     * 
+     * @param channelId ID do canal
+     * @param out PrintWriter para responder ao cliente
+     */
+    private void leaveChannel(String channelId, PrintWriter out) {
+        if (!ServerChannels.isMember(clientId, channelId)) {
+            out.println("Você não está no canal " + channelId);
+            return;
+        }
+        CommunicationChannel channel = ServerChannels.getChannel(channelId);
+        if (channel != null) {
+            if (!ServerChannels.leaveChannel(clientId, channel)) {
+                out.println("Você não está no canal " + channelId);
+                return;
+            }
+            Cluster.publishLeave(clientId, channelId);
+            out.println("Você saiu do canal " + channelId);
+        } else {
+            out.println("Canal " + channelId + " não encontrado.");
+        }
+    }
+
+    /**
+     * Envia uma mensagem para os membros de um canal e regista-a no histórico.
+     * 
+     * @param channelId ID do canal
+     * @param msgContent Texto da mensagem
+     * @param out PrintWriter para responder ao cliente
+     */
+    private void broadcastToChannel(String channelId, String msgContent, PrintWriter out) {
+        CommunicationChannel channel = ServerChannels.getChannel(channelId);
+        if (channel != null) {
+            if (channel.isMember(clientId)) {
+                ChannelOwnership.send(channel, clientId, msgContent);
+            } else {
+                out.println("Você precisa entrar no canal " + channelId + " antes de enviar mensagens.");
+            }
+        } else {
+            out.println("Canal " + channelId + " não encontrado.");
+        }
+    }
+
+    /**
+     * Regista um pedido de aprovação, se o cargo do cliente o permitir.
+     * 
+     * @param requestType Tipo do pedido
+     * @param out PrintWriter para responder ao cliente
+     */
+    private void requestApproval(String requestType, PrintWriter out) {
+        int userRole = roleOf(userIndex);
+
+        if (userRole < 0) {
+            out.println("Erro: Cargo do utilizador não encontrado.");
+            return;
+        }
+
+        // Verificar se o cargo permite a solicitação
+        boolean canRequest = false;
+        switch (requestType) {
+            case "DRE": // Distribuição de Recursos de Emergência
+                canRequest = userRole >= 0; // Todos os cargos podem solicitar
+                break;
+            case "ACE": // Ativação de Comunicações de Emergência
+                canRequest = userRole >= 1; // Cargo 1 ou superior
+                break;
+            case "OEM": // Operação de Evacuação em Massa
+                canRequest = userRole >= 2; // Cargo 2 ou superior
+                break;
+            default:
+                out.println("Tipo de operação inválido.");
+                return;
+        }
+
+        if (canRequest) {
+            // A resposta segue quando o pedido estiver no disco, sem ocupar a thread do cliente à espera do fsync
+            PendingRequests.addRequest(clientId, requestType).thenRun(() -> {
+                Cluster.publishRequest(clientId, requestType);
+                out.println("Sua solicitação de " + requestType + " foi registrada e está aguardando aprovação.");
+            });
+        } else {
+            out.println("Você não possui permissão para solicitar " + requestType + ".");
+        }
+    }
+    
+
+    private void handleApproveRequests(PrintWriter out) {
+        List<String> requests = PendingRequests.getRequests();
+        if (requests.isEmpty()) {
+            out.println("Nenhuma solicitação pendente no momento.");
+            return;
+        }
+    
+        out.println("Solicitações pendentes:");
+        for (int i = 0; i < requests.size(); i++) {
+            String[] details = requests.get(i).split(":");
+            out.println((i + 1) + ". Cliente: " + details[0] + " | Tipo: " + details[1]);
+        }
+    
+        out.println("Digite o número da solicitação para aprovar ou 'cancelar' para voltar ao menu.");
+        approvalChoices = requests;
+        state = SessionState.AWAITING_APPROVAL_CHOICE;
+    }
+
+    /**
+     * Processa a escolha do cliente sobre qual solicitação pendente aprovar.
+     * 
+     * @param input Linha recebida do cliente com o número da solicitação ou 'cancelar'
+     * @param out PrintWriter para responder ao cliente
+     */
+    private void handleApprovalChoice(String input, PrintWriter out) {
+        List<String> requests = approvalChoices;
+        approvalChoices = Collections.emptyList();
+        try {
+            if (input.equalsIgnoreCase("cancelar")) {
+                out.println("Retornando ao menu principal.");
+                return;
+            }
+    
+            int choice = Integer.parseInt(input) - 1;
+            if (choice >= 0 && choice < requests.size()) {
+                String[] requestDetails = requests.get(choice).split(":");
+                approveRequest(requestDetails[0], requestDetails[1], out);
+            } else {
+                out.println("Escolha inválida.");
+            }
+        } catch (NumberFormatException e) {
+            out.println("Erro ao processar o comando. Tente novamente.");
+        }
+    }
+
+    /**
+     * Aprova um pedido pendente, se o cargo do cliente o permitir.
+     * 
+     * @param requestClientId ID do cliente que fez o pedido
+     * @param requestType Tipo do pedido
+     * @param out PrintWriter para responder ao cliente
+     */
+    private void approveRequest(String requestClientId, String requestType, PrintWriter out) {
+        int userRole = roleOf(userIndex);
+
+        if (userRole < 0) {
+            out.println("Erro: Cargo do utilizador não encontrado.");
+            return;
+        }
+
+        // Verificar se o cargo permite aprovar a operação
+        boolean canApprove = false;
+        switch (requestType) {
+            case "DRE": // Distribuição de Recursos de Emergência
+                canApprove = userRole >= 1; // Cargo 1 ou superior pode aprovar
+                break;
+            case "ACE": // Ativação de Comunicações de Emergência
+                canApprove = userRole >= 2; // Cargo 2 ou superior pode aprovar
+                break;
+            case "OEM": // Operação de Evacuação em Massa
+                canApprove = userRole >= 3; // Apenas Cargo 3 pode aprovar
+                break;
+            default:
+                out.println("Tipo de operação inválido.");
+                return;
+        }
+
+        if (!canApprove) {
+            out.println("Você não possui permissão para aprovar a solicitação de " + requestType + ".");
+            return;
+        }
+        // Remove do arquivo; tal como no pedido, a resposta segue quando a anulação estiver no disco
+        PendingRequests.removeRequest(requestClientId, requestType).thenAccept(removed -> {
+            if (removed) {
+                Cluster.publishApproval(requestClientId, requestType);
+                out.println("Solicitação de " + requestType + " aprovada!");
+            } else {
+                out.println("Solicitação de " + requestType + " de " + requestClientId + " não encontrada.");
+            }
+        });
+    }
+
+    /**
+     * Lê todas as mensagens enviadas anteriormente.
+     * Usa os índices do MessageStore, pelo que só são lidas as mensagens do próprio utilizador,
+     * e o histórico é enviado em páginas em vez de ser carregado todo de uma vez.
+     * Num cluster, o histórico dos canais que são de outros nós é pedido a esses nós e enviado no fim, canal a canal,
+     * à medida que as respostas chegam, sem ocupar a thread do cliente (ou um worker do modo NIO) à espera delas.
+     * 
+     * @param out PrintWriter para responder ao cliente
+     */
+    private void handleReadMessages(PrintWriter out) {
+        Set<String> local = new HashSet<>();
+        Set<String> remote = new TreeSet<>();
+        for (String channelId : ServerChannels.getUserChannels(clientId)) {
+            (ChannelOwnership.isLocal(channelId) ? local : remote).add(channelId);
+        }
+        try {
+            MessageStore.forEachInHistory(clientId, local, out::println);
+        } catch (IOException e) {
+            out.println("Erro ao ler as mensagens: " + e.getMessage());
+            return;
+        }
+        CompletableFuture<Void> remoteHistory = CompletableFuture.completedFuture(null);
+        for (String channelId : remote) {
+            remoteHistory = remoteHistory.thenCompose(ignored -> ChannelOwnership.forEachInHistory(channelId, out::println));
+        }
+        remoteHistory.exceptionally(error -> {
+            out.println("Erro ao ler as mensagens: " + causeOf(error).getMessage());
+            return null;
+        });
+    }
+
+    /**
+     * Obtém a causa de uma falha de um CompletableFuture, sem a CompletionException que a envolve.
+     * 
+     * @param error Falha recebida num callback
+     * @return Causa original
+     */
+    private static Throwable causeOf(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    /**
+     * Mostra o cursor do fim do histórico, a partir do qual um cliente que se volte a ligar pode pedir as mensagens
+     * que perdeu. As mensagens com sequência anterior ao cursor já estão na fila deste cliente, exceto as difusões
+     * que estejam a decorrer neste instante, que terminam pouco depois.
+     * 
+     * @param out PrintWriter para responder ao cliente
+     */
+    private void handleShowCursor(PrintWriter out) {
+        out.println("Cursor atual: " + MessageStore.size());
+    }
+
+    /**
+     * Mostra as métricas atuais do servidor.
+     * 
+     * @param out PrintWriter para responder ao cliente
+     */
+    private void handleShowMetrics(PrintWriter out) {
+        if (roleOf(userIndex) != 3) { // Apenas Administradores (nivel 3)
+            out.println("Você não tem permissão para consultar as métricas.");
+            return;
+        }
+        for (String line : ServerMetrics.snapshot()) {
+            out.println(line);
+        }
+    }
+
+    /**
+     * Lê uma página do histórico do cliente, a partir de um cursor devolvido pela página anterior.
+     * O filtro opcional restringe a página a um canal ("canal=<canal_id>") ou às mensagens diretas
+     * de um utilizador ("de=<utilizador>"). No fim da página é enviado o cursor para o pedido seguinte.
+     * Num cluster, a página de um canal é lida no dono do canal, e o histórico sem filtro inclui apenas
+     * os canais de que este nó é dono.
+     * 
+     * @param cursorText Cursor a partir do qual ler
+     * @param limitText Número máximo de mensagens
+     * @param filter Filtro da página, ou null para todo o histórico
+     * @param out PrintWriter para responder ao cliente
+     */
+    private void handleReadMessagesPage(String cursorText, String limitText, String filter, PrintWriter out) {
+        int cursor;
+        int limit;
+        try {
+            cursor = Integer.parseInt(cursorText);
+            limit = Integer.parseInt(limitText);
+        } catch (NumberFormatException e) {
+            out.println("O cursor e o limite devem ser números inteiros.");
+            return;
+        }
+        if (cursor < 0 || limit < 1 || limit > MAX_HISTORY_PAGE) {
+            out.println("Cursor ou limite inválido. O limite deve estar entre 1 e " + MAX_HISTORY_PAGE + ".");
+            return;
+        }
+
+        String recipientId = clientId;
+        String peerId = null;
+        Set<String> channels = ServerChannels.getUserChannels(clientId);
+        if (filter != null && filter.startsWith("canal=")) {
+            String channelId = filter.substring("canal=".length());
+            if (!channels.contains(channelId)) {
+                out.println("Você não está no canal " + channelId);
+                return;
+            }
+            // Se o canal for de outro nó, a página é enviada quando a resposta do dono chegar
+            ChannelOwnership.readPage(channelId, cursor, limit, out::println).whenComplete((page, error) -> {
+                if (error != null) {
+                    out.println("Erro ao ler as mensagens: " + causeOf(error).getMessage());
+                } else {
+                    out.println("Próximo cursor: " + page.nextCursor
+                            + (page.hasMore ? " (há mais mensagens)" : " (fim do histórico)"));
+                }
+            });
+            return;
+        } else if (filter != null && filter.startsWith("de=")) {
+            peerId = filter.substring("de=".length());
+            channels = Collections.emptySet();
+        } else if (filter != null) {
+            out.println("Filtro inválido. Use canal=<canal_id> ou de=<utilizador>.");
+            return;
+        } else {
+            channels = new HashSet<>(channels);
+            channels.removeIf(channelId -> !ChannelOwnership.isLocal(channelId));
+        }
+
+        try {
+            MessageStore.Page page = MessageStore.readPage(recipientId, peerId, channels, cursor, limit, out::println);
+            out.println("Próximo cursor: " + page.nextCursor + (page.hasMore ? " (há mais mensagens)" : " (fim do histórico)"));
+        } catch (IOException e) {
+            out.println("Erro ao ler as mensagens: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Cria um novo utilizador.
+     * 
+     * @param newUserId ID do novo utilizador
+     * @param newPassword Senha do novo utilizador
+     * @param newProfile Perfil do novo utilizador
+     * @param out PrintWriter para responder ao cliente
+     */
+    private void createUser(String newUserId, String newPassword, String newProfile, PrintWriter out) {
+        if (!userCredentials.containsKey(newUserId)) {
+            userCredentials.put(newUserId, newPassword);
+            int level = 3; // Nível padrão para novos utilizadores
+    
+            // Adicionamos a lógica para identificar o perfil "todos"
+            if ("todos".equalsIgnoreCase(newProfile)) {
+                level = 0; // Cargo 0
+            } else if ("Coordenador Regional".equalsIgnoreCase(newProfile)) {
+                level = 1;
+            } else if ("Operador de Nivel Medio".equalsIgnoreCase(newProfile)) {
+                level = 2;
+            } else if ("Administrador".equalsIgnoreCase(newProfile)) {
+                level = 3;
+            } else {
+                out.println("Perfil inválido. Use: 'todos', 'Coordenador Regional', 'Operador de Nivel Medio', ou 'Administrador'.");
+                return;
+            }
+    
+            addUser(newUserId, newPassword, newProfile, level); // Salva no arquivo
+            Cluster.publishUser(newUserId, newPassword, newProfile, level);
+            out.println("Utilizador " + newUserId + " criado com sucesso com cargo: " + newProfile + "!");
+        } else {
+            out.println("Utilizador já existe.");
+        }
+    }
+    
+
+    /**
+     * Regista um utilizador em memória e no ficheiro.
+     * 
+     * @param userId ID do utilizador
+     * @param password Senha do utilizador
+     * @param profile Perfil do utilizador
+     * @param level Nível de permissão do utilizador
+     */
+    static void addUser(String userId, String password, String profile, int level) {
+        userCredentials.put(userId, password);
+        setRole(userId, level);
+        saveUserToFile(userId, password, profile);
+    }
+
+    /**
+     * Regista um utilizador no ficheiro.
+     * 
+     * @param userId ID do utilizador
+     * @param password Senha do utilizador
+     * @param profile Perfil do utilizador
+     */
+    private static void saveUserToFile(String userId, String password, String profile) {
+        Journal.append(USERS_FILE, userId + ":" + password + ":" + profile).exceptionally(e -> {
+            System.out.println("Erro ao salvar o utilizador: " + e.getMessage());
+            return null;
+        });
+    }
+
+    /**
+     * Carrega utilizadores do ficheiro, a partir da posição incluída no snapshot carregado (se houver).
+     */
+    private static void loadUsersFromFile() {
+        try (BufferedReader br = Snapshot.openTail(USERS_FILE)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                applyUserLine(line);
+            }
+        } catch (IOException e) {
+            System.out.println("Erro ao carregar os utilizadores: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Escreve os utilizadores (ID, senha e nível) para o snapshot.
+     *
+     * @param out Stream da secção
+     * @throws IOException Se ocorrer um erro ao escrever
+     */
+    static void writeSnapshot(DataOutputStream out) throws IOException {
+        List<Map.Entry<String, String>> users = new ArrayList<>(userCredentials.entrySet());
+        out.writeInt(users.size());
+        for (Map.Entry<String, String> user : users) {
+            out.writeUTF(user.getKey());
+            out.writeUTF(user.getValue());
+            out.writeByte(roleOf(IdTable.USERS.find(user.getKey())));
+        }
+    }
+
+    /**
+     * Carrega os utilizadores guardados no snapshot.
+     *
+     * @param in Stream da secção
+     * @throws IOException Se a secção for inválida
+     */
+    static void readSnapshot(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String userId = in.readUTF();
+            userCredentials.put(userId, in.readUTF());
+            setRole(userId, in.readByte());
+        }
+    }
+
+    /**
+     * Aplica em memória uma linha do ficheiro de utilizadores (no carregamento ou recebida do primário).
+     * 
+     * @param line Linha no formato "utilizador:senha:perfil"
+     */
+    static void applyUserLine(String line) {
+        String[] parts = line.split(":", 3);
+        if (parts.length == 3) {
+            String userId = parts[0];
+            String password = parts[1];
+            String profile = parts[2];
+            userCredentials.put(userId, password);
+            int level = 3;
+            if ("Coordenador Regional".equals(profile)) {
+                level = 1;
+            } else if ("Operador de Nivel Medio".equals(profile)) {
+                level = 2;
+            }
+            setRole(userId, level);
+        }
+    }
+
+    /**
+     * Regista o nível de um utilizador, atribuindo-lhe um número se ainda não tiver um.
+     * 
+     * @param userId ID do utilizador
+     * @param level Nível de permissão do utilizador
+     */
+    private static void setRole(String userId, int level) {
+        int index = IdTable.USERS.intern(userId);
+        synchronized (routesLock) {
+            int[] roles = userRoles;
+            if (index >= roles.length) {
+                int length = roles.length;
+                roles = Arrays.copyOf(roles, Math.max(index + 1, length * 2));
+                Arrays.fill(roles, length, roles.length, -1);
+            }
+            roles[index] = level;
+            userRoles = roles;
+        }
+    }
+
+    /**
+     * Obtém o nível de um utilizador.
+     * 
+     * @param userIndex Número do utilizador
+     * @return Nível de permissão, ou -1 se o utilizador não for conhecido
+     */
+    private static int roleOf(int userIndex) {
+        int[] roles = userRoles;
+        return userIndex >= 0 && userIndex < roles.length ? roles[userIndex] : -1;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,385 @@
+package sdtp;
+
+/**
+ * Classe que liga este servidor aos outros nós do cluster.
+ * Os nós são configurados com as propriedades de sistema sdtp.cluster.node (ID deste nó) e sdtp.cluster.nodes
+ * (todos os nós, no formato id=host:porta,id=host:porta); sem elas, o servidor funciona sozinho e nada é enviado.
+ * Cada nó abre uma conexão de saída para cada um dos outros e envia sinais de vida periódicos; a vista do cluster
+ * é o conjunto dos nós de que se receberam sinais de vida recentes, e é igual em todos os nós ligados entre si.
+ * Cada mensagem direta e cada alteração de estado (canais, membros, utilizadores, pedidos) é enviada uma única vez
+ * a cada nó remoto, que a regista e a entrega aos seus clientes ligados, sem a reenviar; as mensagens dos canais
+ * passam pelo dono de cada canal (ver ChannelOwnership). Os clientes podem ligar-se a qualquer nó.
+ */
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+class Cluster {
+    static final String NODE_PROPERTY = "sdtp.cluster.node";
+    static final String NODES_PROPERTY = "sdtp.cluster.nodes";
+    private static final long HEARTBEAT_INTERVAL_MS = 500;
+    // Um nó sem sinais de vida durante este tempo sai da vista do cluster
+    private static final long FAILURE_TIMEOUT_MS = 2000;
+
+    private static volatile String nodeId;
+    private static final Map<String, PeerLink> peers = new ConcurrentSkipListMap<>();
+    private static final Map<String, Long> lastHeartbeat = new ConcurrentHashMap<>();
+    // Utilizadores ligados a outros nós -> nó a que estão ligados
+    private static final Map<String, String> remoteUsers = new ConcurrentHashMap<>();
+    // Utilizadores com a sessão desligada noutro nó -> nó que guarda as suas mensagens diretas
+    private static final Map<String, String> detachedUsers = new ConcurrentHashMap<>();
+    private static volatile Set<String> view = Collections.emptySet();
+
+    /**
+     * Lê a configuração do cluster e, se existir, começa a aceitar conexões dos outros nós e a ligar-se a eles.
+     *
+     * @throws IOException Se não for possível abrir a porta do cluster
+     */
+    static void start() throws IOException {
+        String self = System.getProperty(NODE_PROPERTY);
+        String nodes = System.getProperty(NODES_PROPERTY);
+        if (self == null || nodes == null) {
+            return;
+        }
+        InetSocketAddress selfAddress = null;
+        for (String entry : nodes.split(",")) {
+            String[] parts = entry.trim().split("[=:]");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Nó do cluster inválido: " + entry + " (use id=host:porta)");
+            }
+            InetSocketAddress address = new InetSocketAddress(parts[1], Integer.parseInt(parts[2]));
+            if (parts[0].equals(self)) {
+                selfAddress = address;
+            } else {
+                peers.put(parts[0], new PeerLink(parts[0], address));
+            }
+        }
+        if (selfAddress == null) {
+            throw new IllegalArgumentException("O nó " + self + " não está em " + NODES_PROPERTY);
+        }
+        // Os eventos recebidos alteram o estado do servidor, que tem de estar carregado antes de chegarem
+        ClientHandler.loadState();
+        nodeId = self;
+        view = Collections.singleton(self);
+        ChannelOwnership.start();
+
+        ServerSocket serverSocket = new ServerSocket(selfAddress.getPort());
+        Thread acceptor = new Thread(() -> accept(serverSocket), "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink peer : peers.values()) {
+            peer.start();
+        }
+        ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "cluster-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeats.scheduleAtFixedRate(Cluster::heartbeat, 0, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        System.out.println("Nó " + self + " do cluster à escuta na porta " + selfAddress.getPort() + ", com os nós " + peers.keySet());
+    }
+
+    /**
+     * Indica se este servidor faz parte de um cluster.
+     *
+     * @return Verdadeiro se o cluster está configurado
+     */
+    static boolean isEnabled() {
+        return nodeId != null;
+    }
+
+    /**
+     * Obtém o ID deste nó.
+     *
+     * @return ID do nó, ou null se o cluster não estiver configurado
+     */
+    static String nodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Obtém os nós que este nó considera vivos, incluindo ele próprio.
+     *
+     * @return Conjunto ordenado dos IDs dos nós
+     */
+    static Set<String> view() {
+        return view;
+    }
+
+    /**
+     * Indica a que nó remoto está ligado um utilizador.
+     *
+     * @param userId ID do utilizador
+     * @return ID do nó, ou null se o utilizador não estiver ligado a outro nó
+     */
+    static String locate(String userId) {
+        return remoteUsers.get(userId);
+    }
+
+    /**
+     * Indica em que nó remoto está desligada, à espera de ser retomada, a sessão de um utilizador.
+     * Esse nó guarda na sua caixa offline as mensagens diretas para o utilizador, pelo que os outros não as guardam.
+     *
+     * @param userId ID do utilizador
+     * @return ID do nó, ou null se o utilizador não tiver uma sessão desligada noutro nó
+     */
+    static String locateDetached(String userId) {
+        return detachedUsers.get(userId);
+    }
+
+    /**
+     * Obtém o número de utilizadores ligados a outros nós.
+     *
+     * @return Número de utilizadores remotos
+     */
+    static int remoteUserCount() {
+        return remoteUsers.size();
+    }
+
+    // Publicação de eventos deste nó: cada evento é codificado uma vez e enviado uma vez a cada nó remoto
+
+    static void userOnline(String userId) {
+        broadcast(ClusterProtocol.ONLINE, userId);
+    }
+
+    static void userOffline(String userId) {
+        broadcast(ClusterProtocol.OFFLINE, userId);
+    }
+
+    static void userDetached(String userId) {
+        broadcast(ClusterProtocol.DETACHED, userId);
+    }
+
+    static void publishDirect(String senderId, String targetId, String message) {
+        broadcast(ClusterProtocol.DIRECT, senderId, targetId, message);
+    }
+
+    static void publishEmergency(String senderId, String message) {
+        // As emergências passam à frente das restantes tramas nas ligações aos outros nós
+        byte[] frame = ClusterProtocol.encode(ClusterProtocol.EMERGENCY, senderId, message);
+        for (PeerLink peer : peers.values()) {
+            peer.sendUrgent(frame);
+        }
+    }
+
+    static void publishChannelCreated(String channelId) {
+        broadcast(ClusterProtocol.CREATE_CHANNEL, channelId);
+    }
+
+    static void publishJoin(String userId, String channelId) {
+        broadcast(ClusterProtocol.JOIN, userId, channelId);
+    }
+
+    static void publishLeave(String userId, String channelId) {
+        broadcast(ClusterProtocol.LEAVE, userId, channelId);
+    }
+
+    static void publishUser(String userId, String password, String profile, int level) {
+        broadcast(ClusterProtocol.USER, userId, password, profile, Integer.toString(level));
+    }
+
+    static void publishRequest(String clientId, String requestType) {
+        broadcast(ClusterProtocol.REQUEST, clientId, requestType);
+    }
+
+    static void publishApproval(String clientId, String requestType) {
+        broadcast(ClusterProtocol.APPROVED, clientId, requestType);
+    }
+
+    /**
+     * Envia uma trama a todos os nós remotos, codificada uma única vez.
+     *
+     * @param opcode Código da operação
+     * @param fields Campos da trama
+     */
+    static void broadcast(byte opcode, String... fields) {
+        if (peers.isEmpty()) {
+            return;
+        }
+        byte[] frame = ClusterProtocol.encode(opcode, fields);
+        for (PeerLink peer : peers.values()) {
+            peer.send(frame);
+        }
+    }
+
+    /**
+     * Envia uma trama a um nó remoto.
+     *
+     * @param node ID do nó
+     * @param frame Bytes da trama
+     * @return Verdadeiro se a trama foi colocada na fila da ligação, falso se o nó é desconhecido ou está em baixo
+     */
+    static boolean sendTo(String node, byte[] frame) {
+        PeerLink peer = peers.get(node);
+        return peer != null && peer.send(frame);
+    }
+
+    /**
+     * Chamado quando uma ligação de saída é aberta: envia ao nó remoto os utilizadores ligados a este nó.
+     *
+     * @param peer Ligação aberta
+     */
+    static void linkConnected(PeerLink peer) {
+        peer.send(ClusterProtocol.encode(ClusterProtocol.HEARTBEAT, nodeId));
+        for (ClientHandler client : ClientHandler.clients.values()) {
+            // Os utilizadores com a sessão desligada contam como desligados (ver ClientHandler.detachSession)
+            peer.send(ClusterProtocol.encode(client.isDetached() ? ClusterProtocol.DETACHED : ClusterProtocol.ONLINE,
+                    client.getClientId()));
+        }
+    }
+
+    /**
+     * Envia o sinal de vida aos outros nós e retira da vista os nós que deixaram de o enviar.
+     */
+    private static void heartbeat() {
+        broadcast(ClusterProtocol.HEARTBEAT, nodeId);
+        long now = System.currentTimeMillis();
+        Set<String> alive = new TreeSet<>();
+        alive.add(nodeId);
+        for (Map.Entry<String, Long> entry : lastHeartbeat.entrySet()) {
+            // Um nó só entra na vista quando as conexões nos dois sentidos estão abertas
+            if (now - entry.getValue() <= FAILURE_TIMEOUT_MS && peers.get(entry.getKey()).isConnected()) {
+                alive.add(entry.getKey());
+            }
+        }
+        boolean changed = false;
+        if (!alive.equals(view)) {
+            for (String node : view) {
+                if (!alive.contains(node)) {
+                    // Os utilizadores de um nó que saiu deixam de estar contactáveis
+                    remoteUsers.values().removeIf(node::equals);
+                    detachedUsers.values().removeIf(node::equals);
+                }
+            }
+            view = Collections.unmodifiableSet(alive);
+            System.out.println("Vista do cluster: " + alive);
+            changed = true;
+        }
+        // Uma exceção aqui cancelaria os sinais de vida seguintes
+        try {
+            if (changed) {
+                ChannelOwnership.viewChanged(view);
+            } else {
+                ChannelOwnership.checkHandoffs(view);
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Erro ao repartir os canais: " + e);
+        }
+    }
+
+    /**
+     * Aceita as conexões de entrada dos outros nós, cada uma lida na sua própria thread.
+     *
+     * @param serverSocket Socket da porta do cluster
+     */
+    private static void accept(ServerSocket serverSocket) {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread reader = new Thread(() -> read(socket), "cluster-in");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                System.out.println("Erro ao aceitar conexão do cluster: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Lê as tramas de uma conexão de entrada até esta terminar.
+     *
+     * @param socket Conexão aberta por outro nó
+     */
+    private static void read(Socket socket) {
+        try (Socket s = socket; DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
+            BinaryProtocol.Frame hello = ClusterProtocol.read(in);
+            if (hello == null || hello.opcode != ClusterProtocol.HELLO || hello.fields.length != 1 || !peers.containsKey(hello.fields[0])) {
+                System.out.println("Conexão do cluster recusada: nó desconhecido");
+                return;
+            }
+            String from = hello.fields[0];
+            BinaryProtocol.Frame frame;
+            while ((frame = ClusterProtocol.read(in)) != null) {
+                try {
+                    receive(from, frame);
+                } catch (RuntimeException e) {
+                    System.out.println("Erro ao aplicar evento do nó " + from + ": " + e);
+                }
+            }
+        } catch (IOException e) {
+            // A conexão caiu; o nó sai da vista quando deixar de enviar sinais de vida
+        }
+    }
+
+    /**
+     * Aplica um evento recebido de outro nó, sem o reenviar.
+     *
+     * @param from ID do nó que enviou o evento
+     * @param frame Trama recebida
+     */
+    private static void receive(String from, BinaryProtocol.Frame frame) {
+        String[] f = frame.fields;
+        switch (frame.opcode) {
+            case ClusterProtocol.HEARTBEAT:
+                lastHeartbeat.put(from, System.currentTimeMillis());
+                break;
+            case ClusterProtocol.ONLINE:
+                remoteUsers.put(f[0], from);
+                detachedUsers.remove(f[0]);
+                break;
+            case ClusterProtocol.OFFLINE:
+                remoteUsers.remove(f[0], from);
+                detachedUsers.remove(f[0], from);
+                break;
+            case ClusterProtocol.DETACHED:
+                remoteUsers.remove(f[0], from);
+                detachedUsers.put(f[0], from);
+                break;
+            case ClusterProtocol.DIRECT:
+                MessageStore.appendDirect(f[0], f[1], f[2]);
+                ClientHandler.receiveDirect(f[0], f[1], f[0] + ": " + f[2]);
+                break;
+            case ClusterProtocol.EMERGENCY:
+                EmergencyLane.submit(f[0], f[1]);
+                break;
+            case ClusterProtocol.CREATE_CHANNEL:
+                localChannel(f[0]);
+                break;
+            case ClusterProtocol.JOIN:
+                ServerChannels.joinChannel(f[0], localChannel(f[1]));
+                break;
+            case ClusterProtocol.LEAVE:
+                ServerChannels.leaveChannel(f[0], localChannel(f[1]));
+                break;
+            case ClusterProtocol.USER:
+                ClientHandler.addUser(f[0], f[1], f[2], Integer.parseInt(f[3]));
+                break;
+            case ClusterProtocol.REQUEST:
+                // Sem esperar pela escrita durável, para não parar a leitura das tramas deste nó
+                PendingRequests.addRequest(f[0], f[1]);
+                break;
+            case ClusterProtocol.APPROVED:
+                PendingRequests.removeRequest(f[0], f[1]);
+                break;
+            default:
+                // Mensagens de canais, passagens de canais e leituras do histórico de canais
+                ChannelOwnership.receive(from, frame);
+                break;
+        }
+    }
+
+    /**
+     * Obtém um canal, criando-o neste nó se ainda não existir (ex.: foi criado noutro nó).
+     *
+     * @param channelId ID do canal
+     * @return Canal local
+     */
+    static CommunicationChannel localChannel(String channelId) {
+        CommunicationChannel channel = ServerChannels.getChannel(channelId);
+        if (channel == null) {
+            channel = ServerChannels.createChannel(channelId);
+        }
+        return channel;
+    }
+}
@@ -0,0 +1,99 @@
+package sdtp;
+
+/**
+ * Classe que define o protocolo entre os nós do cluster.
+ * As tramas têm o mesmo formato das do protocolo binário dos clientes ([comprimento][código][campos]),
+ * mas o número de campos não é fixo por código: os campos são lidos até ao fim da trama.
+ * Cada conexão entre nós é usada num só sentido e começa com uma trama HELLO com o ID do nó que a abriu.
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+class ClusterProtocol {
+    static final int MAX_FRAME_LENGTH = BinaryProtocol.MAX_FRAME_LENGTH;
+
+    // Abertura da conexão: nó
+    static final byte HELLO = 1;
+    // Sinal de vida: nó
+    static final byte HEARTBEAT = 2;
+    // Presença: utilizador ligado ou desligado no nó emissor
+    static final byte ONLINE = 3;
+    static final byte OFFLINE = 4;
+    // Sessão desligada no nó emissor, à espera de ser retomada: utilizador. Conta como desligado, mas as mensagens
+    // diretas ficam na caixa offline desse nó, onde a sessão será retomada
+    static final byte DETACHED = 5;
+    // Mensagens: remetente, destinatário, texto / canal, remetente, texto / remetente, texto
+    static final byte DIRECT = 10;
+    // Mensagem de canal enviada ao dono do canal, que a ordena e regista
+    static final byte CHANNEL = 11;
+    static final byte EMERGENCY = 12;
+    // Mensagem de canal reencaminhada por um antigo dono; é aceite sem voltar a ser reencaminhada
+    static final byte FORWARDED = 13;
+    // Mensagem de canal já registada pelo dono, a entregar aos membros ligados ao nó que a recebe
+    static final byte DELIVER = 14;
+    // Alterações de estado: canal / utilizador, canal / utilizador, canal / utilizador, senha, perfil, nível
+    static final byte CREATE_CHANNEL = 20;
+    static final byte JOIN = 21;
+    static final byte LEAVE = 22;
+    static final byte USER = 23;
+    // Pedidos de aprovação: cliente, tipo
+    static final byte REQUEST = 24;
+    static final byte APPROVED = 25;
+    // Passagem de um canal para o novo dono: canal, membros... / canal, linhas do histórico... / canal
+    static final byte HANDOFF_BEGIN = 30;
+    static final byte HANDOFF_HISTORY = 31;
+    static final byte HANDOFF_END = 32;
+    // Leitura do histórico de um canal no seu dono: pedido, canal, cursor, limite / pedido, cursor, há mais, linhas...
+    static final byte HISTORY_QUERY = 33;
+    static final byte HISTORY_PAGE = 34;
+
+    /**
+     * Codifica uma trama.
+     *
+     * @param opcode Código da operação
+     * @param fields Campos da trama
+     * @return Bytes da trama, incluindo o comprimento
+     */
+    static byte[] encode(byte opcode, String... fields) {
+        return BinaryProtocol.encode(opcode, fields);
+    }
+
+    /**
+     * Lê a próxima trama de uma conexão entre nós.
+     *
+     * @param in Stream da conexão
+     * @return Trama lida, ou null se a conexão terminou entre tramas
+     * @throws IOException Se ocorrer um erro ao ler ou a trama for inválida
+     */
+    static BinaryProtocol.Frame read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Comprimento de trama inválido: " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        byte opcode = buffer.get();
+        List<String> fields = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            if (buffer.remaining() < 4) {
+                throw new ProtocolException("Trama truncada");
+            }
+            int fieldLength = buffer.getInt();
+            if (fieldLength < 0 || fieldLength > buffer.remaining()) {
+                throw new ProtocolException("Campo com comprimento inválido: " + fieldLength);
+            }
+            fields.add(new String(body, buffer.position(), fieldLength, StandardCharsets.UTF_8));
+            buffer.position(buffer.position() + fieldLength);
+        }
+        return new BinaryProtocol.Frame(opcode, fields.toArray(new String[0]));
+    }
+}
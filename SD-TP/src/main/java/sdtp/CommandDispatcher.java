@@ -0,0 +1,250 @@
+package sdtp;
+
+/**
+ * Classe que encaminha cada comando de texto para o respetivo tratamento.
+ * Os comandos ficam numa árvore de prefixos (trie) de caracteres ASCII, pelo que o comando é identificado numa única
+ * passagem pelo início da linha, sem copiar a linha. Os argumentos separados por ':' são entregues como uma vista
+ * sobre a linha original, e cada argumento só é copiado quando o tratamento o pede.
+ * Os comandos devem ser registados durante a inicialização, antes de a árvore ser usada por outras threads.
+ *
+ * @param <T> Tipo do objeto sobre o qual os comandos são executados
+ */
+import java.io.*;
+
+class CommandDispatcher<T> {
+    private static final int ALPHABET = 128;
+
+    /**
+     * Tratamento de um comando.
+     *
+     * @param <T> Tipo do objeto sobre o qual o comando é executado
+     */
+    interface Command<T> {
+        /**
+         * Executa o comando.
+         *
+         * @param target Objeto sobre o qual o comando é executado
+         * @param args Argumentos do comando
+         * @param out PrintWriter para responder ao cliente
+         * @throws IOException Se ocorrer um erro ao processar o comando
+         */
+        void execute(T target, Arguments args, PrintWriter out) throws IOException;
+    }
+
+    /**
+     * Vista sobre os argumentos de um comando, delimitados na linha original.
+     * Tal como split(":", n), o último argumento contém o resto da linha, incluindo eventuais ':'.
+     */
+    static final class Arguments {
+        private static final Arguments NONE = new Arguments("", 0, 0);
+
+        private final String line;
+        // bounds[2 * i] e bounds[2 * i + 1] são o início e o fim do argumento i
+        private final int[] bounds;
+        private final int count;
+
+        private Arguments(String line, int from, int arity) {
+            this.line = line;
+            this.bounds = new int[arity * 2];
+            int found = 0;
+            int start = from;
+            if (arity > 0) {
+                for (int i = from; i < line.length() && found < arity - 1; i++) {
+                    if (line.charAt(i) == ':') {
+                        bounds[2 * found] = start;
+                        bounds[2 * found + 1] = i;
+                        found++;
+                        start = i + 1;
+                    }
+                }
+                bounds[2 * found] = start;
+                bounds[2 * found + 1] = line.length();
+                found++;
+            }
+            this.count = found;
+        }
+
+        /**
+         * Obtém o número de argumentos encontrados na linha.
+         *
+         * @return Número de argumentos
+         */
+        int count() {
+            return count;
+        }
+
+        /**
+         * Obtém um argumento.
+         *
+         * @param index Posição do argumento
+         * @return Texto do argumento
+         */
+        String get(int index) {
+            if (index >= count) {
+                throw new IndexOutOfBoundsException("Argumento inexistente: " + index);
+            }
+            return line.substring(bounds[2 * index], bounds[2 * index + 1]);
+        }
+    }
+
+    /**
+     * Um comando registado: o tratamento, o número de argumentos e o formato a mostrar em caso de erro.
+     */
+    private static final class Entry<T> {
+        final String name;
+        final Command<T> command;
+        final int minArity;
+        final int maxArity;
+        final String usage;
+        // Obtido no registo, para que medir cada execução não exija procurar o comando nas métricas
+        final Histogram latency;
+
+        Entry(String name, Command<T> command, int minArity, int maxArity, String usage) {
+            this.name = name;
+            this.command = command;
+            this.minArity = minArity;
+            this.maxArity = maxArity;
+            this.usage = usage;
+            this.latency = ServerMetrics.commandLatency(name);
+        }
+    }
+
+    /**
+     * Nó da árvore de prefixos.
+     */
+    private static final class Node<T> {
+        @SuppressWarnings("unchecked")
+        final Node<T>[] children = (Node<T>[]) new Node<?>[ALPHABET];
+        Entry<T> entry;
+    }
+
+    // Comandos que ocupam a linha inteira, guardados em minúsculas e comparados sem distinguir maiúsculas
+    private final Node<T> exactRoot = new Node<>();
+    // Comandos identificados por um prefixo seguido de argumentos
+    private final Node<T> prefixRoot = new Node<>();
+
+    /**
+     * Regista um comando sem argumentos, reconhecido quando a linha inteira é igual ao nome,
+     * sem distinguir maiúsculas de minúsculas.
+     *
+     * @param name Nome do comando
+     * @param command Tratamento do comando
+     */
+    void registerExact(String name, Command<T> command) {
+        insert(exactRoot, name.toLowerCase()).entry = new Entry<>(name, command, 0, 0, name);
+    }
+
+    /**
+     * Regista um comando reconhecido por um prefixo, seguido de argumentos separados por ':'.
+     * Se vários prefixos corresponderem à linha, é usado o mais longo.
+     *
+     * @param prefix Prefixo do comando, incluindo o separador final (ex.: "mensagem:")
+     * @param arity Número de argumentos; o último contém o resto da linha
+     * @param usage Formato do comando, mostrado quando faltam argumentos
+     * @param command Tratamento do comando
+     */
+    void registerPrefix(String prefix, int arity, String usage, Command<T> command) {
+        registerPrefix(prefix, arity, arity, usage, command);
+    }
+
+    /**
+     * Regista um comando reconhecido por um prefixo, com argumentos opcionais no fim.
+     *
+     * @param prefix Prefixo do comando, incluindo o separador final
+     * @param minArity Número mínimo de argumentos
+     * @param maxArity Número máximo de argumentos; o último contém o resto da linha
+     * @param usage Formato do comando, mostrado quando faltam argumentos
+     * @param command Tratamento do comando
+     */
+    void registerPrefix(String prefix, int minArity, int maxArity, String usage, Command<T> command) {
+        if (minArity < 1 || maxArity < minArity) {
+            throw new IllegalArgumentException("Número de argumentos inválido para o comando " + prefix);
+        }
+        // O nome usado nas métricas é o prefixo sem o separador final
+        String name = prefix.endsWith(":") ? prefix.substring(0, prefix.length() - 1) : prefix;
+        insert(prefixRoot, prefix).entry = new Entry<>(name, command, minArity, maxArity, usage);
+    }
+
+    /**
+     * Identifica o comando de uma linha e executa-o, registando o tempo de execução nas métricas do servidor.
+     * Se faltarem argumentos, responde com o formato do comando em vez de o executar.
+     *
+     * @param target Objeto sobre o qual o comando é executado
+     * @param line Linha recebida do cliente
+     * @param out PrintWriter para responder ao cliente
+     * @return Verdadeiro se a linha corresponde a um comando registado
+     * @throws IOException Se ocorrer um erro ao processar o comando
+     */
+    boolean dispatch(T target, String line, PrintWriter out) throws IOException {
+        Entry<T> exact = findExact(line);
+        if (exact != null) {
+            execute(exact, target, Arguments.NONE, out);
+            return true;
+        }
+
+        Entry<T> best = null;
+        int argumentsStart = 0;
+        Node<T> node = prefixRoot;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c >= ALPHABET || (node = node.children[c]) == null) {
+                break;
+            }
+            if (node.entry != null) {
+                best = node.entry;
+                argumentsStart = i + 1;
+            }
+        }
+        if (best == null) {
+            return false;
+        }
+        Arguments args = new Arguments(line, argumentsStart, best.maxArity);
+        if (args.count() < best.minArity) {
+            out.println("Formato inválido. Use: " + best.usage);
+            return true;
+        }
+        execute(best, target, args, out);
+        return true;
+    }
+
+    private static <T> void execute(Entry<T> entry, T target, Arguments args, PrintWriter out) throws IOException {
+        long start = System.nanoTime();
+        try {
+            entry.command.execute(target, args, out);
+        } finally {
+            entry.latency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Procura um comando sem argumentos igual à linha inteira, sem distinguir maiúsculas de minúsculas.
+     *
+     * @param line Linha recebida do cliente
+     * @return Comando encontrado, ou null
+     */
+    private Entry<T> findExact(String line) {
+        Node<T> node = exactRoot;
+        for (int i = 0; i < line.length(); i++) {
+            char c = Character.toLowerCase(line.charAt(i));
+            if (c >= ALPHABET || (node = node.children[c]) == null) {
+                return null;
+            }
+        }
+        return node.entry;
+    }
+
+    private static <T> Node<T> insert(Node<T> root, String key) {
+        Node<T> node = root;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c >= ALPHABET) {
+                throw new IllegalArgumentException("Os comandos só podem conter caracteres ASCII: " + key);
+            }
+            if (node.children[c] == null) {
+                node.children[c] = new Node<>();
+            }
+            node = node.children[c];
+        }
+        return node;
+    }
+}
@@ -0,0 +1,113 @@
+package sdtp;
+
+/**
+ * Classe que representa um canal de comunicação entre clientes.
+ * Permite a criação de canais, adicião e remoção de membros, e a transmissão de mensagens entre os membros.
+ * Os membros são guardados pelo seu número de utilizador (IdTable.USERS) num conjunto de inteiros,
+ * e a difusão encontra cada destinatário no array de encaminhamento dos clientes, sem comparar texto.
+ */
+import java.util.*;
+
+class CommunicationChannel {
+    static final String CHANNELS_FILE = DataFiles.path("channels.txt");
+    // A partir deste número de membros a entrega é repartida pelos processadores (ForkJoinPool comum)
+    static final long PARALLEL_FANOUT_THRESHOLD = 4096;
+    private final String channelId;
+    private final int channelIndex;
+    private final IntSet members = new IntSet();
+
+    /**
+     * Construtor da classe CommunicationChannel.
+     * 
+     * @param channelId ID do canal a ser criado
+     */
+    public CommunicationChannel(String channelId) {
+        this.channelId = channelId;
+        this.channelIndex = IdTable.CHANNELS.intern(channelId);
+    }
+
+    /**
+     * Obtém o ID do canal.
+     * 
+     * @return ID do canal
+     */
+    public String getChannelId() {
+        return this.channelId;
+    }
+
+    /**
+     * Obtém o número do canal.
+     * 
+     * @return Número do canal em IdTable.CHANNELS
+     */
+    int getChannelIndex() {
+        return channelIndex;
+    }
+
+    /**
+     * Obtém os membros do canal.
+     * 
+     * @return Cópia dos IDs dos membros
+     */
+    public Set<String> getMembers() {
+        int[] indexes = members.toArray();
+        Set<String> ids = new HashSet<>(indexes.length * 2);
+        for (int index : indexes) {
+            ids.add(IdTable.USERS.name(index));
+        }
+        return ids;
+    }
+
+    /**
+     * Adiciona um membro ao canal.
+     * 
+     * @param clientId ID do cliente a ser adicionado ao canal
+     */
+    public void addMember(String clientId) {
+        members.add(IdTable.USERS.intern(clientId));
+    }
+
+    /**
+     * Remove um membro do canal.
+     * 
+     * @param clientId ID do cliente a ser removido do canal
+     */
+    public void removeMember(String clientId) {
+        int index = IdTable.USERS.find(clientId);
+        if (index >= 0) {
+            members.remove(index);
+        }
+    }
+
+    /**
+     * Transmite uma mensagem para todos os membros do canal, exceto o remetente.
+     * A mensagem é codificada uma única vez por formato e os mesmos bytes são colocados na fila de cada destinatário.
+     * Em canais muito grandes, a entrega é repartida pelos processadores disponíveis.
+     * 
+     * @param senderId ID do remetente da mensagem
+     * @param message Mensagem a ser transmitida
+     */
+    public void broadcastMessage(String senderId, String message) {
+        Map<WireFormat, byte[]> payloads = WireFormat.encodeAll("Mensagem recebida de " + senderId + " (canal " + channelId + "): " + message);
+        ServerMetrics.recordFanout(members.size());
+        int sender = IdTable.USERS.find(senderId);
+        members.forEach(PARALLEL_FANOUT_THRESHOLD, member -> {
+            if (member != sender) {
+                ClientHandler client = ClientHandler.route(member);
+                if (client != null) {
+                    client.deliver(payloads);
+                }
+            }
+        });
+    }
+
+    /**
+     * Verifica se um cliente é membro do canal.
+     * 
+     * @param clientId ID do cliente
+     * @return Verdadeiro se o cliente é membro do canal, falso caso contrário
+     */
+    public boolean isMember(String clientId) {
+        return members.contains(IdTable.USERS.find(clientId));
+    }
+}
@@ -0,0 +1,23 @@
+package sdtp;
+
+/**
+ * Classe que indica onde ficam os ficheiros de dados do servidor (utilizadores, canais e registos).
+ * Por omissão são usados os ficheiros da diretoria atual; a propriedade de sistema sdtp.data.dir
+ * indica outra diretoria, o que permite, por exemplo, correr os benchmarks sobre dados gerados.
+ */
+import java.nio.file.*;
+
+class DataFiles {
+    static final String DIRECTORY_PROPERTY = "sdtp.data.dir";
+
+    /**
+     * Obtém o caminho de um ficheiro de dados.
+     *
+     * @param fileName Nome do ficheiro
+     * @return Caminho do ficheiro na diretoria de dados
+     */
+    static String path(String fileName) {
+        String directory = System.getProperty(DIRECTORY_PROPERTY);
+        return directory == null ? fileName : Paths.get(directory, fileName).toString();
+    }
+}
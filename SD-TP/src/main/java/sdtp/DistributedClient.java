@@ -0,0 +1,228 @@
+package sdtp;
+
+/**
+ * Classe que representa um cliente distribuído que se conecta a um servidor.
+ * O cliente comunica-se com o servidor através de sockets e permite a troca de mensagens.
+ * Por omissão usa o protocolo de texto; com o argumento "binario" negocia o protocolo binário
+ * e converte cada comando escrito pelo utilizador na trama correspondente.
+ * A conexão não depende da consola: o ID, a senha e os comandos podem ser enviados por outro programa
+ * (ex.: o gerador de carga), que recebe as respostas do servidor através de um listener.
+ * Os comandos são colocados numa fila de saída e escritos por um escritor próprio, que junta os comandos pendentes
+ * numa única escrita no socket: quem envia não espera pela rede nem pelas respostas do servidor.
+ * Na consola, o cliente usa o AsyncClient, que recebe uma lista de servidores (primário e standby),
+ * volta a ligar-se quando a conexão cai e retoma a sessão sem voltar a ler todo o histórico.
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+class DistributedClient {
+    private final Socket socket;
+    private final BufferedReader in;
+    private final DataInputStream frameIn;
+    private final OutboundQueue outbound;
+    private final boolean binary;
+    private final String clientId;
+    private final Consumer<String> listener;
+    private volatile boolean closed;
+
+    /**
+     * Construtor da classe DistributedClient.
+     * 
+     * @param address Endereço do servidor ao qual o cliente deve se conectar
+     * @param port Porta do servidor ao qual o cliente deve se conectar
+     * @param binary Se verdadeiro, usa o protocolo binário
+     * @param clientId ID do utilizador
+     * @param listener Recebe cada linha enviada pelo servidor, na thread de leitura
+     * @throws IOException Se ocorrer um erro ao estabelecer a conexão com o servidor ou a negociação falhar
+     */
+    public DistributedClient(String address, int port, boolean binary, String clientId, Consumer<String> listener) throws IOException {
+        this.socket = new Socket(address, port);
+        this.socket.setTcpNoDelay(true);
+        this.clientId = clientId;
+        this.listener = listener;
+        this.binary = binary;
+        if (binary) {
+            this.in = null;
+            this.frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            socket.getOutputStream().write(BinaryProtocol.hello(BinaryProtocol.VERSION));
+            if (BinaryProtocol.readHello(frameIn) < 0) {
+                socket.close();
+                throw new IOException("O servidor não suporta a versão " + BinaryProtocol.VERSION + " do protocolo binário");
+            }
+            this.outbound = new OutboundQueue(socket.getOutputStream());
+        } else {
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.frameIn = null;
+            this.outbound = new OutboundQueue(socket.getOutputStream());
+            // No protocolo binário, o ID é enviado com a senha na trama LOGIN
+            sendLine(clientId);
+        }
+    }
+
+    /**
+     * Começa a receber as mensagens do servidor, entregando cada linha ao listener.
+     * 
+     * @param executor Executor onde corre a leitura da conexão, até esta terminar
+     */
+    public void listen(Executor executor) {
+        listen(executor, () -> {
+        });
+    }
+
+    /**
+     * Começa a receber as mensagens do servidor, entregando cada linha ao listener.
+     * 
+     * @param executor Executor onde corre a leitura da conexão, até esta terminar
+     * @param onDisconnect Chamado quando a conexão termina sem ter sido fechada por este cliente
+     */
+    public void listen(Executor executor, Runnable onDisconnect) {
+        executor.execute(() -> {
+            try {
+                if (frameIn != null) {
+                    BinaryProtocol.Frame frame;
+                    while ((frame = BinaryProtocol.read(frameIn)) != null) {
+                        listener.accept(frame.fields[0]);
+                    }
+                } else {
+                    String serverResponse;
+                    while ((serverResponse = in.readLine()) != null) {
+                        listener.accept(serverResponse);
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    listener.accept("Desconectado do servidor: " + e.getMessage());
+                }
+            }
+            // O escritor também fecha o socket quando uma escrita falha; só o close() deste cliente é intencional
+            if (!closed) {
+                release();
+                onDisconnect.run();
+            }
+        });
+    }
+
+    /**
+     * Envia a senha para autenticar o utilizador.
+     * 
+     * @param password Senha do utilizador
+     * @throws IOException Se ocorrer um erro ao escrever no socket
+     */
+    public void login(String password) throws IOException {
+        if (binary) {
+            send(BinaryProtocol.encode(BinaryProtocol.LOGIN, clientId, password));
+        } else {
+            sendLine(password);
+        }
+    }
+
+    /**
+     * Envia um comando, escrito no formato do protocolo de texto.
+     * No protocolo binário, o comando é convertido na trama correspondente.
+     * O comando é apenas colocado na fila de saída; a escrita no socket é feita pelo escritor da conexão.
+     * 
+     * @param command Comando a enviar
+     * @throws IOException Se a conexão já tiver terminado
+     */
+    public void send(String command) throws IOException {
+        if (binary) {
+            send(BinaryProtocol.encodeCommand(command));
+        } else {
+            sendLine(command);
+        }
+    }
+
+    /**
+     * Indica se a conexão continua aberta para escrita.
+     * 
+     * @return Verdadeiro se ainda é possível enviar comandos
+     */
+    public boolean isOpen() {
+        return !outbound.isClosed() && !socket.isClosed();
+    }
+
+    /**
+     * Fecha a conexão com o servidor.
+     */
+    public void close() {
+        closed = true;
+        release();
+    }
+
+    private void release() {
+        outbound.close();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // A conexão já estava fechada
+        }
+    }
+
+    /**
+     * Obtém o ID do utilizador.
+     * 
+     * @return ID do utilizador
+     */
+    public String getClientId() {
+        return clientId;
+    }
+
+    private void sendLine(String line) throws IOException {
+        send((line + System.lineSeparator()).getBytes(Charset.defaultCharset()));
+    }
+
+    /**
+     * Coloca bytes na fila de saída. Pode ser chamado por várias threads.
+     * 
+     * @param frame Bytes de uma linha ou trama
+     * @throws IOException Se a conexão já tiver terminado
+     */
+    private void send(byte[] frame) throws IOException {
+        if (!isOpen()) {
+            throw new IOException("Conexão com o servidor terminada");
+        }
+        outbound.enqueue(frame);
+    }
+
+    /**
+     * Método principal que cria um cliente e inicia a comunicação com o servidor.
+     * O servidor é localhost:12345, ou localhost na porta indicada pela propriedade sdtp.port (ex.: outro nó do cluster).
+     * A propriedade sdtp.servers (host:porta,host:porta) indica vários servidores, usados por ordem quando a conexão cai.
+     * 
+     * @param args Argumentos da linha de comando: "binario" para usar o protocolo binário
+     */
+    public static void main(String[] args) {
+        List<InetSocketAddress> servers = new ArrayList<>();
+        String list = System.getProperty("sdtp.servers", "localhost:" + Integer.getInteger("sdtp.port", 12345));
+        for (String entry : list.split(",")) {
+            String[] parts = entry.trim().split(":");
+            servers.add(InetSocketAddress.createUnresolved(parts[0], Integer.parseInt(parts[1])));
+        }
+        try (Scanner console = new Scanner(System.in)) {
+            boolean binary = args.length > 0 && "binario".equalsIgnoreCase(args[0]);
+            System.out.println("Por favor, insira seu nome de utilizador:");
+            String clientId = console.nextLine();
+            System.out.println("Insira sua senha para autenticacao:");
+            String password = console.nextLine();
+            AsyncClient client = new AsyncClient(servers, binary, clientId, password, System.out::println);
+            client.start();
+            System.out.println("Digite 'ajuda' para ver os comandos disponiveis.");
+            while (console.hasNextLine()) {
+                String command = console.nextLine();
+                client.send(command).exceptionally(error -> {
+                    System.out.println("Erro ao enviar para o servidor: " + error.getMessage());
+                    return null;
+                });
+                if ("sair".equals(command)) {
+                    // O servidor fecha a conexão depois de responder
+                    return;
+                }
+            }
+            client.close();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,175 @@
+package sdtp;
+
+/**
+ * Classe que representa um servidor distribuído para comunicação de emergência.
+ * O servidor aceita conexões de clientes e permite a troca de mensagens entre eles.
+ * Também gera relatórios periódicos com as métricas do servidor.
+ * Vários servidores podem formar um cluster (ver Cluster), e os clientes podem ligar-se a qualquer um deles.
+ * Cada servidor pode ter um standby que recebe continuamente os seus registos e o substitui se falhar (ver Replication).
+ */
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.time.*;
+
+public class DistributedServer {
+    private static final int PORT = Integer.getInteger("sdtp.port", 12345);
+    private static final String NIO_MODE = "nio";
+    private static final String VIRTUAL_MODE = "virtual";
+    private static final String REPORTS_FILE = DataFiles.path("periodic_reports.log");
+
+    /**
+     * Método principal que inicia o servidor e gere as conexões dos clientes.
+     * Cria um pool de threads para lidar com as conexões dos clientes e um agendador para relatórios periódicos.
+     * Com o argumento "nio", as conexões são tratadas por event loops não bloqueantes em vez do pool de threads.
+     * Com o argumento "virtual", cada cliente corre na sua própria thread virtual, sem limite de conexões;
+     * este modo precisa de Java 21 ou superior, e o servidor termina com erro numa JVM sem threads virtuais.
+     * Os ficheiros de dados são os da diretoria atual, ou os da diretoria indicada pela propriedade sdtp.data.dir.
+     * A porta dos clientes é a 12345, ou a indicada pela propriedade sdtp.port.
+     * Com a propriedade sdtp.standby.of, o servidor começa como standby desse primário e só aceita clientes
+     * quando o primário deixar de responder.
+     * 
+     * @param args Argumentos da linha de comando
+     */
+    public static void main(String[] args) {
+        String mode = args.length > 0 ? args[0] : "";
+        if (VIRTUAL_MODE.equalsIgnoreCase(mode) && !virtualThreadsAvailable()) {
+            // Sem threads virtuais o modo seria uma thread de plataforma por conexão, que não é o que se pediu
+            System.err.println("O modo virtual precisa de threads virtuais (Java 21 ou superior); esta JVM é Java "
+                    + Runtime.version().feature() + ". Use o modo nio ou o pool por omissão.");
+            System.exit(1);
+        }
+        // O estado só é carregado depois de o standby estar sincronizado, pelo que isto vem antes de tudo o resto
+        if (Replication.isStandby()) {
+            Replication.runStandby();
+        }
+        ClientHandler.loadState();
+        try {
+            Replication.start();
+            Cluster.start();
+        } catch (IOException e) {
+            System.out.println("Erro ao iniciar o servidor: " + e.getMessage());
+            return;
+        }
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+
+        // Agendar relatórios periódicos a cada 60 segundos
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                generatePeriodicReport();
+            } catch (IOException e) {
+                System.out.println("Erro ao gerar relatório periódico: " + e.getMessage());
+            }
+        }, 0, 60, TimeUnit.SECONDS);
+        if (Snapshot.INTERVAL_SECONDS > 0) {
+            scheduler.scheduleWithFixedDelay(Snapshot::writePeriodic,
+                    Snapshot.INTERVAL_SECONDS, Snapshot.INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+
+        if (NIO_MODE.equalsIgnoreCase(mode)) {
+            serveNio();
+        } else if (VIRTUAL_MODE.equalsIgnoreCase(mode)) {
+            serveThreadPool(newVirtualThreadExecutor());
+        } else {
+            serveThreadPool(Executors.newFixedThreadPool(10));
+        }
+    }
+
+    /**
+     * Indica se a JVM tem threads virtuais (Java 21 ou superior). O código é compilado para Java 17,
+     * pelo que as threads virtuais só são usadas quando o servidor corre numa JVM mais recente.
+     * 
+     * @return Verdadeiro se existe Executors.newVirtualThreadPerTaskExecutor
+     */
+    static boolean virtualThreadsAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Cria um executor com uma thread virtual por tarefa.
+     * O método é obtido por reflexão para que o servidor continue a compilar para Java 17.
+     * 
+     * @return Executor com uma thread virtual por tarefa
+     * @throws UnsupportedOperationException Se a JVM não tiver threads virtuais (ver virtualThreadsAvailable)
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Threads virtuais não disponíveis nesta JVM (Java "
+                    + Runtime.version().feature() + ")", e);
+        }
+    }
+
+    /**
+     * Cria um executor com uma thread por tarefa: virtual, se a JVM as tiver, ou de plataforma.
+     * Usado onde as threads virtuais são apenas uma otimização (ex.: os comandos do modo nio).
+     * 
+     * @return Executor com uma thread por tarefa
+     */
+    static ExecutorService newThreadPerTaskExecutor() {
+        return virtualThreadsAvailable() ? newVirtualThreadExecutor() : Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Aceita conexões e trata cada cliente numa thread do executor indicado.
+     * 
+     * @param pool Executor onde correm os ClientHandler
+     */
+    private static void serveThreadPool(ExecutorService pool) {
+        ExecutorService handshakes = LoginHandshake.newExecutor();
+        ServerMetrics.registerPool("handshakes", handshakes);
+        ServerMetrics.registerPool("sessoes", pool);
+
+        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
+            System.out.println("=== Servidor de Emergencia Distribuida Iniciado na Porta " + PORT + " ===");
+
+            // Aceitar conexões de clientes; o login é feito no executor de handshakes
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                ServerMetrics.recordAccept();
+                handshakes.execute(new LoginHandshake(clientSocket, System.nanoTime(), pool));
+            }
+        } catch (IOException e) {
+            System.err.println("Erro no servidor: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Aceita conexões e trata todos os clientes em event loops não bloqueantes, um por processador.
+     */
+    private static void serveNio() {
+        try {
+            NioServer server = new NioServer(PORT, Runtime.getRuntime().availableProcessors());
+            System.out.println("=== Servidor de Emergencia Distribuida (NIO) Iniciado na Porta " + PORT + " ===");
+            server.serve();
+        } catch (IOException e) {
+            System.err.println("Erro no servidor: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gera relatórios periódicos com as métricas do servidor.
+     * Regista um resumo de tamanho fixo (sem a lista de clientes) e o tempo em que o relatório foi gerado.
+     * 
+     * @throws IOException Se ocorrer um erro ao escrever o relatório no ficheiro
+     */
+    private static void generatePeriodicReport() throws IOException {
+        String report = "Relatório Periódico - " + LocalDateTime.now() + System.lineSeparator()
+                + String.join(System.lineSeparator(), ServerMetrics.snapshot()) + System.lineSeparator()
+                + "-----------------------------";
+        try {
+            Journal.append(REPORTS_FILE, report).join();
+        } catch (CompletionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+}
\ No newline at end of file
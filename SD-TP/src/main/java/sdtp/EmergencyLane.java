@@ -0,0 +1,96 @@
+package sdtp;
+
+/**
+ * Classe que entrega as mensagens de emergência numa via própria, separada do tráfego normal.
+ * Quem envia a emergência apenas a coloca na fila desta via; uma thread dedicada, de prioridade máxima,
+ * codifica a mensagem uma única vez, coloca uma cópia à frente da fila de saída de cada utilizador ligado
+ * (passando à frente das mensagens normais ainda por enviar) e regista-a uma única vez no histórico.
+ * Aqui só é medido o tempo até à colocação nas filas (visível nas métricas), que não inclui a escrita nas conexões;
+ * o alvo é para a latência de entrega ponta a ponta, verificada sob carga pelo EmergencyLatencyCheck e pelo LoadGenerator.
+ */
+import java.util.*;
+import java.util.concurrent.*;
+
+class EmergencyLane {
+    // Alvo para o percentil 99 da latência de entrega de uma emergência a todos os utilizadores ligados
+    static final long TARGET_MILLIS = Long.getLong("sdtp.emergency.targetMs", 100);
+
+    private static final BlockingQueue<Emergency> queue = new LinkedBlockingQueue<>();
+    // Tempo entre a submissão e a colocação nas filas de saída de todos os utilizadores ligados
+    private static final Histogram enqueueLatency = new Histogram();
+
+    /**
+     * Uma emergência à espera de ser entregue.
+     */
+    private static final class Emergency {
+        final String senderId;
+        final String message;
+        final long submitted = System.nanoTime();
+
+        Emergency(String senderId, String message) {
+            this.senderId = senderId;
+            this.message = message;
+        }
+    }
+
+    static {
+        Thread thread = new Thread(EmergencyLane::deliverLoop, "emergency-lane");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Coloca uma mensagem de emergência na via, para ser entregue aos utilizadores ligados a este servidor.
+     *
+     * @param senderId ID do remetente
+     * @param message Mensagem de emergência
+     */
+    static void submit(String senderId, String message) {
+        queue.add(new Emergency(senderId, message));
+    }
+
+    /**
+     * Produz uma linha de resumo para as métricas.
+     *
+     * @return Linha com o número de emergências e o tempo até às filas de saída; o alvo ponta a ponta não é medido aqui
+     */
+    static String summary() {
+        return "Emergencias: " + enqueueLatency.count() + " colocadas nas filas, tempo ate as filas de saida "
+                + enqueueLatency.formatMillis() + " | alvo p99 ponta a ponta " + TARGET_MILLIS
+                + "ms (medido pelo EmergencyLatencyCheck, nao aqui)";
+    }
+
+    private static void deliverLoop() {
+        while (true) {
+            Emergency emergency;
+            try {
+                emergency = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                deliver(emergency);
+            } catch (RuntimeException e) {
+                System.out.println("Erro ao entregar a mensagem de emergência: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Entrega uma emergência: uma cópia por utilizador ligado, partilhada entre todos, e um único registo.
+     *
+     * @param emergency Emergência a entregar
+     */
+    private static void deliver(Emergency emergency) {
+        Map<WireFormat, byte[]> payloads =
+                WireFormat.encodeAll("[EMERGÊNCIA] Mensagem de " + emergency.senderId + ": " + emergency.message);
+        Collection<ClientHandler> recipients = ClientHandler.clients.values();
+        for (ClientHandler client : recipients) {
+            client.deliverUrgent(payloads);
+        }
+        enqueueLatency.record(System.nanoTime() - emergency.submitted);
+        ServerMetrics.recordFanout(recipients.size());
+        MessageStore.appendEmergency(emergency.senderId, emergency.message);
+    }
+}
@@ -0,0 +1,73 @@
+package sdtp;
+
+/**
+ * Classe que representa um anel de hashing consistente sobre um conjunto de nós.
+ * Cada nó ocupa vários pontos do anel (nós virtuais) e cada chave pertence ao primeiro ponto a seguir ao seu hash.
+ * Quando um nó entra ou sai, só mudam de dono as chaves dos intervalos que esse nó ganha ou perde.
+ * O anel é imutável: uma alteração da vista do cluster cria um anel novo.
+ */
+import java.nio.charset.*;
+import java.security.*;
+import java.util.*;
+
+class HashRing {
+    // Pontos por nó: com poucos nós, mais pontos repartem as chaves de forma mais uniforme
+    static final int VIRTUAL_NODES = 128;
+
+    private final NavigableMap<Integer, String> points = new TreeMap<>();
+    private final Set<String> nodes;
+
+    /**
+     * Construtor da classe HashRing.
+     *
+     * @param nodes IDs dos nós do anel
+     */
+    HashRing(Collection<String> nodes) {
+        this.nodes = Collections.unmodifiableSet(new TreeSet<>(nodes));
+        for (String node : this.nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * Obtém os nós do anel.
+     *
+     * @return Conjunto ordenado dos IDs dos nós
+     */
+    Set<String> nodes() {
+        return nodes;
+    }
+
+    /**
+     * Obtém o nó dono de uma chave. Não é guardado: as chaves incluem os IDs escritos pelos clientes, mesmo
+     * os inválidos, e a procura (um MD5 e um ceilingEntry sobre VIRTUAL_NODES pontos por nó) já é barata.
+     *
+     * @param key Chave (ex.: ID de um canal)
+     * @return ID do nó dono, ou null se o anel estiver vazio
+     */
+    String owner(String key) {
+        if (points.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Integer, String> entry = points.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : points.firstEntry().getValue();
+    }
+
+    /**
+     * Calcula a posição de um texto no anel: os primeiros 4 bytes do seu MD5.
+     * O MD5 é usado pela sua distribuição uniforme, não como proteção.
+     *
+     * @param text Texto a posicionar
+     * @return Posição no anel
+     */
+    private static int hash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(text.getBytes(StandardCharsets.UTF_8));
+            return (digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16 | (digest[2] & 0xff) << 8 | (digest[3] & 0xff);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 não disponível", e);
+        }
+    }
+}
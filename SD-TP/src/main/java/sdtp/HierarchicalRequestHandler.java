@@ -1,13 +1,15 @@
+package sdtp;
+
 /**
  * Classe que gere as solicitações hierárquicas de aprovação de operações de emergência.
  * Permite aprovar ou negar solicitações com base no nível hierárquico dos utilizadores.
  */
-import java.io.*;
 import java.util.*;
 
 class HierarchicalRequestHandler {
 
-    private static final String APPROVALS_LOG = "approvals.log";
+    // Ficheiro próprio para as decisões, para não misturar outro formato com a fila de pedidos em approvals.log
+    private static final String DECISIONS_LOG = DataFiles.path("approval_decisions.log");
     /**
      * Aprova ou nega uma solicitação com base no tipo de operação e no nível do utilizador.
      * 
@@ -41,19 +43,18 @@ class HierarchicalRequestHandler {
     
 
     /**
-     * Regista a aprovação ou negação de uma solicitação no ficheiro de registo.
+     * Regista a aprovação ou negação de uma solicitação no ficheiro de registo, sem esperar pela sincronização.
      * 
      * @param clientId ID do cliente que fez a solicitação
      * @param requestType Tipo de operação solicitada
      * @param approved Verdadeiro se a solicitação foi aprovada, falso se foi negada
      */
     private static void logApproval(String clientId, String requestType, boolean approved) {
-        try (FileWriter fw = new FileWriter(APPROVALS_LOG, true);
-             BufferedWriter bw = new BufferedWriter(fw);
-             PrintWriter out = new PrintWriter(bw)) {
-            out.println("Cliente: " + clientId + " Solicitacao: " + requestType + " Aprovado: " + approved);
-        } catch (IOException e) {
-            System.out.println("Erro ao registrar a aprovacao: " + e.getMessage());
-        }
+        String line = "Cliente: " + clientId + " Solicitacao: " + requestType + " Aprovado: " + approved;
+        Journal.append(DECISIONS_LOG, line, true).whenComplete((ignored, error) -> {
+            if (error != null) {
+                System.out.println("Erro ao registrar a aprovacao: " + error.getMessage());
+            }
+        });
     }
 }
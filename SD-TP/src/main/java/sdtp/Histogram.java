@@ -0,0 +1,122 @@
+package sdtp;
+
+/**
+ * Histograma de valores não negativos (latências em nanossegundos, tamanhos) com escalões em potências de 2.
+ * Cada registo custa apenas o incremento de dois LongAdder, pelo que pode ser usado nos caminhos mais frequentes.
+ * Os percentis são aproximados pelo limite superior do escalão, ou seja, com um erro até ao dobro do valor real.
+ */
+import java.util.concurrent.atomic.*;
+
+class Histogram {
+    private static final int BUCKETS = 64;
+
+    // buckets[i] conta os valores v com 2^(i-1) <= v < 2^i; buckets[0] conta os zeros
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+    Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Regista um valor.
+     *
+     * @param value Valor a registar; valores negativos são contados como zero
+     */
+    void record(long value) {
+        long v = Math.max(0, value);
+        buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(v))].increment();
+        count.increment();
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+    /**
+     * Obtém o número de valores registados.
+     *
+     * @return Número de valores
+     */
+    long count() {
+        return count.sum();
+    }
+
+    /**
+     * Obtém a soma dos valores registados.
+     *
+     * @return Soma dos valores
+     */
+    long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * Obtém o maior valor registado.
+     *
+     * @return Maior valor, ou 0 se não houver registos
+     */
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * Obtém a média dos valores registados.
+     *
+     * @return Média, ou 0 se não houver registos
+     */
+    double mean() {
+        long n = count();
+        return n > 0 ? sum() / (double) n : 0;
+    }
+
+    /**
+     * Estima um percentil dos valores registados.
+     *
+     * @param percentile Percentil entre 0 e 1 (ex.: 0.99)
+     * @return Limite superior do escalão que contém o percentil, sem exceder o máximo registado
+     */
+    long percentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * percentile));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                long upper = i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                return Math.min(upper, max());
+            }
+        }
+        return max();
+    }
+
+    /**
+     * Resume o histograma de latências em milissegundos.
+     *
+     * @return Texto com o número de registos, a média, p50, p99 e o máximo
+     */
+    String formatMillis() {
+        return String.format("n=%d media=%.3fms p50=%.3fms p99=%.3fms max=%.3fms", count(), mean() / 1_000_000.0,
+                percentile(0.5) / 1_000_000.0, percentile(0.99) / 1_000_000.0, max() / 1_000_000.0);
+    }
+
+    /**
+     * Resume o histograma de tamanhos.
+     *
+     * @return Texto com o número de registos, a média, p50, p99 e o máximo
+     */
+    String formatValues() {
+        return String.format("n=%d media=%.1f p50=%d p99=%d max=%d", count(), mean(), percentile(0.5),
+                percentile(0.99), max());
+    }
+}
@@ -0,0 +1,78 @@
+package sdtp;
+
+/**
+ * Tabela que atribui a cada ID de utilizador ou de canal um número inteiro, pela ordem em que aparecem (0, 1, 2, ...).
+ * Os utilizadores são registados no carregamento e no login, os canais na criação; a partir daí, os membros
+ * dos canais e o encaminhamento das mensagens usam os números, em arrays e conjuntos de inteiros,
+ * e o texto do ID só é comparado uma vez por comando.
+ * Um número atribuído nunca muda nem é reutilizado.
+ */
+import java.util.*;
+import java.util.concurrent.*;
+
+class IdTable {
+    static final IdTable USERS = new IdTable();
+    static final IdTable CHANNELS = new IdTable();
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[64];
+    private int size;
+
+    /**
+     * Obtém o número de um ID, atribuindo-lhe o seguinte se ainda não tiver um.
+     *
+     * @param name ID do utilizador ou do canal
+     * @return Número do ID
+     */
+    int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(name);
+            if (id != null) {
+                return id;
+            }
+            String[] current = names;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, size * 2);
+            }
+            current[size] = name;
+            names = current;
+            // O nome fica no array antes de o número ser visível para as outras threads
+            ids.put(name, size);
+            return size++;
+        }
+    }
+
+    /**
+     * Obtém o número de um ID, sem o registar.
+     *
+     * @param name ID do utilizador ou do canal
+     * @return Número do ID, ou -1 se ainda não tiver um
+     */
+    int find(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Obtém o ID a que foi atribuído um número.
+     *
+     * @param id Número obtido com intern
+     * @return ID do utilizador ou do canal
+     */
+    String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * Obtém o número de IDs registados, que é também o número seguinte a atribuir.
+     *
+     * @return Número de IDs
+     */
+    int size() {
+        return ids.size();
+    }
+}
@@ -0,0 +1,81 @@
+package sdtp;
+
+/**
+ * Lista de inteiros sem objetos por elemento, usada pelos índices em memória do servidor.
+ * Não é thread-safe; quem a partilha entre threads deve protegê-la com um lock.
+ */
+import java.util.*;
+
+class IntList {
+    private int[] values;
+    private int size;
+
+    /**
+     * Construtor da classe IntList.
+     *
+     * @param initialCapacity Capacidade inicial da lista
+     */
+    IntList(int initialCapacity) {
+        this.values = new int[Math.max(1, initialCapacity)];
+    }
+
+    /**
+     * Adiciona um valor ao fim da lista.
+     *
+     * @param value Valor a adicionar
+     */
+    void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    /**
+     * Obtém o valor numa posição da lista.
+     *
+     * @param index Posição do valor
+     * @return Valor na posição indicada
+     */
+    int get(int index) {
+        return values[index];
+    }
+
+    /**
+     * Obtém o número de valores na lista.
+     *
+     * @return Tamanho da lista
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Procura, numa lista ordenada, a primeira posição com um valor maior ou igual ao indicado.
+     *
+     * @param value Valor a procurar
+     * @return Posição encontrada, ou o tamanho da lista se todos os valores forem menores
+     */
+    int lowerBound(int value) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Copia os valores da lista para um novo array.
+     *
+     * @return Array com os valores da lista
+     */
+    int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
@@ -0,0 +1,194 @@
+package sdtp;
+
+/**
+ * Conjunto de inteiros não negativos sem objetos por elemento (endereçamento aberto com sondagem linear),
+ * usado para os membros de cada canal e os canais de cada utilizador, guardados pelo seu número (ver IdTable).
+ * As alterações são feitas com o lock do conjunto; as leituras não usam lock e veem cada posição da tabela
+ * como estava antes ou depois de uma alteração, como as vistas de um ConcurrentHashMap.
+ * Os elementos removidos ficam marcados até a tabela ser reconstruída, para que as leituras não os percam de vista.
+ */
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+class IntSet {
+    private static final int EMPTY = -1;
+    private static final int REMOVED = -2;
+    private static final int MIN_CAPACITY = 4;
+
+    private volatile AtomicIntegerArray table = newTable(MIN_CAPACITY);
+    private volatile int size;
+    // Posições ocupadas, incluindo as marcadas como removidas
+    private int used;
+
+    /**
+     * Adiciona um valor ao conjunto.
+     *
+     * @param value Valor não negativo
+     * @return Verdadeiro se o valor foi adicionado, falso se já estava no conjunto
+     */
+    synchronized boolean add(int value) {
+        if (contains(value)) {
+            return false;
+        }
+        if ((used + 1) * 4 > table.length() * 3) {
+            rebuild(size + 1);
+        }
+        AtomicIntegerArray current = table;
+        int mask = current.length() - 1;
+        int slot = slot(value, mask);
+        while (current.get(slot) >= 0) {
+            slot = (slot + 1) & mask;
+        }
+        if (current.get(slot) == EMPTY) {
+            used++;
+        }
+        current.set(slot, value);
+        size++;
+        return true;
+    }
+
+    /**
+     * Remove um valor do conjunto.
+     *
+     * @param value Valor a remover
+     * @return Verdadeiro se o valor estava no conjunto
+     */
+    synchronized boolean remove(int value) {
+        AtomicIntegerArray current = table;
+        int mask = current.length() - 1;
+        for (int slot = slot(value, mask); ; slot = (slot + 1) & mask) {
+            int found = current.get(slot);
+            if (found == EMPTY) {
+                return false;
+            }
+            if (found == value) {
+                current.set(slot, REMOVED);
+                size--;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Verifica se um valor está no conjunto.
+     *
+     * @param value Valor a procurar
+     * @return Verdadeiro se o valor está no conjunto
+     */
+    boolean contains(int value) {
+        if (value < 0) {
+            return false;
+        }
+        AtomicIntegerArray current = table;
+        int mask = current.length() - 1;
+        for (int slot = slot(value, mask); ; slot = (slot + 1) & mask) {
+            int found = current.get(slot);
+            if (found == EMPTY) {
+                return false;
+            }
+            if (found == value) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Obtém o número de valores no conjunto.
+     *
+     * @return Tamanho do conjunto
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Executa uma ação para cada valor do conjunto. A partir do número de valores indicado, a tabela é repartida
+     * pelos processadores (ForkJoinPool comum) e a ação pode correr em várias threads ao mesmo tempo.
+     *
+     * @param parallelThreshold Número de valores a partir do qual a ação corre em paralelo
+     * @param action Ação a executar
+     */
+    void forEach(long parallelThreshold, IntConsumer action) {
+        AtomicIntegerArray current = table;
+        if (size < parallelThreshold) {
+            for (int slot = 0; slot < current.length(); slot++) {
+                int value = current.get(slot);
+                if (value >= 0) {
+                    action.accept(value);
+                }
+            }
+            return;
+        }
+        IntStream.range(0, current.length()).parallel().forEach(slot -> {
+            int value = current.get(slot);
+            if (value >= 0) {
+                action.accept(value);
+            }
+        });
+    }
+
+    /**
+     * Copia os valores para um novo array, por nenhuma ordem em particular.
+     *
+     * @return Array com os valores do conjunto
+     */
+    int[] toArray() {
+        IntList values = new IntList(size);
+        forEach(Long.MAX_VALUE, values::add);
+        return values.toArray();
+    }
+
+    /**
+     * Reconstrói a tabela sem as marcas de remoção, com capacidade para o número de valores indicado.
+     * A tabela nova só é publicada depois de preenchida.
+     *
+     * @param expected Número de valores que a tabela deve poder guardar
+     */
+    private void rebuild(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (expected * 3 > capacity * 2) {
+            capacity *= 2;
+        }
+        AtomicIntegerArray current = table;
+        AtomicIntegerArray rebuilt = newTable(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < current.length(); i++) {
+            int value = current.get(i);
+            if (value >= 0) {
+                int slot = slot(value, mask);
+                while (rebuilt.get(slot) != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                rebuilt.set(slot, value);
+            }
+        }
+        used = size;
+        table = rebuilt;
+    }
+
+    /**
+     * Calcula a posição inicial de um valor na tabela, espalhando os números consecutivos pela tabela.
+     *
+     * @param value Valor
+     * @param mask Capacidade da tabela menos um
+     * @return Posição inicial
+     */
+    private static int slot(int value, int mask) {
+        int hash = value * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Cria uma tabela vazia.
+     *
+     * @param capacity Capacidade, potência de 2
+     * @return Tabela com todas as posições vazias
+     */
+    private static AtomicIntegerArray newTable(int capacity) {
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        return new AtomicIntegerArray(slots);
+    }
+}
@@ -0,0 +1,425 @@
+package sdtp;
+
+/**
+ * Classe que escreve todos os ficheiros de registo do servidor numa única thread.
+ * Quem regista um evento apenas o coloca numa fila; a thread de escrita junta os eventos pendentes num lote,
+ * copia-os para um buffer pré-alocado e escreve-os com uma chamada por ficheiro (group commit).
+ * A sincronização com o disco (fsync) segue a política configurada:
+ * "none" (nunca, exceto pedidos duráveis), "batch" (no fim de cada lote) ou "interval" (no máximo a cada N ms).
+ * A política é lida das propriedades de sistema sdtp.journal.fsync e sdtp.journal.fsyncIntervalMs.
+ * Cada escrita bem-sucedida é também enviada, pela mesma ordem, aos servidores standby ligados (ver Replication).
+ * Os futures são concluídos numa thread própria, pela ordem em que a thread de escrita os resolve, para que as ações
+ * encadeadas por quem regista (respostas aos clientes, publicação no cluster) não atrasem o lote seguinte.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+class Journal {
+    /**
+     * Políticas de sincronização dos ficheiros com o disco.
+     */
+    enum FsyncPolicy {
+        NONE,
+        BATCH,
+        INTERVAL
+    }
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_BATCH = 4096;
+    private static final FsyncPolicy POLICY =
+            FsyncPolicy.valueOf(System.getProperty("sdtp.journal.fsync", "none").toUpperCase());
+    private static final long INTERVAL_MS = Long.getLong("sdtp.journal.fsyncIntervalMs", 100);
+
+    private static final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    // Estado usado apenas pela thread de escrita
+    private static final Map<String, FileChannel> files = new HashMap<>();
+    private static final Set<String> dirty = new HashSet<>();
+    private static final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    // Pedidos do lote atual: os que estão no buffer, os já escritos (concluídos depois da sincronização),
+    // os ficheiros a sincronizar e as falhas de sincronização
+    private static final List<Entry> buffered = new ArrayList<>();
+    private static final List<Entry> written = new ArrayList<>();
+    private static final Set<String> mustSync = new HashSet<>();
+    private static final Map<String, IOException> syncFailures = new HashMap<>();
+    private static long lastSync = System.nanoTime();
+    // Conclusão dos futures, fora da thread de escrita; uma só thread mantém a ordem dos resultados
+    private static final ExecutorService completions = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "journal-completion");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Um pedido para a thread de escrita: acrescentar bytes a um ficheiro, ou correr uma tarefa com o ficheiro fechado.
+     */
+    private static class Entry {
+        final String fileName;
+        final byte[] data;
+        final boolean durable;
+        final Runnable exclusiveTask;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Entry(String fileName, byte[] data, boolean durable, Runnable exclusiveTask) {
+            this.fileName = fileName;
+            this.data = data;
+            this.durable = durable;
+            this.exclusiveTask = exclusiveTask;
+        }
+    }
+
+    static {
+        Thread writer = new Thread(Journal::writeLoop, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> sync().join(), "journal-shutdown"));
+    }
+
+    /**
+     * Acrescenta uma linha a um ficheiro de registo.
+     *
+     * @param fileName Nome do ficheiro
+     * @param line Linha a acrescentar, sem terminador
+     * @return Future concluído quando a linha foi escrita no ficheiro
+     */
+    public static CompletableFuture<Void> append(String fileName, String line) {
+        return append(fileName, line, false);
+    }
+
+    /**
+     * Acrescenta uma linha a um ficheiro de registo.
+     *
+     * @param fileName Nome do ficheiro
+     * @param line Linha a acrescentar, sem terminador
+     * @param durable Se verdadeiro, o future só é concluído depois de o ficheiro ser sincronizado com o disco
+     * @return Future concluído quando a linha foi escrita (e sincronizada, se durável)
+     */
+    public static CompletableFuture<Void> append(String fileName, String line, boolean durable) {
+        return append(fileName, (line + System.lineSeparator()).getBytes(Charset.defaultCharset()), durable);
+    }
+
+    /**
+     * Acrescenta bytes já codificados a um ficheiro de registo.
+     *
+     * @param fileName Nome do ficheiro
+     * @param data Bytes a acrescentar
+     * @param durable Se verdadeiro, o future só é concluído depois de o ficheiro ser sincronizado com o disco
+     * @return Future concluído quando os bytes foram escritos (e sincronizados, se durável)
+     */
+    public static CompletableFuture<Void> append(String fileName, byte[] data, boolean durable) {
+        Entry entry = new Entry(fileName, data, durable, null);
+        queue.add(entry);
+        return entry.future;
+    }
+
+    /**
+     * Corre uma tarefa sobre um ficheiro na thread de escrita, depois de escritos os pedidos anteriores
+     * e com o ficheiro fechado, por exemplo para o reescrever e substituir.
+     *
+     * @param fileName Nome do ficheiro
+     * @param task Tarefa a executar
+     * @return Future concluído quando a tarefa terminou
+     */
+    public static CompletableFuture<Void> exclusive(String fileName, Runnable task) {
+        Entry entry = new Entry(fileName, null, false, task);
+        queue.add(entry);
+        return entry.future;
+    }
+
+    /**
+     * Corre uma tarefa na thread de escrita, depois de escritos os pedidos anteriores e antes dos seguintes,
+     * com os ficheiros abertos (ex.: para ler o que já foi escrito sem que nada seja acrescentado entretanto).
+     *
+     * @param task Tarefa a executar
+     * @return Future concluído quando a tarefa terminou
+     */
+    public static CompletableFuture<Void> barrier(Runnable task) {
+        Entry entry = new Entry(null, null, false, task);
+        queue.add(entry);
+        return entry.future;
+    }
+
+    /**
+     * Sincroniza com o disco todos os ficheiros escritos até agora.
+     *
+     * @return Future concluído quando a sincronização terminou
+     */
+    public static CompletableFuture<Void> sync() {
+        Entry entry = new Entry(null, null, true, null);
+        queue.add(entry);
+        return entry.future;
+    }
+
+    /**
+     * Ciclo da thread de escrita: junta os pedidos pendentes em lotes e escreve-os.
+     */
+    private static void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        while (true) {
+            try {
+                Entry first = dirty.isEmpty() || POLICY != FsyncPolicy.INTERVAL
+                        ? queue.take()
+                        : queue.poll(INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                }
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Escreve um lote de pedidos, sincroniza de acordo com a política e conclui os futures.
+     * Cada pedido é concluído de acordo com o seu próprio resultado: uma falha só afeta os pedidos que estavam
+     * no buffer nessa escrita (ou, se for na sincronização, os pedidos duráveis desse ficheiro),
+     * e os pedidos escritos antes dela são concluídos normalmente. Os pedidos falhados são concluídos logo,
+     * antes dos pedidos seguintes, e só o que foi escrito é enviado aos standbys.
+     *
+     * @param batch Pedidos do lote
+     */
+    private static void writeBatch(List<Entry> batch) {
+        long start = System.nanoTime();
+        boolean syncAll = false;
+        String current = null;
+        for (Entry entry : batch) {
+            if (entry.exclusiveTask != null) {
+                flushBuffered(current);
+                runExclusive(entry);
+                continue;
+            }
+            if (entry.fileName == null) {
+                syncAll = true;
+                written.add(entry);
+                continue;
+            }
+            if (!entry.fileName.equals(current) || entry.data.length > buffer.remaining()) {
+                flushBuffered(current);
+                current = entry.fileName;
+            }
+            buffered.add(entry);
+            if (entry.data.length > buffer.capacity()) {
+                // Maior do que o buffer: escrito diretamente, sem cópia
+                flushBuffered(current, ByteBuffer.wrap(entry.data));
+            } else {
+                buffer.put(entry.data);
+            }
+        }
+        flushBuffered(current);
+
+        long now = System.nanoTime();
+        if (syncAll || POLICY == FsyncPolicy.BATCH
+                || (POLICY == FsyncPolicy.INTERVAL && now - lastSync >= TimeUnit.MILLISECONDS.toNanos(INTERVAL_MS))) {
+            mustSync.addAll(dirty);
+            lastSync = now;
+        }
+        for (String fileName : mustSync) {
+            force(fileName);
+        }
+        if (!written.isEmpty()) {
+            List<Entry> done = new ArrayList<>(written);
+            List<IOException> errors = new ArrayList<>(done.size());
+            for (Entry entry : done) {
+                errors.add(syncError(entry));
+            }
+            completions.execute(() -> {
+                for (int i = 0; i < done.size(); i++) {
+                    if (errors.get(i) == null) {
+                        done.get(i).future.complete(null);
+                    } else {
+                        done.get(i).future.completeExceptionally(errors.get(i));
+                    }
+                }
+            });
+        }
+        written.clear();
+        mustSync.clear();
+        syncFailures.clear();
+        if (!batch.isEmpty()) {
+            ServerMetrics.recordJournalBatch(batch.size(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Corre a tarefa de um pedido exclusivo ou de uma barreira. Se falhar, o future é concluído logo com a falha;
+     * caso contrário, é concluído no fim do lote, pela ordem dos pedidos.
+     * Num pedido exclusivo, o ficheiro é sincronizado (se algum pedido durável o exigir) e fechado antes da tarefa.
+     *
+     * @param entry Pedido com a tarefa
+     */
+    private static void runExclusive(Entry entry) {
+        try {
+            if (entry.fileName != null) {
+                if (mustSync.remove(entry.fileName)) {
+                    force(entry.fileName);
+                }
+                closeFile(entry.fileName);
+            }
+            entry.exclusiveTask.run();
+            if (entry.fileName != null) {
+                Replication.replaced(entry.fileName);
+            }
+            written.add(entry);
+        } catch (RuntimeException e) {
+            System.out.println("Erro ao executar uma tarefa no registo " + entry.fileName + ": " + e.getMessage());
+            fail(entry, e);
+        }
+    }
+
+    /**
+     * Escreve o conteúdo do buffer no ficheiro indicado.
+     *
+     * @param fileName Nome do ficheiro dos pedidos no buffer
+     */
+    private static void flushBuffered(String fileName) {
+        buffer.flip();
+        try {
+            flushBuffered(fileName, buffer);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Escreve bytes no fim de um ficheiro e trata o resultado dos pedidos em buffered, que são os que esses bytes contêm.
+     * Se a escrita correr bem, os pedidos passam a esperar pela sincronização e são enviados aos standbys;
+     * se falhar, o ficheiro volta ao tamanho anterior, para que não fique com uma parte dos pedidos,
+     * é fechado (e reaberto no pedido seguinte) e os pedidos falham.
+     *
+     * @param fileName Nome do ficheiro de destino
+     * @param data Bytes a escrever
+     */
+    private static void flushBuffered(String fileName, ByteBuffer data) {
+        if (buffered.isEmpty()) {
+            return;
+        }
+        try {
+            FileChannel channel = openFile(fileName);
+            long size = channel.size();
+            try {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            } catch (IOException e) {
+                try {
+                    channel.truncate(size);
+                } catch (IOException ignored) {
+                    // O ficheiro pode ter ficado com parte dos pedidos, como numa falha do processo a meio da escrita
+                }
+                throw e;
+            }
+        } catch (IOException e) {
+            System.out.println("Erro ao escrever no registo " + fileName + ": " + e.getMessage());
+            // Os pedidos duráveis escritos antes neste ficheiro ainda têm de ser sincronizados antes de o fechar
+            if (mustSync.remove(fileName)) {
+                force(fileName);
+            }
+            closeFile(fileName);
+            for (Entry entry : buffered) {
+                fail(entry, e);
+            }
+            buffered.clear();
+            return;
+        }
+        dirty.add(fileName);
+        for (Entry entry : buffered) {
+            Replication.record(fileName, entry.data);
+            if (entry.durable) {
+                mustSync.add(fileName);
+            }
+        }
+        written.addAll(buffered);
+        buffered.clear();
+    }
+
+    /**
+     * Conclui um pedido com uma falha, na thread das conclusões, antes dos pedidos resolvidos depois dele.
+     *
+     * @param entry Pedido falhado
+     * @param error Falha
+     */
+    private static void fail(Entry entry, Exception error) {
+        completions.execute(() -> entry.future.completeExceptionally(error));
+    }
+
+    /**
+     * Obtém a falha de sincronização que afeta um pedido já escrito: a do seu ficheiro, se o pedido for durável,
+     * ou qualquer uma, se for um pedido de sincronização.
+     *
+     * @param entry Pedido escrito
+     * @return Falha de sincronização, ou null se o pedido foi bem-sucedido
+     */
+    private static IOException syncError(Entry entry) {
+        if (entry.exclusiveTask != null) {
+            return null;
+        }
+        if (entry.fileName == null) {
+            return syncFailures.isEmpty() ? null : syncFailures.values().iterator().next();
+        }
+        return entry.durable ? syncFailures.get(entry.fileName) : null;
+    }
+
+    /**
+     * Sincroniza um ficheiro com o disco, registando a falha para os pedidos que esperam por ela.
+     *
+     * @param fileName Nome do ficheiro
+     */
+    private static void force(String fileName) {
+        FileChannel channel = files.get(fileName);
+        try {
+            if (channel != null) {
+                channel.force(false);
+            }
+            dirty.remove(fileName);
+        } catch (IOException e) {
+            System.out.println("Erro ao sincronizar o registo " + fileName + ": " + e.getMessage());
+            syncFailures.put(fileName, e);
+        }
+    }
+
+    /**
+     * Obtém o canal aberto para um ficheiro, abrindo-o em modo de acréscimo se necessário.
+     *
+     * @param fileName Nome do ficheiro
+     * @return Canal do ficheiro
+     * @throws IOException Se não for possível abrir o ficheiro
+     */
+    private static FileChannel openFile(String fileName) throws IOException {
+        FileChannel channel = files.get(fileName);
+        if (channel == null) {
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            files.put(fileName, channel);
+        }
+        return channel;
+    }
+
+    /**
+     * Fecha o canal de um ficheiro, se estiver aberto.
+     *
+     * @param fileName Nome do ficheiro
+     */
+    private static void closeFile(String fileName) {
+        if (fileName == null) {
+            return;
+        }
+        FileChannel channel = files.remove(fileName);
+        dirty.remove(fileName);
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Erro ao fechar o registo " + fileName + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package sdtp;
+
+/**
+ * Classe que executa o handshake de login de uma conexão fora da thread que aceita conexões.
+ * Identifica o protocolo pelo primeiro byte recebido, lê o ID do cliente e a senha e, se a autenticação for bem-sucedida, entrega o ClientHandler ao pool que trata as sessões,
+ * reutilizando o mesmo leitor do socket.
+ * Em vez da senha, o cliente pode enviar o token de uma sessão anterior (ver Sessions); se este for recusado,
+ * o handshake continua à espera da senha, até MAX_LOGIN_ATTEMPTS tentativas.
+ * O tempo limite conta desde que a conexão foi aceite e aplica-se ao handshake inteiro, e não a cada leitura,
+ * para que um cliente que envia um byte de vez em quando não ocupe uma das threads dos handshakes indefinidamente.
+ */
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+class LoginHandshake implements Runnable {
+    static final int HANDSHAKE_TIMEOUT_MS = 10_000;
+    static final int MAX_PENDING_HANDSHAKES = 256;
+    private static final int HANDSHAKE_THREADS = 4;
+    // Linhas (ou tramas) de senha ou token aceites num handshake, por exemplo um token recusado seguido da senha
+    static final int MAX_LOGIN_ATTEMPTS = 2;
+
+    private final Socket socket;
+    private final long acceptedAt;
+    private final ExecutorService sessionPool;
+
+    /**
+     * Stream do socket que só deixa ler até um instante limite: antes de cada leitura, o tempo limite do socket
+     * passa a ser o tempo que falta. Depois do handshake o limite é retirado e o stream continua a ser usado pela sessão.
+     */
+    private static final class DeadlineInputStream extends FilterInputStream {
+        private final Socket socket;
+        // Instante limite (System.nanoTime), ou 0 sem limite
+        private long deadline;
+
+        DeadlineInputStream(Socket socket, long deadline) throws IOException {
+            super(socket.getInputStream());
+            this.socket = socket;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Retira o limite e o tempo limite do socket. Chamado pela thread do handshake antes de entregar a sessão.
+         *
+         * @throws SocketException Se não for possível alterar o tempo limite do socket
+         */
+        void disarm() throws SocketException {
+            deadline = 0;
+            socket.setSoTimeout(0);
+        }
+
+        private void arm() throws IOException {
+            if (deadline == 0) {
+                return;
+            }
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("Tempo limite do handshake de login esgotado");
+            }
+            socket.setSoTimeout((int) remaining);
+        }
+
+        @Override
+        public int read() throws IOException {
+            arm();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            arm();
+            return super.read(b, off, len);
+        }
+    }
+
+    /**
+     * Construtor da classe LoginHandshake.
+     *
+     * @param socket Socket aceite
+     * @param acceptedAt Instante (System.nanoTime) em que a conexão foi aceite
+     * @param sessionPool Executor onde corre a sessão depois do login
+     */
+    public LoginHandshake(Socket socket, long acceptedAt, ExecutorService sessionPool) {
+        this.socket = socket;
+        this.acceptedAt = acceptedAt;
+        this.sessionPool = sessionPool;
+    }
+
+    /**
+     * Cria o executor dos handshakes, com uma fila limitada de handshakes pendentes.
+     * Quando a fila está cheia, a conexão é recusada e fechada em vez de bloquear a thread que aceita conexões.
+     *
+     * @return Executor para os handshakes de login
+     */
+    public static ExecutorService newExecutor() {
+        return new ThreadPoolExecutor(HANDSHAKE_THREADS, HANDSHAKE_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDING_HANDSHAKES), (task, executor) -> {
+                    ServerMetrics.recordHandshakeRejected();
+                    ((LoginHandshake) task).reject();
+                });
+    }
+
+    @Override
+    public void run() {
+        long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - acceptedAt);
+        if (waitedMillis >= HANDSHAKE_TIMEOUT_MS) {
+            ServerMetrics.recordHandshakeTimeout();
+            closeQuietly();
+            return;
+        }
+        try {
+            DeadlineInputStream limited = new DeadlineInputStream(socket,
+                    acceptedAt + TimeUnit.MILLISECONDS.toNanos(HANDSHAKE_TIMEOUT_MS));
+            BufferedInputStream input = new BufferedInputStream(limited);
+            input.mark(1);
+            int first = input.read();
+            input.reset();
+            ClientHandler clientHandler = first == BinaryProtocol.MAGIC ? loginBinary(input) : loginText(input);
+            if (clientHandler == null || !clientHandler.isAuthenticated()) {
+                ServerMetrics.recordHandshakeFailure();
+                return;
+            }
+
+            limited.disarm();
+            ServerMetrics.recordHandshake(acceptedAt);
+            sessionPool.execute(clientHandler);
+        } catch (SocketTimeoutException e) {
+            ServerMetrics.recordHandshakeTimeout();
+            closeQuietly();
+        } catch (IOException e) {
+            ServerMetrics.recordHandshakeFailure();
+            System.out.println("Erro no handshake de login: " + e.getMessage());
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Lê o ID do cliente e a senha (ou o token de sessão) no protocolo de texto, uma linha cada.
+     *
+     * @param input Stream da conexão
+     * @return ClientHandler que já processou a senha, ou null se a conexão terminou antes
+     * @throws IOException Se ocorrer um erro ao ler
+     */
+    private ClientHandler loginText(InputStream input) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(input));
+        String clientId = in.readLine();
+        if (clientId == null) {
+            closeQuietly();
+            return null;
+        }
+
+        ClientHandler clientHandler = new ClientHandler(socket, clientId, in);
+        clientHandler.openSession();
+        int attempts = 0;
+        do {
+            String password = in.readLine();
+            if (password == null || ++attempts > MAX_LOGIN_ATTEMPTS) {
+                refuse(clientHandler, password != null);
+                return null;
+            }
+            clientHandler.handleLine(password);
+        } while (clientHandler.isAwaitingPassword());
+        return clientHandler;
+    }
+
+    /**
+     * Negocia a versão do protocolo binário e lê a trama LOGIN com o ID do cliente e a senha.
+     *
+     * @param input Stream da conexão
+     * @return ClientHandler que já processou a senha, ou null se o cumprimento ou o login forem inválidos
+     * @throws IOException Se ocorrer um erro ao ler ou escrever
+     */
+    private ClientHandler loginBinary(InputStream input) throws IOException {
+        DataInputStream frames = new DataInputStream(input);
+        int version = BinaryProtocol.readHello(frames);
+        if (version < 0) {
+            closeQuietly();
+            return null;
+        }
+        // Ainda não há fila de saída, pelo que a resposta pode ser escrita diretamente no socket
+        socket.getOutputStream().write(BinaryProtocol.hello(version));
+        BinaryProtocol.Frame login = BinaryProtocol.read(frames);
+        if (login == null || login.opcode != BinaryProtocol.LOGIN) {
+            closeQuietly();
+            return null;
+        }
+
+        ClientHandler clientHandler = new ClientHandler(socket, login.fields[0], frames);
+        clientHandler.openSession();
+        clientHandler.handleLine(login.fields[1]);
+        int attempts = 1;
+        while (clientHandler.isAwaitingPassword()) {
+            login = BinaryProtocol.read(frames);
+            if (login == null || ++attempts > MAX_LOGIN_ATTEMPTS) {
+                refuse(clientHandler, login != null);
+                return null;
+            }
+            clientHandler.handleFrame(login);
+        }
+        return clientHandler;
+    }
+
+    /**
+     * Termina um handshake que não chegou a autenticar o cliente.
+     *
+     * @param clientHandler ClientHandler do handshake
+     * @param tooManyAttempts Verdadeiro se o cliente esgotou as tentativas, e não apenas fechou a conexão
+     */
+    private static void refuse(ClientHandler clientHandler, boolean tooManyAttempts) {
+        if (tooManyAttempts) {
+            clientHandler.deliverLines(Collections.singletonList("Demasiadas tentativas de login. Conexão encerrada."));
+        }
+        clientHandler.closeSession();
+    }
+
+    /**
+     * Recusa a conexão por excesso de handshakes pendentes.
+     */
+    private void reject() {
+        try {
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println("Servidor ocupado. Tente novamente mais tarde.");
+        } catch (IOException ignored) {
+        }
+        closeQuietly();
+    }
+
+    /**
+     * Fecha o socket, ignorando erros.
+     */
+    private void closeQuietly() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,522 @@
+package sdtp;
+
+/**
+ * Classe que guarda o histórico de mensagens no ficheiro messages.log e mantém índices em memória.
+ * Cada linha do ficheiro recebe um número de sequência; para cada destinatário e para cada canal
+ * guarda-se a lista das sequências que lhe dizem respeito, e para cada sequência a posição da linha no ficheiro.
+ * Assim, ler o histórico de um utilizador custa apenas o número de mensagens desse utilizador.
+ * A sequência serve também de cursor: o histórico é lido em páginas, a partir de uma sequência e com um limite,
+ * e cada página indica a sequência a partir da qual continuar.
+ * As mensagens de emergência são registadas numa única linha e fazem parte do histórico de todos os utilizadores.
+ * A escrita é feita pelo Journal; só são lidas as linhas que este já escreveu no ficheiro.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+
+class MessageStore {
+    static final String MESSAGES_FILE = DataFiles.path("messages.log");
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final String CHANNEL_PREFIX = "Canal: ";
+    private static final String DIRECT_PREFIX = "De: ";
+    // Só ASCII, para que o prefixo se mantenha igual depois de escrito e lido com o charset por omissão
+    private static final String EMERGENCY_PREFIX = "[EMERGENCIA] De: ";
+    // Tamanho das páginas em que o histórico completo é lido, para não o ter todo em memória de uma vez
+    private static final int STREAM_PAGE_SIZE = 256;
+
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private static final Map<String, IntList> byRecipient = new HashMap<>();
+    private static final Map<String, IntList> byChannel = new HashMap<>();
+    // Mensagens diretas por destinatário e, dentro deste, por remetente
+    private static final Map<String, Map<String, IntList>> byPeer = new HashMap<>();
+    private static final IntList emergencies = new IntList(16);
+    // offsets[seq] é a posição da linha seq no ficheiro; offsets[count] é o fim do ficheiro
+    private static long[] offsets = new long[1024];
+    private static int count;
+    // Número de linhas já escritas no ficheiro pelo Journal; as sequências seguintes ainda não podem ser lidas
+    private static final AtomicInteger written = new AtomicInteger();
+    // Primeira sequência cuja escrita falhou: as posições das seguintes já não correspondem ao ficheiro,
+    // pelo que written não passa dela até o índice ser reconstruído no próximo arranque
+    private static final AtomicInteger failed = new AtomicInteger(Integer.MAX_VALUE);
+    private static FileChannel readChannel;
+
+    /**
+     * Resultado da leitura de uma página do histórico.
+     */
+    static final class Page {
+        final int nextCursor;
+        final boolean hasMore;
+
+        Page(int nextCursor, boolean hasMore) {
+            this.nextCursor = nextCursor;
+            this.hasMore = hasMore;
+        }
+    }
+
+    /**
+     * Reconstrói os índices a partir do messages.log existente e abre o ficheiro para leitura.
+     * Com um snapshot carregado (ver readSnapshot), só são indexadas as linhas escritas depois dele.
+     */
+    public static void load() {
+        lock.writeLock().lock();
+        try {
+            Path path = Paths.get(MESSAGES_FILE);
+            // Fim das linhas carregadas do snapshot, ou 0 sem snapshot
+            long position = offsets[count];
+            boolean endsWithNewline = true;
+            if (Files.exists(path)) {
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.READ).position(position);
+                try (InputStream in = new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024)) {
+                    if (position > 0) {
+                        // Terminador acrescentado depois do snapshot a uma última linha que não o tinha (ver abaixo)
+                        in.mark(1);
+                        int b;
+                        while ((b = in.read()) == '\r' || b == '\n') {
+                            offsets[count] = ++position;
+                            in.mark(1);
+                        }
+                        in.reset();
+                    }
+                    ByteArrayOutputStream line = new ByteArrayOutputStream();
+                    int b;
+                    while ((b = in.read()) != -1) {
+                        position++;
+                        if (b == '\n') {
+                            index(decode(line.toByteArray()), position);
+                            line.reset();
+                        } else {
+                            line.write(b);
+                        }
+                    }
+                    if (line.size() > 0) {
+                        index(decode(line.toByteArray()), position);
+                        endsWithNewline = false;
+                    }
+                }
+            }
+            if (!endsWithNewline) {
+                // A última linha não tinha terminador; termina-a para que a próxima mensagem comece numa linha nova
+                byte[] separator = System.lineSeparator().getBytes(CHARSET);
+                Journal.append(MESSAGES_FILE, separator, false).join();
+                offsets[count] = position + separator.length;
+            }
+            written.set(count);
+            if (!Files.exists(path)) {
+                Files.createFile(path);
+            }
+            readChannel = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (IOException e) {
+            System.out.println("Erro ao carregar o histórico de mensagens: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Escreve os índices para o snapshot, só com as linhas já escritas no ficheiro:
+     * o comprimento de cada linha e, para cada canal, destinatário e remetente, as sequências como diferenças.
+     *
+     * @param out Stream da secção
+     * @return Posição no ficheiro a seguir à última linha incluída
+     * @throws IOException Se ocorrer um erro ao escrever
+     */
+    static long writeSnapshot(DataOutputStream out) throws IOException {
+        lock.readLock().lock();
+        try {
+            int included = Math.min(written.get(), count);
+            Snapshot.writeVarInt(out, included);
+            for (int seq = 0; seq < included; seq++) {
+                Snapshot.writeVarInt(out, (int) (offsets[seq + 1] - offsets[seq]));
+            }
+            writeLists(out, byChannel, included);
+            writeLists(out, byRecipient, included);
+            List<Map.Entry<String, Map<String, IntList>>> peers = new ArrayList<>(byPeer.entrySet());
+            Snapshot.writeVarInt(out, peers.size());
+            for (Map.Entry<String, Map<String, IntList>> recipient : peers) {
+                out.writeUTF(recipient.getKey());
+                writeLists(out, recipient.getValue(), included);
+            }
+            Snapshot.writeIntList(out, emergencies, emergencies.lowerBound(included));
+            return offsets[included];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Carrega os índices guardados no snapshot. Deve ser chamado antes de load, que continua a partir deles.
+     *
+     * @param in Stream da secção
+     * @throws IOException Se a secção for inválida
+     */
+    static void readSnapshot(DataInputStream in) throws IOException {
+        lock.writeLock().lock();
+        try {
+            int included = Snapshot.readVarInt(in);
+            offsets = new long[Math.max(1024, Integer.highestOneBit(included + 1) * 2)];
+            for (int seq = 0; seq < included; seq++) {
+                offsets[seq + 1] = offsets[seq] + Snapshot.readVarInt(in);
+            }
+            count = included;
+            readLists(in, byChannel);
+            readLists(in, byRecipient);
+            int recipients = Snapshot.readVarInt(in);
+            for (int i = 0; i < recipients; i++) {
+                readLists(in, byPeer.computeIfAbsent(in.readUTF(), k -> new HashMap<>()));
+            }
+            IntList restored = Snapshot.readIntList(in);
+            for (int i = 0; i < restored.size(); i++) {
+                emergencies.add(restored.get(i));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Escreve as listas de sequências de um índice, só com as sequências anteriores à indicada.
+     *
+     * @param out Stream da secção
+     * @param lists Índice (canal, destinatário ou remetente -> sequências)
+     * @param included Número de linhas incluídas no snapshot
+     * @throws IOException Se ocorrer um erro ao escrever
+     */
+    private static void writeLists(DataOutputStream out, Map<String, IntList> lists, int included) throws IOException {
+        List<Map.Entry<String, IntList>> entries = new ArrayList<>(lists.entrySet());
+        entries.removeIf(entry -> entry.getValue().lowerBound(included) == 0);
+        Snapshot.writeVarInt(out, entries.size());
+        for (Map.Entry<String, IntList> entry : entries) {
+            out.writeUTF(entry.getKey());
+            Snapshot.writeIntList(out, entry.getValue(), entry.getValue().lowerBound(included));
+        }
+    }
+
+    /**
+     * Lê as listas de sequências escritas com writeLists para um índice.
+     *
+     * @param in Stream da secção
+     * @param lists Índice a preencher
+     * @throws IOException Se a secção for inválida
+     */
+    private static void readLists(DataInputStream in, Map<String, IntList> lists) throws IOException {
+        int size = Snapshot.readVarInt(in);
+        for (int i = 0; i < size; i++) {
+            lists.put(in.readUTF(), Snapshot.readIntList(in));
+        }
+    }
+
+    /**
+     * Regista uma mensagem enviada para um destinatário.
+     *
+     * @param senderId ID do remetente
+     * @param receiverId ID do destinatário
+     * @param message Mensagem enviada
+     */
+    public static void appendDirect(String senderId, String receiverId, String message) {
+        append("De: " + senderId + " Para: " + receiverId + " Mensagem: " + message);
+    }
+
+    /**
+     * Regista uma mensagem enviada para um canal.
+     *
+     * @param channelId ID do canal
+     * @param senderId ID do remetente
+     * @param message Mensagem enviada
+     */
+    public static void appendChannel(String channelId, String senderId, String message) {
+        append("Canal: " + channelId + " De: " + senderId + " Mensagem: " + message);
+    }
+
+    /**
+     * Regista uma mensagem de emergência, enviada a todos os utilizadores.
+     *
+     * @param senderId ID do remetente
+     * @param message Mensagem de emergência
+     */
+    public static void appendEmergency(String senderId, String message) {
+        append(EMERGENCY_PREFIX + senderId + " Mensagem: " + message);
+    }
+
+    /**
+     * Regista uma linha já formatada, por exemplo do histórico de um canal recebido de outro nó.
+     *
+     * @param line Linha do histórico
+     */
+    public static void appendLine(String line) {
+        append(line);
+    }
+
+    /**
+     * Regista linhas recebidas do primário exatamente com os bytes com que este as escreveu,
+     * para que as sequências e as posições no ficheiro sejam iguais às do primário.
+     *
+     * @param record Bytes de uma ou mais linhas completas, com os terminadores
+     */
+    public static void appendRecord(byte[] record) {
+        int first;
+        int last;
+        lock.writeLock().lock();
+        try {
+            first = count;
+            if (Arrays.equals(record, System.lineSeparator().getBytes(CHARSET))) {
+                // Terminador acrescentado pelo primário a uma última linha que não o tinha (ver load)
+                offsets[count] += record.length;
+            } else {
+                int start = 0;
+                for (int i = 0; i < record.length; i++) {
+                    if (record[i] == '\n') {
+                        index(decode(Arrays.copyOfRange(record, start, i + 1)), offsets[count] + (i + 1 - start));
+                        start = i + 1;
+                    }
+                }
+            }
+            last = count;
+            track(Journal.append(MESSAGES_FILE, record, false), first, last);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Espera que todas as linhas registadas até agora estejam escritas no ficheiro e possam ser lidas.
+     */
+    public static void awaitWritten() {
+        Journal.sync().join();
+    }
+
+    /**
+     * Atribui a próxima sequência à linha, atualiza os índices e entrega a linha ao Journal.
+     * A entrega é feita dentro do lock para que a ordem no ficheiro seja a ordem das sequências,
+     * o que permite calcular a posição de cada linha sem esperar pela escrita.
+     *
+     * @param line Linha a registar
+     */
+    private static void append(String line) {
+        // Mensagens recebidas pelo protocolo binário podem conter quebras de linha, que partiriam o registo
+        line = line.replace('\n', ' ').replace('\r', ' ');
+        byte[] bytes = (line + System.lineSeparator()).getBytes(CHARSET);
+        lock.writeLock().lock();
+        try {
+            int seq = index(line, offsets[count] + bytes.length);
+            track(Journal.append(MESSAGES_FILE, bytes, false), seq, seq + 1);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Avança as linhas escritas quando a escrita de um registo termina, sem passar de uma escrita falhada.
+     * É chamado dentro do lock, pela ordem das sequências: como o Journal conclui uma escrita falhada antes
+     * das seguintes, a falha fica registada antes de uma escrita posterior poder avançar written.
+     *
+     * @param future Future da escrita no Journal
+     * @param first Primeira sequência do registo
+     * @param end Sequência a seguir à última do registo
+     */
+    private static void track(CompletableFuture<Void> future, int first, int end) {
+        future.whenComplete((ignored, error) -> {
+            if (error != null) {
+                System.out.println("Erro ao registrar a mensagem: " + error.getMessage());
+                failed.accumulateAndGet(first, Math::min);
+            } else {
+                written.accumulateAndGet(Math.min(end, failed.get()), Math::max);
+            }
+        });
+    }
+
+    /**
+     * Percorre, por ordem, as mensagens dirigidas a um utilizador e as dos canais indicados.
+     * O histórico é lido em páginas, pelo que nunca é carregado todo em memória.
+     * 
+     * @param userId ID do utilizador
+     * @param channels Canais do utilizador
+     * @param consumer Recebe cada linha do histórico
+     * @throws IOException Se ocorrer um erro ao ler o ficheiro
+     */
+    public static void forEachInHistory(String userId, Set<String> channels, Consumer<String> consumer) throws IOException {
+        Page page = new Page(0, true);
+        while (page.hasMore) {
+            page = readPage(userId, null, channels, page.nextCursor, STREAM_PAGE_SIZE, consumer);
+        }
+    }
+
+    /**
+     * Percorre, por ordem, uma página do histórico, começando numa sequência (cursor).
+     * São incluídas as mensagens diretas dirigidas a recipientId (apenas as de peerId, se este for indicado)
+     * e as mensagens dos canais indicados; sem peerId, são incluídas também as mensagens de emergência.
+     * 
+     * @param recipientId ID do destinatário das mensagens diretas, ou null para não incluir mensagens diretas
+     * @param peerId Se não for null, só são incluídas as mensagens diretas deste remetente
+     * @param channels Canais a incluir
+     * @param cursor Primeira sequência a considerar
+     * @param limit Número máximo de mensagens a entregar
+     * @param consumer Recebe cada linha da página
+     * @return Cursor para pedir a página seguinte e se há mais mensagens a partir dele
+     * @throws IOException Se ocorrer um erro ao ler o ficheiro
+     */
+    public static Page readPage(String recipientId, String peerId, Set<String> channels, int cursor, int limit,
+            Consumer<String> consumer) throws IOException {
+        long[] positions;
+        Page page;
+        lock.readLock().lock();
+        try {
+            List<IntList> lists = new ArrayList<>();
+            if (recipientId != null && peerId == null) {
+                addList(lists, byRecipient.get(recipientId));
+                addList(lists, emergencies);
+            } else if (recipientId != null) {
+                addList(lists, byPeer.getOrDefault(recipientId, Collections.emptyMap()).get(peerId));
+            }
+            for (String channel : channels) {
+                addList(lists, byChannel.get(channel));
+            }
+            int limitSeq = written.get();
+            int[] seqs = merge(lists, cursor, limitSeq, limit + 1);
+            int returned = Math.min(seqs.length, limit);
+            positions = new long[returned * 2];
+            for (int i = 0; i < returned; i++) {
+                positions[2 * i] = offsets[seqs[i]];
+                positions[2 * i + 1] = offsets[seqs[i] + 1];
+            }
+            boolean hasMore = seqs.length > limit;
+            // Sem mais mensagens, o cursor avança até ao fim do que já foi escrito, para não voltar a percorrer o que foi visto
+            page = new Page(hasMore ? seqs[returned] : Math.max(cursor, limitSeq), hasMore);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        for (int i = 0; i < positions.length; i += 2) {
+            consumer.accept(readLine(positions[i], positions[i + 1]));
+        }
+        return page;
+    }
+
+    /**
+     * Obtém o número de mensagens no histórico.
+     *
+     * @return Número de linhas do messages.log
+     */
+    public static int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Associa a próxima sequência à linha indicada. Deve ser chamado com o lock de escrita.
+     *
+     * @param line Linha do histórico
+     * @param end Posição no ficheiro a seguir ao fim da linha
+     * @return Sequência atribuída à linha
+     */
+    private static int index(String line, long end) {
+        int seq = count++;
+        if (count + 1 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[count] = end;
+
+        if (line.startsWith(CHANNEL_PREFIX)) {
+            int endOfId = line.indexOf(" De: ", CHANNEL_PREFIX.length());
+            if (endOfId > 0) {
+                byChannel.computeIfAbsent(line.substring(CHANNEL_PREFIX.length(), endOfId), k -> new IntList(16)).add(seq);
+            }
+        } else if (line.startsWith(DIRECT_PREFIX)) {
+            int start = line.indexOf(" Para: ");
+            int endOfId = start < 0 ? -1 : line.indexOf(" Mensagem: ", start);
+            if (endOfId > 0) {
+                String recipient = line.substring(start + " Para: ".length(), endOfId);
+                byRecipient.computeIfAbsent(recipient, k -> new IntList(16)).add(seq);
+                byPeer.computeIfAbsent(recipient, k -> new HashMap<>())
+                        .computeIfAbsent(line.substring(DIRECT_PREFIX.length(), start), k -> new IntList(4)).add(seq);
+            }
+        } else if (line.startsWith(EMERGENCY_PREFIX)) {
+            emergencies.add(seq);
+        }
+        return seq;
+    }
+
+    private static void addList(List<IntList> lists, IntList list) {
+        if (list != null && list.size() > 0) {
+            lists.add(list);
+        }
+    }
+
+    /**
+     * Junta várias listas ordenadas de sequências, a partir de uma sequência e até um número máximo de valores.
+     * Cada lista é posicionada por pesquisa binária, pelo que o custo depende do tamanho da página e não do histórico.
+     * Deve ser chamado com o lock de leitura.
+     *
+     * @param lists Listas ordenadas
+     * @param from Primeira sequência a incluir
+     * @param to Sequência a partir da qual nada é incluído
+     * @param max Número máximo de sequências
+     * @return Sequências de todas as listas no intervalo, por ordem
+     */
+    private static int[] merge(List<IntList> lists, int from, int to, int max) {
+        int[] cursors = new int[lists.size()];
+        for (int j = 0; j < lists.size(); j++) {
+            cursors[j] = lists.get(j).lowerBound(from);
+        }
+        IntList merged = new IntList(Math.min(max, 64));
+        while (merged.size() < max) {
+            int best = -1;
+            int bestSeq = to;
+            for (int j = 0; j < lists.size(); j++) {
+                IntList list = lists.get(j);
+                if (cursors[j] < list.size() && list.get(cursors[j]) < bestSeq) {
+                    best = j;
+                    bestSeq = list.get(cursors[j]);
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            merged.add(bestSeq);
+            cursors[best]++;
+        }
+        return merged.toArray();
+    }
+
+    /**
+     * Lê uma linha do ficheiro, sem o terminador de linha.
+     *
+     * @param start Posição do início da linha
+     * @param end Posição a seguir ao fim da linha
+     * @return Linha lida
+     * @throws IOException Se ocorrer um erro ao ler o ficheiro
+     */
+    private static String readLine(long start, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        while (buffer.hasRemaining()) {
+            if (readChannel.read(buffer, start + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return decode(Arrays.copyOf(buffer.array(), buffer.position()));
+    }
+
+    /**
+     * Converte os bytes de uma linha em texto, removendo o terminador de linha.
+     *
+     * @param bytes Bytes da linha
+     * @return Linha sem '\r' nem '\n' finais
+     */
+    private static String decode(byte[] bytes) {
+        int length = bytes.length;
+        while (length > 0 && (bytes[length - 1] == '\n' || bytes[length - 1] == '\r')) {
+            length--;
+        }
+        return new String(bytes, 0, length, CHARSET);
+    }
+}
@@ -0,0 +1,375 @@
+package sdtp;
+
+/**
+ * Classe que representa uma conexão de cliente no modo não bloqueante do servidor.
+ * Identifica o protocolo pelo primeiro byte recebido, separa os bytes recebidos em linhas ou tramas binárias,
+ * entrega-as ao ClientHandler e escoa a fila de saída do cliente no event loop quando o socket aceita mais dados.
+ * O ClientHandler só é usado no executor de trabalho do servidor, pela ordem de chegada, uma tarefa de cada vez;
+ * o event loop apenas lê e escreve. Se houver demasiados comandos por executar, a leitura do socket é suspensa
+ * até a fila baixar, para que um cliente rápido não acumule comandos sem limite.
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+class NioConnection {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_GATHER = 64;
+    private static final Charset CHARSET = Charset.defaultCharset();
+    // Comandos por executar a partir dos quais a leitura é suspensa, e número a que tem de baixar para ser retomada
+    private static final int MAX_QUEUED_COMMANDS = 256;
+    private static final int RESUME_QUEUED_COMMANDS = MAX_QUEUED_COMMANDS / 4;
+
+    private final NioServer.EventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final long acceptedAt;
+    // No protocolo binário, cresce até caber a maior trama recebida
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+    private final OutboundQueue outbound;
+    // Buffers retirados da fila de saída e ainda não totalmente escritos; só é acedido dentro do loop
+    private final ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<>();
+    private final AtomicBoolean closing = new AtomicBoolean();
+    // Tarefas do ClientHandler por executar, por ordem de chegada, e o seu número (incluindo a que está a correr)
+    private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedCommands = new AtomicInteger();
+    private volatile boolean readPaused;
+    // Só são acedidos nas tarefas do executor de trabalho, que correm uma de cada vez
+    private ClientHandler handler;
+    private boolean authenticated;
+    // Só são acedidos dentro do event loop
+    private WireFormat format;
+    private boolean helloReceived;
+    private boolean loginReceived;
+    private boolean handshaking = true;
+    private boolean sessionCloseSubmitted;
+
+    /**
+     * Construtor da classe NioConnection.
+     *
+     * @param loop Event loop responsável pela conexão
+     * @param channel Canal da conexão
+     * @param key Chave de registo do canal no Selector do loop
+     * @param acceptedAt Instante (System.nanoTime) em que a conexão foi aceite
+     */
+    NioConnection(NioServer.EventLoop loop, SocketChannel channel, SelectionKey key, long acceptedAt) {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.acceptedAt = acceptedAt;
+        this.outbound = new OutboundQueue(() -> loop.execute(this::flushPending), this::close,
+                () -> loop.execute(this::closeNow));
+    }
+
+    /**
+     * Lê os dados disponíveis e processa cada linha ou trama completa. Chamado dentro do event loop.
+     */
+    void onReadable() {
+        try {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                closeNow();
+                return;
+            }
+            readBuffer.flip();
+            if (format == null && readBuffer.hasRemaining()) {
+                format = readBuffer.get(readBuffer.position()) == BinaryProtocol.MAGIC ? WireFormat.BINARY : WireFormat.TEXT;
+            }
+            if (format == WireFormat.BINARY) {
+                readFrames();
+            } else {
+                readLines();
+            }
+        } catch (IOException e) {
+            System.out.println("Erro na conexão: " + e.getMessage());
+            closeNow();
+        }
+    }
+
+    /**
+     * Processa as linhas completas do buffer de leitura, guardando o início de uma linha incompleta.
+     */
+    private void readLines() {
+        while (readBuffer.hasRemaining()) {
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                handleLine(decodeLine());
+            } else if (lineBuffer.size() < MAX_LINE_LENGTH) {
+                lineBuffer.write(b);
+            } else {
+                System.out.println("Linha demasiado longa recebida. Conexão encerrada.");
+                closeNow();
+                return;
+            }
+        }
+        readBuffer.clear();
+    }
+
+    /**
+     * Processa o cumprimento e as tramas completas do buffer de leitura, descodificando-as diretamente do buffer.
+     * Uma trama incompleta fica no buffer, que é aumentado se não tiver espaço para ela.
+     *
+     * @throws IOException Se o cumprimento ou uma trama forem inválidos
+     */
+    private void readFrames() throws IOException {
+        while (!closing.get()) {
+            if (!helloReceived) {
+                if (readBuffer.remaining() < BinaryProtocol.HELLO_LENGTH) {
+                    break;
+                }
+                int version = BinaryProtocol.readHello(readBuffer);
+                if (version < 0) {
+                    throw new ProtocolException("Versão do protocolo não suportada");
+                }
+                helloReceived = true;
+                outbound.enqueue(BinaryProtocol.hello(version));
+                continue;
+            }
+            BinaryProtocol.Frame frame = BinaryProtocol.decode(readBuffer);
+            if (frame == null) {
+                break;
+            }
+            handleFrame(frame);
+        }
+        readBuffer.compact();
+        if (!readBuffer.hasRemaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, BinaryProtocol.MAX_FRAME_LENGTH + 4));
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    /**
+     * Continua a escrita pendente quando o socket volta a aceitar dados. Chamado dentro do event loop.
+     */
+    void onWritable() {
+        flushPending();
+    }
+
+    /**
+     * Converte o conteúdo acumulado numa linha de texto, removendo um eventual '\r' final.
+     *
+     * @return Linha recebida
+     */
+    private String decodeLine() {
+        byte[] bytes = lineBuffer.toByteArray();
+        lineBuffer.reset();
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, CHARSET);
+    }
+
+    /**
+     * Entrega uma linha ao ClientHandler. A primeira linha da conexão identifica o cliente.
+     *
+     * @param line Linha recebida
+     */
+    private void handleLine(String line) {
+        if (closing.get()) {
+            return;
+        }
+        boolean first = !loginReceived;
+        loginReceived = true;
+        submit(() -> {
+            if (first) {
+                handler = new ClientHandler(outbound, line, WireFormat.TEXT);
+                handler.openSession();
+            } else {
+                handler.handleLine(line);
+            }
+            checkHandshakeFinished();
+        });
+    }
+
+    /**
+     * Entrega uma trama ao ClientHandler. A primeira trama da conexão deve ser LOGIN, com o ID e a senha do cliente.
+     *
+     * @param frame Trama recebida
+     * @throws ProtocolException Se a primeira trama não for LOGIN
+     */
+    private void handleFrame(BinaryProtocol.Frame frame) throws ProtocolException {
+        if (!loginReceived) {
+            if (frame.opcode != BinaryProtocol.LOGIN) {
+                throw new ProtocolException("A primeira trama deve ser LOGIN");
+            }
+            loginReceived = true;
+            submit(() -> {
+                handler = new ClientHandler(outbound, frame.fields[0], WireFormat.BINARY);
+                handler.openSession();
+                handler.handleLine(frame.fields[1]);
+                checkHandshakeFinished();
+            });
+        } else {
+            submit(() -> {
+                handler.handleFrame(frame);
+                checkHandshakeFinished();
+            });
+        }
+    }
+
+    /**
+     * Coloca uma tarefa do ClientHandler na fila da conexão e, se nenhuma estiver a correr, pede ao executor
+     * de trabalho que a execute. Chamado dentro do event loop; suspende a leitura se a fila ficar demasiado longa.
+     *
+     * @param command Tarefa a executar
+     */
+    private void submit(Runnable command) {
+        commands.add(command);
+        int queued = queuedCommands.incrementAndGet();
+        if (queued == 1) {
+            loop.workers().execute(this::runCommands);
+        } else if (queued >= MAX_QUEUED_COMMANDS && !readPaused && key.isValid()) {
+            readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Executa as tarefas em fila, uma de cada vez, até a fila ficar vazia. Corre no executor de trabalho.
+     */
+    private void runCommands() {
+        do {
+            Runnable command = commands.poll();
+            try {
+                command.run();
+            } catch (RuntimeException e) {
+                System.out.println("Erro ao processar o comando: " + e.getMessage());
+            }
+            if (readPaused && queuedCommands.get() - 1 <= RESUME_QUEUED_COMMANDS) {
+                loop.execute(this::resumeReading);
+            }
+        } while (queuedCommands.decrementAndGet() > 0);
+    }
+
+    /**
+     * Retoma a leitura do socket suspensa por excesso de comandos em fila. Chamado dentro do event loop.
+     */
+    private void resumeReading() {
+        if (readPaused && key.isValid() && queuedCommands.get() <= RESUME_QUEUED_COMMANDS) {
+            readPaused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Regista o fim do handshake de login quando o cliente fica autenticado. Corre no executor de trabalho;
+     * o registo no event loop é feito por este.
+     */
+    private void checkHandshakeFinished() {
+        if (!authenticated && handler.isAuthenticated()) {
+            authenticated = true;
+            loop.execute(() -> {
+                if (handshaking) {
+                    handshaking = false;
+                    loop.handshakeFinished(this);
+                    ServerMetrics.recordHandshake(acceptedAt);
+                }
+            });
+        }
+    }
+
+    /**
+     * Obtém o instante em que a conexão foi aceite.
+     *
+     * @return Instante (System.nanoTime) da aceitação
+     */
+    long acceptedAt() {
+        return acceptedAt;
+    }
+
+    /**
+     * Fecha a conexão por o handshake de login ter excedido o tempo limite. Chamado dentro do event loop.
+     */
+    void expireHandshake() {
+        handshaking = false;
+        ServerMetrics.recordHandshakeTimeout();
+        closeNow();
+    }
+
+    /**
+     * Escreve o máximo possível da fila de saída, agrupando vários buffers por chamada ao sistema.
+     * Se o socket não aceitar tudo, ativa o interesse em OP_WRITE para continuar mais tarde.
+     */
+    private void flushPending() {
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            while (true) {
+                byte[] frame;
+                while (inFlight.size() < MAX_GATHER && (frame = outbound.poll()) != null) {
+                    inFlight.add(ByteBuffer.wrap(frame));
+                }
+                if (inFlight.isEmpty()) {
+                    if (outbound.drainFinished()) {
+                        continue;
+                    }
+                    break;
+                }
+                channel.write(inFlight.toArray(new ByteBuffer[0]));
+                while (!inFlight.isEmpty() && !inFlight.peek().hasRemaining()) {
+                    inFlight.poll();
+                }
+                if (!inFlight.isEmpty()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closing.get()) {
+                closeNow();
+            }
+        } catch (IOException e) {
+            System.out.println("Erro ao enviar dados: " + e.getMessage());
+            closeNow();
+        }
+    }
+
+    /**
+     * Pede o fecho da conexão depois de enviados os dados pendentes.
+     */
+    void close() {
+        if (closing.compareAndSet(false, true)) {
+            loop.execute(this::flushPending);
+        }
+    }
+
+    /**
+     * Fecha imediatamente a conexão e termina a sessão do cliente. Chamado dentro do event loop.
+     */
+    private void closeNow() {
+        closing.set(true);
+        if (handshaking) {
+            handshaking = false;
+            loop.handshakeFinished(this);
+            ServerMetrics.recordHandshakeFailure();
+        }
+        outbound.close();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Erro ao fechar conexão: " + e.getMessage());
+        }
+        if (sessionCloseSubmitted) {
+            return;
+        }
+        sessionCloseSubmitted = true;
+        // Depois dos comandos já recebidos, para que a sessão não seja fechada enquanto um deles corre
+        submit(() -> {
+            if (handler != null) {
+                handler.closeSession();
+            }
+        });
+    }
+}
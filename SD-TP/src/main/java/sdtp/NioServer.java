@@ -0,0 +1,192 @@
+package sdtp;
+
+/**
+ * Classe que representa o modo não bloqueante do servidor, baseado em java.nio.
+ * Um pequeno número de event loops, cada um com o seu Selector, lê e escreve em todas as conexões,
+ * permitindo milhares de sessões simultâneas sem uma thread por cliente.
+ * Os comandos recebidos são executados num executor de trabalho (threads virtuais, se existirem), um de cada vez
+ * por conexão, para que os que bloqueiam (leitura do histórico, escrita sincronizada no disco, pedidos a outros nós)
+ * não atrasem as restantes conexões do mesmo loop.
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+class NioServer {
+    private final int port;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+
+    /**
+     * Construtor da classe NioServer.
+     *
+     * @param port Porta em que o servidor aceita conexões
+     * @param loopCount Número de event loops a criar
+     * @throws IOException Se não for possível abrir os Selectors
+     */
+    public NioServer(int port, int loopCount) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        this.workers = DistributedServer.newThreadPerTaskExecutor();
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("nio-loop-" + i, workers);
+        }
+        ServerMetrics.registerEventLoops(loops.length);
+        ServerMetrics.registerPool("comandos", workers);
+    }
+
+    /**
+     * Inicia os event loops e aceita conexões na thread atual, distribuindo-as pelos loops.
+     *
+     * @throws IOException Se ocorrer um erro ao abrir a porta do servidor
+     */
+    public void serve() throws IOException {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                long acceptedAt = System.nanoTime();
+                ServerMetrics.recordAccept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                loop.execute(() -> loop.register(channel, acceptedAt));
+            }
+        }
+    }
+
+    /**
+     * Thread com um Selector que trata as operações de leitura e escrita das conexões que lhe foram atribuídas.
+     * Outras threads submetem tarefas através de {@link #execute(Runnable)}, que são corridas dentro do loop.
+     * Cada loop limita os handshakes de login pendentes e fecha os que excedem o tempo limite.
+     */
+    static class EventLoop extends Thread {
+        private static final long HANDSHAKE_CHECK_MS = 1000;
+        private static final int MAX_PENDING_HANDSHAKES = LoginHandshake.MAX_PENDING_HANDSHAKES;
+
+        private final Selector selector;
+        private final ExecutorService workers;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Conexões ainda sem login, por ordem de aceitação; só é acedido dentro do loop
+        private final Set<NioConnection> handshaking = new LinkedHashSet<>();
+
+        EventLoop(String name, ExecutorService workers) throws IOException {
+            super(name);
+            this.selector = Selector.open();
+            this.workers = workers;
+        }
+
+        /**
+         * Obtém o executor onde correm os comandos das conexões deste loop.
+         *
+         * @return Executor de trabalho
+         */
+        ExecutorService workers() {
+            return workers;
+        }
+
+        /**
+         * Agenda uma tarefa para correr dentro do event loop.
+         *
+         * @param task Tarefa a executar
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Regista uma nova conexão neste loop. Deve ser chamado dentro do loop.
+         * Se já houver demasiados handshakes pendentes, a conexão é recusada.
+         *
+         * @param channel Canal da conexão aceite
+         * @param acceptedAt Instante (System.nanoTime) em que a conexão foi aceite
+         */
+        private void register(SocketChannel channel, long acceptedAt) {
+            try {
+                if (handshaking.size() >= MAX_PENDING_HANDSHAKES) {
+                    ServerMetrics.recordHandshakeRejected();
+                    channel.write(ByteBuffer.wrap("Servidor ocupado. Tente novamente mais tarde.\n".getBytes()));
+                    channel.close();
+                    return;
+                }
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioConnection connection = new NioConnection(this, channel, key, acceptedAt);
+                key.attach(connection);
+                handshaking.add(connection);
+            } catch (IOException e) {
+                System.out.println("Erro ao registar conexão: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /**
+         * Indica que a conexão terminou o handshake, com ou sem sucesso. Deve ser chamado dentro do loop.
+         *
+         * @param connection Conexão cujo handshake terminou
+         */
+        void handshakeFinished(NioConnection connection) {
+            handshaking.remove(connection);
+        }
+
+        /**
+         * Fecha as conexões cujo handshake excedeu o tempo limite.
+         */
+        private void expireHandshakes() {
+            long deadline = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(LoginHandshake.HANDSHAKE_TIMEOUT_MS);
+            Iterator<NioConnection> it = handshaking.iterator();
+            while (it.hasNext()) {
+                NioConnection connection = it.next();
+                if (connection.acceptedAt() - deadline > 0) {
+                    break;
+                }
+                it.remove();
+                connection.expireHandshake();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(HANDSHAKE_CHECK_MS);
+                    long busyStart = System.nanoTime();
+                    expireHandshakes();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (!key.isValid() || connection == null) {
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    }
+                    ServerMetrics.recordEventLoopBusy(System.nanoTime() - busyStart);
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Erro no event loop " + getName() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+}
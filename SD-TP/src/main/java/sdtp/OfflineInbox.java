@@ -0,0 +1,406 @@
+package sdtp;
+
+/**
+ * Classe que guarda as mensagens diretas enviadas a utilizadores desligados, para lhes serem entregues no login.
+ * Cada mensagem é acrescentada ao ficheiro offline_inbox.log (linha "M;utilizador;sequência;texto"), pelo Journal,
+ * e fica em memória enquanto a caixa do utilizador tiver menos de sdtp.inbox.memory mensagens (64 por omissão);
+ * as seguintes ficam só no ficheiro, guardando-se em memória apenas a sua posição.
+ * No login, as mensagens pendentes são lidas de uma vez e colocadas seguidas na fila de saída do cliente,
+ * e a entrega é registada no ficheiro (linha "E;utilizador;sequência"), antes de as mensagens serem enviadas:
+ * cada mensagem é entregue uma única vez, mesmo que o servidor seja reiniciado.
+ * No arranque, o ficheiro é compactado, ficando só com as mensagens ainda por entregar.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+class OfflineInbox {
+    static final String INBOX_FILE = DataFiles.path("offline_inbox.log");
+    // Número de mensagens por utilizador guardadas em memória; as restantes são lidas do ficheiro na entrega
+    static final int MEMORY_LIMIT = Integer.getInteger("sdtp.inbox.memory", 64);
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final String MESSAGE = "M";
+    private static final String DELIVERED = "E";
+
+    private static final Map<String, Inbox> inboxes = new ConcurrentHashMap<>();
+    // Posição do fim do ficheiro; só é alterada com fileLock, pela mesma ordem em que se acrescenta ao Journal.
+    // Os locks são ReentrantLock e não monitores, porque são usados pelas threads dos clientes (ver ClientHandler.closeSession)
+    private static final ReentrantLock fileLock = new ReentrantLock();
+    private static long position;
+    private static FileChannel readChannel;
+    private static final AtomicLong stored = new AtomicLong();
+    private static final AtomicLong delivered = new AtomicLong();
+
+    /**
+     * Mensagens pendentes de um utilizador, pela ordem em que foram enviadas: primeiro as que estão em memória,
+     * depois as que estão só no ficheiro. Alterada apenas com o lock da caixa.
+     */
+    private static final class Inbox {
+        final ReentrantLock lock = new ReentrantLock();
+        final List<String> cached = new ArrayList<>();
+        // Início e fim de cada linha guardada só no ficheiro: spilled[2i] e spilled[2i + 1]
+        long[] spilled = new long[0];
+        int spilledCount;
+        long lastSeq;
+        // Escrita da última mensagem, à espera da qual se lê o ficheiro
+        CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+
+        int pending() {
+            return cached.size() + spilledCount;
+        }
+
+        void clear() {
+            cached.clear();
+            spilledCount = 0;
+        }
+    }
+
+    /**
+     * Compacta o ficheiro (exceto num standby, cujo ficheiro é uma cópia do primário) e carrega as mensagens pendentes.
+     */
+    public static void load() {
+        if (!Replication.isStandby()) {
+            Journal.exclusive(INBOX_FILE, OfflineInbox::compact).join();
+        }
+        fileLock.lock();
+        try {
+            inboxes.clear();
+            position = 0;
+            Path path = Paths.get(INBOX_FILE);
+            try {
+                if (!Files.exists(path)) {
+                    Files.createFile(path);
+                }
+                indexRecord(Files.readAllBytes(path));
+                if (readChannel != null) {
+                    readChannel.close();
+                }
+                readChannel = FileChannel.open(path, StandardOpenOption.READ);
+            } catch (IOException e) {
+                System.out.println("Erro ao carregar as caixas de mensagens: " + e.getMessage());
+            }
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * Reescreve o ficheiro só com as mensagens que ainda não foram entregues.
+     * Corre na thread do Journal, com o ficheiro fechado.
+     */
+    private static void compact() {
+        Path file = Paths.get(INBOX_FILE);
+        if (!Files.exists(file)) {
+            return;
+        }
+        List<String> lines;
+        Map<String, Long> deliveredUpTo = new HashMap<>();
+        try {
+            lines = Files.readAllLines(file, CHARSET);
+            for (String line : lines) {
+                String[] parts = line.split(";", 3);
+                if (parts.length == 3 && DELIVERED.equals(parts[0])) {
+                    deliveredUpTo.put(parts[1], Long.parseLong(parts[2]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Erro ao compactar as caixas de mensagens: " + e.getMessage());
+            return;
+        }
+        if (deliveredUpTo.isEmpty()) {
+            return;
+        }
+        Path temp = Paths.get(DataFiles.path("temp_offline_inbox.log"));
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(temp, CHARSET))) {
+            for (String line : lines) {
+                String[] parts = line.split(";", 4);
+                if (parts.length == 4 && MESSAGE.equals(parts[0])
+                        && Long.parseLong(parts[2]) > deliveredUpTo.getOrDefault(parts[1], 0L)) {
+                    writer.println(line);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Erro ao compactar as caixas de mensagens: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Erro ao atualizar o ficheiro das caixas de mensagens.");
+        }
+    }
+
+    /**
+     * Guarda uma mensagem para um utilizador desligado. Se o utilizador entretanto se ligou a este servidor,
+     * as mensagens pendentes são-lhe entregues de imediato.
+     *
+     * @param userId ID do destinatário
+     * @param line Linha a entregar, tal como seria enviada se o destinatário estivesse ligado
+     */
+    static void store(String userId, String line) {
+        Inbox inbox = inboxes.computeIfAbsent(userId, id -> new Inbox());
+        inbox.lock.lock();
+        try {
+            long seq = inbox.lastSeq + 1;
+            byte[] record = (MESSAGE + ";" + userId + ";" + seq + ";" + line + System.lineSeparator()).getBytes(CHARSET);
+            long start = append(record, inbox);
+            add(inbox, seq, line, start, start + record.length);
+        } finally {
+            inbox.lock.unlock();
+        }
+        stored.incrementAndGet();
+        // O destinatário pode ter feito login depois de a mensagem não lhe ter sido entregue e antes de ser guardada
+        ClientHandler client = ClientHandler.clients.get(userId);
+        if (client != null && !client.isDetached()) {
+            deliverTo(client);
+        }
+    }
+
+    /**
+     * Entrega a um cliente acabado de autenticar todas as mensagens que lhe foram enviadas enquanto estava desligado.
+     * Se houver mensagens só no ficheiro, espera pela escrita da última sem o lock da caixa, para não atrasar
+     * quem guarda mensagens para o mesmo utilizador entretanto.
+     *
+     * @param client Cliente de destino
+     */
+    static void deliverTo(ClientHandler client) {
+        Inbox inbox = inboxes.get(client.getClientId());
+        if (inbox == null) {
+            return;
+        }
+        while (true) {
+            CompletableFuture<Void> lastWrite;
+            inbox.lock.lock();
+            try {
+                lastWrite = inbox.spilledCount > 0 ? inbox.lastWrite : null;
+                if (lastWrite == null || lastWrite.isDone()) {
+                    deliverLocked(client, inbox);
+                    return;
+                }
+            } finally {
+                inbox.lock.unlock();
+            }
+            try {
+                lastWrite.join();
+            } catch (CompletionException e) {
+                // As mensagens ficam na caixa para o próximo login
+                System.out.println("Erro ao ler a caixa de mensagens de " + client.getClientId() + ": " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Entrega as mensagens pendentes de uma caixa cujas escritas no ficheiro já terminaram. Chamado com o lock da caixa.
+     *
+     * @param client Cliente de destino
+     * @param inbox Caixa do cliente
+     */
+    private static void deliverLocked(ClientHandler client, Inbox inbox) {
+        int count = inbox.pending();
+        if (count == 0) {
+            return;
+        }
+        List<String> lines = new ArrayList<>(count + 1);
+        lines.add("Mensagens recebidas enquanto esteve desligado: " + count);
+        lines.addAll(inbox.cached);
+        if (inbox.spilledCount > 0) {
+            try {
+                inbox.lastWrite.join();
+                readSpilled(inbox, lines);
+            } catch (IOException | CompletionException e) {
+                // As mensagens ficam na caixa para o próximo login
+                System.out.println("Erro ao ler a caixa de mensagens de " + client.getClientId() + ": " + e.getMessage());
+                return;
+            }
+        }
+        // A entrega é registada antes do envio: uma falha entretanto perde as mensagens em vez de as repetir
+        append((DELIVERED + ";" + client.getClientId() + ";" + inbox.lastSeq + System.lineSeparator()).getBytes(CHARSET),
+                inbox);
+        inbox.clear();
+        client.deliverLines(lines);
+        delivered.addAndGet(count);
+    }
+
+    /**
+     * Acrescenta um registo ao ficheiro, guardando a sua posição.
+     *
+     * @param record Bytes de uma linha completa
+     * @param inbox Caixa a que o registo diz respeito, que fica com a escrita como a última
+     * @return Posição do início do registo no ficheiro
+     */
+    private static long append(byte[] record, Inbox inbox) {
+        fileLock.lock();
+        try {
+            long start = position;
+            position += record.length;
+            inbox.lastWrite = Journal.append(INBOX_FILE, record, false);
+            return start;
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * Junta uma mensagem às pendentes de uma caixa, em memória ou só com a posição no ficheiro.
+     *
+     * @param inbox Caixa do destinatário
+     * @param seq Sequência da mensagem na caixa
+     * @param line Linha a entregar
+     * @param start Posição do início do registo no ficheiro
+     * @param end Posição a seguir ao fim do registo
+     */
+    private static void add(Inbox inbox, long seq, String line, long start, long end) {
+        inbox.lastSeq = Math.max(inbox.lastSeq, seq);
+        if (inbox.spilledCount == 0 && inbox.cached.size() < MEMORY_LIMIT) {
+            inbox.cached.add(line);
+            return;
+        }
+        if (2 * inbox.spilledCount == inbox.spilled.length) {
+            inbox.spilled = Arrays.copyOf(inbox.spilled, Math.max(16, inbox.spilled.length * 2));
+        }
+        inbox.spilled[2 * inbox.spilledCount] = start;
+        inbox.spilled[2 * inbox.spilledCount + 1] = end;
+        inbox.spilledCount++;
+    }
+
+    /**
+     * Lê do ficheiro as mensagens de uma caixa que não estão em memória.
+     *
+     * @param inbox Caixa do destinatário
+     * @param lines Lista onde juntar as linhas lidas
+     * @throws IOException Se ocorrer um erro ao ler o ficheiro
+     */
+    private static void readSpilled(Inbox inbox, List<String> lines) throws IOException {
+        FileChannel channel;
+        fileLock.lock();
+        try {
+            channel = readChannel;
+        } finally {
+            fileLock.unlock();
+        }
+        for (int i = 0; i < inbox.spilledCount; i++) {
+            long start = inbox.spilled[2 * i];
+            ByteBuffer buffer = ByteBuffer.allocate((int) (inbox.spilled[2 * i + 1] - start));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) {
+                    throw new EOFException("registo incompleto na posição " + start);
+                }
+            }
+            String[] parts = decode(buffer.array(), buffer.array().length).split(";", 4);
+            lines.add(parts[3]);
+        }
+    }
+
+    /**
+     * Aplica em memória as linhas de um bloco do ficheiro que começa na posição atual do fim do ficheiro.
+     * Chamado com fileLock.
+     *
+     * @param data Bytes de uma ou mais linhas completas
+     */
+    private static void indexRecord(byte[] data) {
+        int start = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            indexLine(decode(Arrays.copyOfRange(data, start, i + 1), i + 1 - start), position + start, position + i + 1);
+            start = i + 1;
+        }
+        position += start;
+    }
+
+    /**
+     * Aplica em memória uma linha do ficheiro.
+     *
+     * @param line Linha sem terminador
+     * @param start Posição do início da linha no ficheiro
+     * @param end Posição a seguir ao fim da linha
+     */
+    private static void indexLine(String line, long start, long end) {
+        String[] parts = line.split(";", 4);
+        try {
+            if (parts.length == 4 && MESSAGE.equals(parts[0])) {
+                Inbox inbox = inboxes.computeIfAbsent(parts[1], id -> new Inbox());
+                inbox.lock.lock();
+                try {
+                    add(inbox, Long.parseLong(parts[2]), parts[3], start, end);
+                } finally {
+                    inbox.lock.unlock();
+                }
+            } else if (parts.length == 3 && DELIVERED.equals(parts[0])) {
+                Inbox inbox = inboxes.computeIfAbsent(parts[1], id -> new Inbox());
+                inbox.lock.lock();
+                try {
+                    inbox.lastSeq = Math.max(inbox.lastSeq, Long.parseLong(parts[2]));
+                    inbox.clear();
+                } finally {
+                    inbox.lock.unlock();
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Linha inválida; ignorada
+        }
+    }
+
+    /**
+     * Acrescenta ao ficheiro e aplica em memória um bloco recebido do primário (num standby).
+     *
+     * @param data Bytes de uma ou mais linhas completas
+     */
+    static void applyRecord(byte[] data) {
+        fileLock.lock();
+        try {
+            Journal.append(INBOX_FILE, data, false);
+            indexRecord(data);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * Converte os bytes de uma linha em texto, removendo o terminador de linha.
+     *
+     * @param bytes Bytes da linha
+     * @param length Número de bytes a considerar
+     * @return Linha sem '\r' nem '\n' finais
+     */
+    private static String decode(byte[] bytes, int length) {
+        while (length > 0 && (bytes[length - 1] == '\n' || bytes[length - 1] == '\r')) {
+            length--;
+        }
+        return new String(bytes, 0, length, CHARSET);
+    }
+
+    /**
+     * Produz uma linha de resumo para as métricas.
+     *
+     * @return Linha com as mensagens por entregar e as já entregues
+     */
+    static String summary() {
+        int users = 0;
+        long cached = 0;
+        long spilled = 0;
+        for (Inbox inbox : inboxes.values()) {
+            inbox.lock.lock();
+            try {
+                if (inbox.pending() > 0) {
+                    users++;
+                    cached += inbox.cached.size();
+                    spilled += inbox.spilledCount;
+                }
+            } finally {
+                inbox.lock.unlock();
+            }
+        }
+        return "Caixas offline: " + (cached + spilled) + " mensagens por entregar a " + users + " utilizadores ("
+                + cached + " em memoria, " + spilled + " so no disco) | guardadas " + stored.get()
+                + ", entregues " + delivered.get();
+    }
+}
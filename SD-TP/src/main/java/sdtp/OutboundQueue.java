@@ -0,0 +1,374 @@
+package sdtp;
+
+/**
+ * Classe que representa a fila de saída de uma conexão de cliente.
+ * Quem envia mensagens apenas as coloca na fila; um único escritor por conexão esvazia-a,
+ * juntando várias mensagens em cada escrita no socket, pelo que um destinatário lento não atrasa quem envia.
+ * As mensagens urgentes (emergências) ficam numa fila à parte, que o escritor esvazia sempre primeiro.
+ * As filas dos clientes são limitadas: quando um cliente não lê, a política configurada (sdtp.outbound.policy)
+ * descarta as mensagens normais mais antigas, substitui-as por um aviso com o número de mensagens omitidas,
+ * ou desliga o cliente. O limite é lido de sdtp.outbound.limit; as filas entre servidores não têm limite.
+ * Numa sessão que pode ser retomada, cada mensagem retirada da fila fica num ReplayLog, pela ordem de escrita.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+class OutboundQueue {
+    /**
+     * O que fazer quando a fila de um cliente passa do limite.
+     */
+    enum OverflowPolicy {
+        // Descarta as mensagens normais mais antigas; as urgentes nunca são descartadas
+        DROP_OLDEST,
+        // Substitui as mensagens normais em fila por um único aviso com o número de mensagens omitidas
+        COALESCE,
+        // Fecha a conexão sem esperar pelo envio do que está em fila
+        DISCONNECT
+    }
+
+    static final OverflowPolicy CLIENT_POLICY =
+            OverflowPolicy.valueOf(System.getProperty("sdtp.outbound.policy", "drop_oldest").toUpperCase());
+    static final int CLIENT_LIMIT = Integer.getInteger("sdtp.outbound.limit", 10_000);
+
+    private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "outbound-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Queue<byte[]> frames = new ConcurrentLinkedQueue<>();
+    private final Queue<byte[]> urgent = new ConcurrentLinkedQueue<>();
+    // Tamanho da fila, mantido à parte porque ConcurrentLinkedQueue.size() percorre a fila toda
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+    // Instante em que o escritor retirou a última mensagem, ou em que a fila deixou de estar vazia
+    private volatile long progressAt = System.nanoTime();
+    private final Runnable onReady;
+    private final Runnable onClose;
+    private final Runnable onAbort;
+    private final OutputStream stream;
+    // Sem política, a fila não tem limite
+    private volatile OverflowPolicy policy;
+    private int limit;
+    private WireFormat format;
+    // Aviso de mensagens omitidas ainda em fila (política COALESCE) e o total que anuncia
+    private volatile byte[] notice;
+    private long omitted;
+    private volatile ReplayLog replay;
+
+    /**
+     * Cria uma fila cujo conteúdo é escrito por outro componente (ex.: o event loop NIO).
+     *
+     * @param onReady Chamado quando a fila passa a ter dados e ainda não há um escoamento agendado
+     * @param onClose Chamado quando a fila é fechada, para fechar a conexão depois de enviados os dados
+     * @param onAbort Chamado quando a política de limite desliga o cliente, para fechar a conexão de imediato
+     */
+    OutboundQueue(Runnable onReady, Runnable onClose, Runnable onAbort) {
+        this.onReady = onReady;
+        this.onClose = onClose;
+        this.onAbort = onAbort;
+        this.stream = null;
+    }
+
+    /**
+     * Cria uma fila escrita num stream bloqueante por uma tarefa de escrita dedicada.
+     * Fechar a fila fecha o stream depois de enviados os dados pendentes.
+     *
+     * @param stream Stream de saída do socket
+     */
+    OutboundQueue(OutputStream stream) {
+        this.stream = new BufferedOutputStream(stream, STREAM_BUFFER_SIZE);
+        // Fechar o stream do socket diretamente desbloqueia um escritor parado à espera de um cliente que não lê
+        this.onAbort = () -> {
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+            }
+        };
+        this.onReady = () -> WRITERS.execute(this::drainToStream);
+        this.onClose = () -> {
+            if (drainScheduled.compareAndSet(false, true)) {
+                WRITERS.execute(this::drainToStream);
+            }
+        };
+    }
+
+    /**
+     * Limita a fila segundo a política e o limite configurados para as conexões de clientes.
+     *
+     * @param format Formato em que o cliente recebe as mensagens, usado para o aviso de mensagens omitidas
+     */
+    void limitAsClient(WireFormat format) {
+        this.limit = CLIENT_LIMIT;
+        this.format = format;
+        this.policy = CLIENT_POLICY;
+    }
+
+    /**
+     * Passa a registar as mensagens retiradas da fila, para que possam ser reenviadas se a sessão for retomada.
+     * Enquanto houver um registo, as mensagens por enviar não são descartadas quando a escrita falha.
+     *
+     * @param log Registo das mensagens escritas
+     */
+    void recordTo(ReplayLog log) {
+        this.replay = log;
+    }
+
+    /**
+     * Cria um PrintWriter em que cada println resulta numa mensagem na fila.
+     *
+     * @param format Formato em que as linhas são enviadas ao cliente
+     * @return PrintWriter associado à fila
+     */
+    PrintWriter newWriter(WireFormat format) {
+        return new PrintWriter(new OutputStreamWriter(new QueueingOutputStream(format), format.charset()), true);
+    }
+
+    /**
+     * Coloca uma mensagem já codificada na fila. Mensagens enviadas depois do fecho são descartadas.
+     *
+     * @param frame Bytes a enviar
+     */
+    void enqueue(byte[] frame) {
+        enqueue(frames, frame);
+    }
+
+    /**
+     * Coloca uma mensagem urgente na fila: é enviada antes de todas as mensagens normais ainda por enviar.
+     * Uma mensagem que o escritor já começou a escrever é terminada primeiro, para não partir o fluxo.
+     *
+     * @param frame Bytes a enviar
+     */
+    void enqueueUrgent(byte[] frame) {
+        enqueue(urgent, frame);
+    }
+
+    private void enqueue(Queue<byte[]> target, byte[] frame) {
+        if (closed.get()) {
+            return;
+        }
+        target.add(frame);
+        if (depth.incrementAndGet() == 1) {
+            progressAt = System.nanoTime();
+        }
+        if (policy != null && depth.get() > limit) {
+            overflow();
+        }
+        if (drainScheduled.compareAndSet(false, true)) {
+            onReady.run();
+        }
+    }
+
+    /**
+     * Retira a próxima mensagem da fila, dando prioridade às urgentes.
+     *
+     * @return Bytes da mensagem, ou null se a fila estiver vazia
+     */
+    byte[] poll() {
+        byte[] frame = urgent.poll();
+        if (frame == null) {
+            frame = frames.poll();
+        }
+        if (frame != null) {
+            depth.decrementAndGet();
+            progressAt = System.nanoTime();
+            ReplayLog log = replay;
+            if (log != null) {
+                log.written(frame);
+            }
+            if (frame == notice) {
+                noticeSent();
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Aplica a política de limite, depois de uma mensagem ter deixado a fila acima do limite.
+     * Só corre quando o cliente já está atrasado, pelo que o lock não pesa no caminho normal.
+     */
+    private synchronized void overflow() {
+        if (closed.get() || depth.get() <= limit) {
+            return;
+        }
+        switch (policy) {
+            case DROP_OLDEST: {
+                int removed = 0;
+                while (depth.get() > limit && frames.poll() != null) {
+                    depth.decrementAndGet();
+                    removed++;
+                }
+                recordDropped(removed);
+                break;
+            }
+            case COALESCE: {
+                int removed = 0;
+                byte[] frame;
+                byte[] previous = notice;
+                while ((frame = frames.poll()) != null) {
+                    depth.decrementAndGet();
+                    if (frame != previous) {
+                        removed++;
+                    }
+                }
+                if (removed == 0 && previous == null) {
+                    break;
+                }
+                omitted += removed;
+                recordDropped(removed);
+                notice = format.encode("[AVISO] " + omitted + " mensagens omitidas por atraso na leitura;"
+                        + " use 'ler mensagens desde:<cursor>:<limite>' para as recuperar.");
+                frames.add(notice);
+                depth.incrementAndGet();
+                break;
+            }
+            case DISCONNECT:
+                if (closed.compareAndSet(false, true)) {
+                    urgent.clear();
+                    frames.clear();
+                    depth.set(0);
+                    ServerMetrics.recordSlowConsumerDisconnect();
+                    onAbort.run();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Indica que o aviso de mensagens omitidas foi entregue ao escritor; as próximas omissões contam de novo.
+     */
+    private synchronized void noticeSent() {
+        notice = null;
+        omitted = 0;
+    }
+
+    private void recordDropped(int count) {
+        if (count > 0) {
+            dropped.addAndGet(count);
+            ServerMetrics.recordOutboundDropped(count);
+        }
+    }
+
+    /**
+     * Indica que o escritor esvaziou a fila. Se entretanto chegaram novas mensagens,
+     * o escritor deve continuar.
+     *
+     * @return Verdadeiro se o escritor deve continuar a escoar a fila
+     */
+    boolean drainFinished() {
+        drainScheduled.set(false);
+        return (!urgent.isEmpty() || !frames.isEmpty()) && drainScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Obtém o número de mensagens à espera de envio.
+     *
+     * @return Número de mensagens na fila
+     */
+    int size() {
+        return depth.get();
+    }
+
+    /**
+     * Obtém há quanto tempo o escritor não retira mensagens da fila, enquanto esta tem mensagens à espera.
+     *
+     * @return Atraso em nanossegundos, ou 0 se a fila estiver vazia
+     */
+    long lagNanos() {
+        return depth.get() == 0 ? 0 : Math.max(0, System.nanoTime() - progressAt);
+    }
+
+    /**
+     * Obtém o número de mensagens descartadas ou omitidas por a fila ter passado do limite.
+     *
+     * @return Número de mensagens descartadas
+     */
+    long droppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Indica se a fila já foi fechada.
+     *
+     * @return Verdadeiro se a fila foi fechada
+     */
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Fecha a fila: não aceita mais mensagens e fecha a conexão depois de enviar as pendentes.
+     */
+    void close() {
+        if (closed.compareAndSet(false, true)) {
+            onClose.run();
+        }
+    }
+
+    /**
+     * Escreve no stream todas as mensagens em fila, com um único flush por lote.
+     */
+    private void drainToStream() {
+        try {
+            do {
+                byte[] frame;
+                while ((frame = poll()) != null) {
+                    stream.write(frame);
+                }
+                stream.flush();
+            } while (drainFinished());
+            if (closed.get()) {
+                stream.close();
+            }
+        } catch (IOException e) {
+            closed.set(true);
+            if (replay == null) {
+                urgent.clear();
+                frames.clear();
+                depth.set(0);
+            }
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * OutputStream que transforma cada flush do PrintWriter numa mensagem da fila.
+     * Só é usado dentro do lock do PrintWriter, pelo que não precisa de sincronização própria.
+     */
+    private class QueueingOutputStream extends OutputStream {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final WireFormat format;
+
+        QueueingOutputStream(WireFormat format) {
+            this.format = format;
+        }
+
+        @Override
+        public void write(int b) {
+            buffer.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buffer.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            if (buffer.size() > 0) {
+                enqueue(format.fromWriter(buffer.toByteArray()));
+                buffer.reset();
+            }
+        }
+    }
+}
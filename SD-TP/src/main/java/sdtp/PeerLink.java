@@ -0,0 +1,120 @@
+package sdtp;
+
+/**
+ * Classe que representa a ligação de saída deste nó para outro nó do cluster.
+ * Uma thread própria abre a conexão e volta a abri-la sempre que esta cai; enquanto a conexão está aberta,
+ * as tramas são colocadas numa OutboundQueue, pelo que quem as envia nunca bloqueia à espera da rede.
+ * As tramas enviadas enquanto a conexão está em baixo são descartadas: o nó remoto é considerado fora do cluster.
+ */
+import java.io.*;
+import java.net.*;
+
+class PeerLink {
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final long RECONNECT_DELAY_MS = 500;
+
+    private final String nodeId;
+    private final InetSocketAddress address;
+    private volatile OutboundQueue queue;
+
+    /**
+     * Construtor da classe PeerLink.
+     *
+     * @param nodeId ID do nó remoto
+     * @param address Endereço em que o nó remoto aceita conexões do cluster
+     */
+    PeerLink(String nodeId, InetSocketAddress address) {
+        this.nodeId = nodeId;
+        this.address = address;
+    }
+
+    /**
+     * Obtém o ID do nó remoto.
+     *
+     * @return ID do nó
+     */
+    String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Inicia a thread que mantém a conexão aberta.
+     */
+    void start() {
+        Thread thread = new Thread(this::connectLoop, "cluster-link-" + nodeId);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Envia uma trama ao nó remoto, se a conexão estiver aberta.
+     *
+     * @param frame Bytes da trama
+     * @return Verdadeiro se a trama foi colocada na fila, falso se a conexão está em baixo
+     */
+    boolean send(byte[] frame) {
+        OutboundQueue current = queue;
+        if (current == null || current.isClosed()) {
+            return false;
+        }
+        current.enqueue(frame);
+        return true;
+    }
+
+    /**
+     * Envia uma trama ao nó remoto à frente das tramas normais ainda por enviar, se a conexão estiver aberta.
+     *
+     * @param frame Bytes da trama
+     * @return Verdadeiro se a trama foi colocada na fila, falso se a conexão está em baixo
+     */
+    boolean sendUrgent(byte[] frame) {
+        OutboundQueue current = queue;
+        if (current == null || current.isClosed()) {
+            return false;
+        }
+        current.enqueueUrgent(frame);
+        return true;
+    }
+
+    /**
+     * Indica se a conexão está aberta.
+     *
+     * @return Verdadeiro se a conexão está aberta
+     */
+    boolean isConnected() {
+        OutboundQueue current = queue;
+        return current != null && !current.isClosed();
+    }
+
+    /**
+     * Abre a conexão e espera que ela caia, repetidamente. O nó remoto nunca escreve nesta conexão,
+     * pelo que a leitura só termina quando a conexão é fechada, de um lado ou do outro.
+     */
+    private void connectLoop() {
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, CONNECT_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                OutboundQueue current = new OutboundQueue(socket.getOutputStream());
+                current.enqueue(ClusterProtocol.encode(ClusterProtocol.HELLO, Cluster.nodeId()));
+                queue = current;
+                Cluster.linkConnected(this);
+                while (socket.getInputStream().read() >= 0) {
+                    // Nada a ler; só interessa saber quando a conexão termina
+                }
+            } catch (IOException e) {
+                // O nó remoto não está disponível; tenta-se outra vez mais tarde
+            }
+            OutboundQueue current = queue;
+            queue = null;
+            if (current != null) {
+                current.close();
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package sdtp;
+
+/**
+ * Classe que gere a fila de pedidos pendentes de aprovação.
+ * Os pedidos são mantidos em memória, indexados por tipo e por requerente, e o ficheiro approvals.log
+ * é apenas acrescentado: cada pedido novo é uma linha "cliente:tipo:PENDING" e cada aprovação uma linha
+ * "cliente:tipo:APPROVED" que anula os pedidos anteriores. Quando as anulações se acumulam,
+ * o ficheiro é compactado em segundo plano, ficando só com os pedidos ainda pendentes: os pedidos são escritos
+ * a partir da memória numa thread própria, e a thread do Journal só acrescenta o que foi registado entretanto
+ * e substitui o ficheiro, sem o ler todo.
+ */
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+class PendingRequests {
+    private static final String APPROVALS_LOG = DataFiles.path("approvals.log");
+    private static final String PENDING = "PENDING";
+    private static final String APPROVED = "APPROVED";
+    // Número de anulações acumuladas a partir do qual o ficheiro é compactado
+    private static final int COMPACTION_THRESHOLD = 1000;
+
+    private static final AtomicLong nextId = new AtomicLong();
+    // Pedidos pendentes por ordem de chegada; cada valor é {cliente, tipo}
+    private static final Map<Long, String[]> pending = new ConcurrentSkipListMap<>();
+    private static final Map<String, Map<String, Set<Long>>> byRequester = new ConcurrentHashMap<>();
+    private static final Map<String, Set<Long>> byType = new ConcurrentHashMap<>();
+    private static final AtomicInteger tombstones = new AtomicInteger();
+    // As alterações (com o lock de leitura) registam no Journal pela mesma ordem em que alteram a memória;
+    // a compactação e o reload (com o lock de escrita) veem a memória igual ao que está na fila do Journal
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private static final AtomicBoolean compacting = new AtomicBoolean();
+    private static final ExecutorService compactions = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "approvals-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Carrega os pedidos pendentes a partir do ficheiro, aplicando as anulações pela ordem em que foram registadas.
+     * Com um snapshot carregado, só são lidas as linhas escritas depois dele.
+     */
+    public static void load() {
+        load(Snapshot.replayFrom(APPROVALS_LOG));
+    }
+
+    /**
+     * Aplica as linhas do ficheiro a partir de uma posição.
+     *
+     * @param position Posição da primeira linha a aplicar
+     */
+    private static void load(long position) {
+        try (BufferedReader br = Snapshot.open(APPROVALS_LOG, position)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                applyLine(line);
+            }
+        } catch (FileNotFoundException e) {
+            // Ainda não há pedidos registados
+        } catch (IOException e) {
+            System.out.println("Erro ao carregar pedidos pendentes: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Descarta os pedidos em memória e volta a carregá-los do ficheiro (ex.: depois de o standby o substituir).
+     */
+    public static void reload() {
+        lock.writeLock().lock();
+        try {
+            pending.clear();
+            byRequester.clear();
+            byType.clear();
+            tombstones.set(0);
+            // O ficheiro recebido substitui o que o snapshot incluía: é lido desde o início
+            load(0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Aplica em memória uma linha do arquivo (no carregamento ou recebida do primário).
+     *
+     * @param line Linha no formato "cliente:tipo:PENDING" ou "cliente:tipo:APPROVED"
+     */
+    static void applyLine(String line) {
+        String[] parts = line.split(":");
+        if (parts.length != 3) {
+            return;
+        }
+        if (PENDING.equals(parts[2])) {
+            index(nextId.getAndIncrement(), parts[0], parts[1]);
+        } else if (APPROVED.equals(parts[2])) {
+            unindex(parts[0], parts[1]);
+            tombstones.incrementAndGet();
+        }
+    }
+
+    /**
+     * Adiciona um pedido pendente à fila e ao arquivo.
+     * O pedido fica logo visível em memória; a escrita durável termina depois, sem bloquear quem chama.
+     *
+     * @param clientId ID do cliente que fez o pedido
+     * @param requestType Tipo do pedido
+     * @return Future concluído quando o pedido foi sincronizado com o disco (ou a escrita falhou e foi registado o erro)
+     */
+    public static CompletableFuture<Void> addRequest(String clientId, String requestType) {
+        CompletableFuture<?>[] logged = new CompletableFuture<?>[1];
+        lock.readLock().lock();
+        try {
+            // O registo é feito dentro do compute para que, para o mesmo cliente, a ordem no ficheiro seja a ordem em memória
+            byRequester.compute(clientId, (k, types) -> {
+                Map<String, Set<Long>> result = types == null ? new ConcurrentHashMap<>() : types;
+                long id = nextId.getAndIncrement();
+                pending.put(id, new String[] {clientId, requestType});
+                result.computeIfAbsent(requestType, t -> ConcurrentHashMap.newKeySet()).add(id);
+                byType.computeIfAbsent(requestType, t -> ConcurrentHashMap.newKeySet()).add(id);
+                logged[0] = Journal.append(APPROVALS_LOG, clientId + ":" + requestType + ":" + PENDING, true);
+                return result;
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+        return logged[0].handle((ignored, error) -> {
+            if (error != null) {
+                System.out.println("Erro ao salvar pedido pendente: " + error.getMessage());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Remove os pedidos pendentes de um cliente para um tipo de operação, registando uma anulação no arquivo.
+     *
+     * Tal como em addRequest, a remoção em memória é imediata e a escrita durável termina depois.
+     *
+     * @param clientId ID do cliente
+     * @param requestType Tipo do pedido
+     * @return Future concluído, quando a anulação foi sincronizada com o disco, com verdadeiro se havia pedidos
+     *         pendentes a remover (ou logo, com falso, se não havia)
+     */
+    public static CompletableFuture<Boolean> removeRequest(String clientId, String requestType) {
+        CompletableFuture<?>[] logged = new CompletableFuture<?>[1];
+        lock.readLock().lock();
+        try {
+            byRequester.computeIfPresent(clientId, (k, types) -> {
+                if (removeIds(types.remove(requestType), requestType)) {
+                    logged[0] = Journal.append(APPROVALS_LOG, clientId + ":" + requestType + ":" + APPROVED, true);
+                }
+                return types.isEmpty() ? null : types;
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (logged[0] == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        if (tombstones.incrementAndGet() >= COMPACTION_THRESHOLD && compacting.compareAndSet(false, true)) {
+            tombstones.set(0);
+            compact();
+        }
+        return logged[0].handle((ignored, error) -> {
+            if (error != null) {
+                System.out.println("Erro ao remover pedido pendente: " + error.getMessage());
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Obtém os pedidos pendentes, por ordem de chegada.
+     *
+     * @return Lista de pedidos pendentes, no formato "cliente:tipo:PENDING"
+     */
+    public static List<String> getRequests() {
+        List<String> pendingRequests = new ArrayList<>();
+        for (String[] request : pending.values()) {
+            pendingRequests.add(request[0] + ":" + request[1] + ":" + PENDING);
+        }
+        return pendingRequests;
+    }
+
+    /**
+     * Obtém os pedidos pendentes de um tipo de operação, por ordem de chegada.
+     *
+     * @param requestType Tipo do pedido
+     * @return Lista de pedidos pendentes desse tipo, no formato "cliente:tipo:PENDING"
+     */
+    public static List<String> getRequestsByType(String requestType) {
+        return format(byType.getOrDefault(requestType, Collections.emptySet()));
+    }
+
+    /**
+     * Obtém os pedidos pendentes de um cliente, por ordem de chegada.
+     *
+     * @param clientId ID do cliente
+     * @return Lista de pedidos pendentes desse cliente, no formato "cliente:tipo:PENDING"
+     */
+    public static List<String> getRequestsByRequester(String clientId) {
+        List<Long> ids = new ArrayList<>();
+        for (Set<Long> typeIds : byRequester.getOrDefault(clientId, Collections.emptyMap()).values()) {
+            ids.addAll(typeIds);
+        }
+        return format(ids);
+    }
+
+    /**
+     * Converte identificadores de pedidos em linhas "cliente:tipo:PENDING", por ordem de chegada.
+     *
+     * @param ids Identificadores dos pedidos
+     * @return Lista de pedidos ainda pendentes
+     */
+    private static List<String> format(Iterable<Long> ids) {
+        List<Long> sorted = new ArrayList<>();
+        ids.forEach(sorted::add);
+        Collections.sort(sorted);
+        List<String> requests = new ArrayList<>();
+        for (Long id : sorted) {
+            String[] request = pending.get(id);
+            if (request != null) {
+                requests.add(request[0] + ":" + request[1] + ":" + PENDING);
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Indexa um pedido pendente durante o carregamento.
+     */
+    private static void index(long id, String clientId, String requestType) {
+        pending.put(id, new String[] {clientId, requestType});
+        byRequester.computeIfAbsent(clientId, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(requestType, t -> ConcurrentHashMap.newKeySet()).add(id);
+        byType.computeIfAbsent(requestType, t -> ConcurrentHashMap.newKeySet()).add(id);
+    }
+
+    /**
+     * Aplica uma anulação durante o carregamento.
+     */
+    private static void unindex(String clientId, String requestType) {
+        Map<String, Set<Long>> types = byRequester.get(clientId);
+        if (types != null) {
+            removeIds(types.remove(requestType), requestType);
+            if (types.isEmpty()) {
+                byRequester.remove(clientId);
+            }
+        }
+    }
+
+    /**
+     * Remove pedidos da fila e do índice por tipo.
+     *
+     * @param ids Identificadores a remover, ou null
+     * @param requestType Tipo dos pedidos
+     * @return Verdadeiro se algum pedido foi removido
+     */
+    private static boolean removeIds(Set<Long> ids, String requestType) {
+        if (ids == null || ids.isEmpty()) {
+            return false;
+        }
+        Set<Long> typeIds = byType.get(requestType);
+        for (Long id : ids) {
+            pending.remove(id);
+            if (typeIds != null) {
+                typeIds.remove(id);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Escreve para o snapshot os pedidos pendentes registados no arquivo, por ordem de chegada.
+     * Deve correr na thread do Journal (Journal.barrier), para que o conteúdo lido corresponda ao tamanho
+     * registado no snapshot; por isso é lido do próprio ficheiro e não da memória.
+     *
+     * @param out Stream da secção
+     * @throws IOException Se ocorrer um erro ao ler o arquivo
+     */
+    static void writeSnapshot(DataOutputStream out) throws IOException {
+        Collection<String> survivors;
+        try {
+            survivors = survivors();
+        } catch (FileNotFoundException e) {
+            survivors = Collections.emptyList();
+        }
+        out.writeInt(survivors.size());
+        for (String key : survivors) {
+            out.writeUTF(key);
+        }
+    }
+
+    /**
+     * Carrega os pedidos pendentes guardados no snapshot.
+     *
+     * @param in Stream da secção
+     * @throws IOException Se a secção for inválida
+     */
+    static void readSnapshot(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            applyLine(in.readUTF() + ":" + PENDING);
+        }
+    }
+
+    /**
+     * Lê o arquivo e obtém os pedidos que continuam pendentes depois de aplicadas as anulações.
+     *
+     * @return Pedidos pendentes no formato "cliente:tipo", por ordem de chegada
+     * @throws IOException Se ocorrer um erro ao ler o arquivo
+     */
+    private static Collection<String> survivors() throws IOException {
+        // Posição no ficheiro -> pedido ainda pendente, para manter a ordem de chegada
+        Map<Integer, String> survivors = new TreeMap<>();
+        Map<String, List<Integer>> positions = new HashMap<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(APPROVALS_LOG))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.split(":");
+                if (parts.length == 3) {
+                    String key = parts[0] + ":" + parts[1];
+                    if (PENDING.equals(parts[2])) {
+                        survivors.put(lineNumber, key);
+                        positions.computeIfAbsent(key, k -> new ArrayList<>()).add(lineNumber);
+                    } else if (APPROVED.equals(parts[2])) {
+                        for (Integer position : positions.getOrDefault(key, Collections.emptyList())) {
+                            survivors.remove(position);
+                        }
+                        positions.remove(key);
+                    }
+                }
+                lineNumber++;
+            }
+        }
+        return survivors.values();
+    }
+
+    /**
+     * Reescreve o arquivo só com os pedidos que continuam pendentes, em três passos:
+     * 1. com o lock de escrita, copia os pedidos pendentes da memória e coloca na fila do Journal uma barreira
+     *    que regista o tamanho do ficheiro, que é então exatamente o que corresponde à cópia;
+     * 2. na thread da compactação, escreve os pedidos copiados num ficheiro temporário;
+     * 3. na thread do Journal, com o ficheiro fechado, acrescenta ao temporário o que foi escrito depois da barreira
+     *    e substitui o ficheiro.
+     * Só o último passo, proporcional ao que foi registado durante a compactação, para as escritas dos outros registos.
+     */
+    private static void compact() {
+        Path file = Paths.get(APPROVALS_LOG);
+        Path temp = Paths.get(DataFiles.path("temp_approvals.log"));
+        List<String> survivors = new ArrayList<>();
+        long[] mark = new long[1];
+        CompletableFuture<Void> marked;
+        lock.writeLock().lock();
+        try {
+            for (String[] request : pending.values()) {
+                survivors.add(request[0] + ":" + request[1] + ":" + PENDING);
+            }
+            marked = Journal.barrier(() -> mark[0] = sizeOf(file));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        marked.thenRunAsync(() -> writeLines(temp, survivors), compactions)
+                .thenCompose(ignored -> Journal.exclusive(APPROVALS_LOG, () -> replaceWithTail(file, temp, mark[0])))
+                .whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        System.out.println("Erro ao compactar pedidos pendentes: " + error.getMessage());
+                    }
+                    compacting.set(false);
+                });
+    }
+
+    /**
+     * Escreve linhas num ficheiro novo.
+     *
+     * @param path Ficheiro a escrever
+     * @param lines Linhas, sem terminador
+     */
+    private static void writeLines(Path path, List<String> lines) {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(path))) {
+            for (String line : lines) {
+                writer.println(line);
+            }
+            if (writer.checkError()) {
+                throw new IOException("Erro ao escrever " + path);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Acrescenta ao ficheiro compactado os registos escritos depois da cópia e substitui o arquivo.
+     * Corre na thread do Journal, com o arquivo fechado.
+     *
+     * @param file Arquivo
+     * @param temp Ficheiro compactado, com os pedidos pendentes até à posição indicada
+     * @param mark Tamanho do arquivo no momento da cópia
+     */
+    private static void replaceWithTail(Path file, Path temp, long mark) {
+        try {
+            try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                long size = source.size();
+                for (long position = mark; position < size; ) {
+                    position += source.transferTo(position, size - position, target);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.exists(file) ? Files.size(file) : 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package sdtp;
+
+/**
+ * Limitador de taxa por balde de fichas (token bucket), usado para limitar os comandos lidos de cada cliente.
+ * O balde enche a uma taxa fixa até à capacidade máxima, que permite rajadas curtas acima da taxa.
+ * Não é thread-safe: cada conexão é lida por uma única thread de cada vez.
+ */
+class RateLimiter {
+    private final double ratePerNano;
+    private final double capacity;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    /**
+     * Construtor da classe RateLimiter.
+     *
+     * @param perSecond Número de fichas repostas por segundo
+     * @param burst Número máximo de fichas acumuladas
+     */
+    RateLimiter(double perSecond, int burst) {
+        this.ratePerNano = perSecond / 1_000_000_000.0;
+        this.capacity = Math.max(1, burst);
+        this.tokens = capacity;
+    }
+
+    /**
+     * Tenta gastar uma ficha.
+     *
+     * @return Verdadeiro se havia uma ficha disponível, falso se a taxa foi excedida
+     */
+    boolean tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * ratePerNano);
+        refilledAt = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+}
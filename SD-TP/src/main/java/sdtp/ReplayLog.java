@@ -0,0 +1,77 @@
+package sdtp;
+
+/**
+ * Registo, em memória, das últimas mensagens escritas numa conexão de cliente, pela ordem em que foram escritas.
+ * A contagem começa a seguir a uma mensagem marcadora (a linha com o token de sessão): o cliente conta as linhas
+ * que recebeu depois dessa mesma linha, pelo que, ao retomar a sessão, basta indicar esse número para o servidor
+ * saber quais das mensagens escritas não chegaram e as voltar a enviar.
+ * Guarda apenas as últimas mensagens, num buffer circular; as mais antigas deixam de poder ser reenviadas.
+ */
+import java.util.*;
+
+class ReplayLog {
+    private final byte[] marker;
+    private final byte[][] ring;
+    private boolean started;
+    // Número de mensagens escritas depois da marcadora
+    private long written;
+
+    /**
+     * Construtor da classe ReplayLog.
+     *
+     * @param marker Bytes da mensagem a partir da qual se conta (comparados por identidade)
+     * @param capacity Número máximo de mensagens guardadas
+     */
+    ReplayLog(byte[] marker, int capacity) {
+        this.marker = marker;
+        this.ring = new byte[Math.max(1, capacity)][];
+    }
+
+    /**
+     * Regista uma mensagem retirada da fila de saída para ser escrita no socket.
+     *
+     * @param frame Bytes da mensagem
+     */
+    synchronized void written(byte[] frame) {
+        if (!started) {
+            started = frame == marker;
+            return;
+        }
+        ring[(int) (written % ring.length)] = frame;
+        written++;
+    }
+
+    /**
+     * Obtém o número de mensagens escritas depois da marcadora.
+     *
+     * @return Número de mensagens
+     */
+    synchronized long writtenCount() {
+        return written;
+    }
+
+    /**
+     * Obtém as mensagens escritas a partir da posição indicada que ainda estão guardadas.
+     *
+     * @param received Número de mensagens que o cliente diz ter recebido depois da marcadora
+     * @return Mensagens por reenviar, pela ordem em que foram escritas
+     */
+    synchronized List<byte[]> since(long received) {
+        long from = Math.max(Math.max(0, received), written - ring.length);
+        List<byte[]> frames = new ArrayList<>((int) Math.max(0, written - from));
+        for (long i = from; i < written; i++) {
+            frames.add(ring[(int) (i % ring.length)]);
+        }
+        return frames;
+    }
+
+    /**
+     * Obtém o número de mensagens por reenviar que já saíram do buffer e não podem ser recuperadas.
+     *
+     * @param received Número de mensagens que o cliente diz ter recebido depois da marcadora
+     * @return Número de mensagens perdidas
+     */
+    synchronized long lost(long received) {
+        return Math.max(0, written - ring.length - Math.max(0, received));
+    }
+}
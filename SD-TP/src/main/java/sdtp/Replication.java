@@ -0,0 +1,724 @@
+package sdtp;
+
+/**
+ * Classe que replica os ficheiros de estado do servidor para servidores standby, por envio contínuo dos registos.
+ * O primário (propriedade sdtp.replication.port) aceita conexões de standbys; cada escrita do Journal num ficheiro
+ * de estado é enviada, pela ordem em que foi escrita, a todos os standbys ligados.
+ * Um standby (propriedade sdtp.standby.of=host:porta) envia o tamanho e o CRC de cada ficheiro que já tem,
+ * recebe só o que lhe falta (ou o ficheiro inteiro, se o seu for diferente) e carrega então o estado em memória.
+ * O que falta é lido aos blocos e enviado fora da thread do Journal, seguido dos registos escritos entretanto.
+ * A partir daí, o standby aplica cada registo recebido ao ficheiro e à memória, com o mesmo código do carregamento.
+ * Os ficheiros ficam iguais byte a byte aos do primário, pelo que os cursores do histórico continuam válidos.
+ * Se o primário deixar de responder, o standby passa a primário e começa a aceitar clientes.
+ * O standby mostra periodicamente o atraso da replicação, e o primário mostra-o nas métricas.
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
+
+class Replication {
+    static final String PORT_PROPERTY = "sdtp.replication.port";
+    static final String PRIMARY_PROPERTY = "sdtp.standby.of";
+    // Ficheiros com o estado do servidor; os relatórios periódicos são de cada servidor e não são replicados
+    private static final String[] FILES = {
+        "users.txt", "channels.txt", "user_channel_membership.log", "approvals.log", "messages.log", "offline_inbox.log"
+    };
+    private static final long HEARTBEAT_INTERVAL_MS = 500;
+    // Sem notícias do primário durante este tempo, o standby passa a primário
+    private static final long FAILOVER_TIMEOUT_MS = 3000;
+    private static final long LAG_REPORT_INTERVAL_MS = 10_000;
+    // Os ficheiros são enviados em blocos deste tamanho, cortados no fim de uma linha
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int MAX_FRAME_LENGTH = 2 * CHUNK_SIZE;
+    // Blocos de um ficheiro em fila para um standby; o envio só lê o bloco seguinte quando a fila baixa deste número
+    private static final int MAX_QUEUED_CHUNKS = 4;
+    private static final long BACKPRESSURE_WAIT_MS = 5;
+
+    // Primário -> standby: nome, posição, instante, bytes a acrescentar / nome, bytes que substituem o ficheiro
+    private static final byte RECORD = 1;
+    private static final byte REPLACE = 2;
+    // Primário -> standby: posição, instante / posição no fim do envio do que faltava ao standby
+    private static final byte HEARTBEAT = 3;
+    private static final byte CAUGHT_UP = 4;
+    // Standby -> primário: posição aplicada
+    private static final byte ACK = 5;
+
+    // Caminho de cada ficheiro replicado -> nome com que é enviado
+    private static final Map<String, String> names = new HashMap<>();
+    // Primário: standbys ligados, bytes registados desde o arranque e número de substituições de cada ficheiro
+    private static final List<Standby> standbys = new CopyOnWriteArrayList<>();
+    private static final AtomicLong position = new AtomicLong();
+    private static final Map<String, Integer> generations = new ConcurrentHashMap<>();
+    // Standby: posição aplicada, última posição anunciada pelo primário e atraso de cada registo aplicado
+    private static volatile long appliedPosition;
+    private static volatile long primaryPosition;
+    private static volatile boolean warm;
+    private static final Histogram lag = new Histogram();
+    // Threads que enviam os ficheiros aos standbys, fora da thread do Journal
+    private static final ExecutorService transfers = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "replication-transfer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        for (String name : FILES) {
+            names.put(DataFiles.path(name), name);
+        }
+    }
+
+    /**
+     * Um standby ligado a este servidor.
+     * Enquanto lhe está a ser enviado um ficheiro, as tramas seguintes ficam em backlog, atrás do ficheiro,
+     * e são enviadas pela mesma ordem quando o envio termina.
+     */
+    private static final class Standby {
+        final String address;
+        final OutboundQueue queue;
+        volatile long acked;
+        // Tramas (byte[]) e ficheiros (FilePart) à espera de um envio de ficheiro em curso; alterado com lock
+        private final Deque<Object> backlog = new ArrayDeque<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private boolean transferring;
+
+        Standby(Socket socket) throws IOException {
+            this.address = socket.getRemoteSocketAddress().toString();
+            this.queue = new OutboundQueue(socket.getOutputStream());
+        }
+
+        /**
+         * Envia uma trama, ou guarda-a atrás do ficheiro que está a ser enviado.
+         *
+         * @param frame Trama codificada
+         */
+        void send(byte[] frame) {
+            lock.lock();
+            try {
+                if (transferring) {
+                    backlog.add(frame);
+                } else {
+                    queue.enqueue(frame);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Acrescenta o envio de um ficheiro, que é feito numa thread de transferência a seguir ao que já está pendente.
+         *
+         * @param part Parte do ficheiro a enviar
+         */
+        void transfer(FilePart part) {
+            lock.lock();
+            try {
+                backlog.add(part);
+                if (!transferring) {
+                    transferring = true;
+                    transfers.execute(this::drainBacklog);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Envia, pela ordem, os ficheiros e as tramas em backlog, até este ficar vazio.
+         */
+        private void drainBacklog() {
+            while (true) {
+                Object item;
+                lock.lock();
+                try {
+                    item = backlog.poll();
+                    if (item == null) {
+                        transferring = false;
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (item instanceof FilePart) {
+                    sendFile(this, (FilePart) item);
+                } else {
+                    queue.enqueue((byte[]) item);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parte de um ficheiro a enviar a um standby: os bytes de from até end, com o tamanho que o ficheiro tinha
+     * na thread do Journal, quando o envio foi decidido.
+     */
+    private static final class FilePart {
+        final String name;
+        final long from;
+        final long end;
+        final boolean replace;
+        final Integer generation;
+
+        FilePart(String name, long from, long end, boolean replace) {
+            this.name = name;
+            this.from = from;
+            this.end = end;
+            this.replace = replace;
+            this.generation = generations.get(name);
+        }
+    }
+
+    /**
+     * Indica se este servidor foi iniciado como standby.
+     *
+     * @return Verdadeiro se a propriedade sdtp.standby.of está definida
+     */
+    static boolean isStandby() {
+        return System.getProperty(PRIMARY_PROPERTY) != null;
+    }
+
+    /**
+     * Começa a aceitar standbys, se a porta de replicação estiver configurada.
+     *
+     * @throws IOException Se não for possível abrir a porta de replicação
+     */
+    static void start() throws IOException {
+        Integer port = Integer.getInteger(PORT_PROPERTY);
+        if (port == null) {
+            return;
+        }
+        ServerSocket serverSocket = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    Thread thread = new Thread(() -> serve(socket), "replication-standby");
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException e) {
+                    System.out.println("Erro ao aceitar standby: " + e.getMessage());
+                }
+            }
+        }, "replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "replication-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeats.scheduleAtFixedRate(() -> {
+            byte[] frame = encode(HEARTBEAT, null, position.get(), System.currentTimeMillis(), null, 0, 0);
+            for (Standby standby : standbys) {
+                standby.queue.enqueue(frame);
+            }
+        }, HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        System.out.println("Replicação: à espera de standbys na porta " + port);
+    }
+
+    /**
+     * Envia aos standbys uma escrita do Journal. Chamado pela thread do Journal, pela ordem das escritas.
+     *
+     * @param fileName Ficheiro escrito
+     * @param data Bytes acrescentados
+     */
+    static void record(String fileName, byte[] data) {
+        String name = names.get(fileName);
+        if (name == null) {
+            return;
+        }
+        long current = position.addAndGet(data.length);
+        if (standbys.isEmpty()) {
+            return;
+        }
+        byte[] frame = encode(RECORD, name, current, System.currentTimeMillis(), data, 0, data.length);
+        for (Standby standby : standbys) {
+            standby.send(frame);
+        }
+    }
+
+    /**
+     * Envia aos standbys um ficheiro que foi reescrito (ex.: compactado). Chamado pela thread do Journal,
+     * que só regista o tamanho do ficheiro: o conteúdo é lido e enviado por uma thread de transferência.
+     *
+     * @param fileName Ficheiro reescrito
+     */
+    static void replaced(String fileName) {
+        String name = names.get(fileName);
+        if (name == null) {
+            return;
+        }
+        generations.merge(name, 1, Integer::sum);
+        if (standbys.isEmpty()) {
+            return;
+        }
+        long size;
+        try {
+            size = sizeOf(Paths.get(fileName));
+        } catch (IOException e) {
+            // Os standbys voltam a ligar-se e recebem então o ficheiro inteiro
+            System.out.println("Erro ao enviar " + name + " aos standbys: " + e.getMessage());
+            for (Standby standby : standbys) {
+                standby.queue.close();
+            }
+            return;
+        }
+        for (Standby standby : standbys) {
+            standby.transfer(new FilePart(name, 0, size, true));
+        }
+    }
+
+    /**
+     * Resume o estado da replicação para as métricas do primário.
+     *
+     * @return Linha com os standbys e o seu atraso, ou null se a replicação não estiver configurada
+     */
+    static String summary() {
+        if (Integer.getInteger(PORT_PROPERTY) == null) {
+            return null;
+        }
+        StringBuilder summary = new StringBuilder("Replicacao: posicao " + position.get() + ", " + standbys.size() + " standbys");
+        for (Standby standby : standbys) {
+            summary.append("; ").append(standby.address).append(" atraso ")
+                    .append(Math.max(0, position.get() - standby.acked)).append(" bytes");
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Atende um standby: envia-lhe o que lhe falta, junta-o aos standbys e recebe as suas confirmações.
+     *
+     * @param socket Conexão aberta pelo standby
+     */
+    private static void serve(Socket socket) {
+        Standby standby = null;
+        try (Socket s = socket; DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
+            s.setTcpNoDelay(true);
+            // Tamanho e CRC de cada ficheiro do standby
+            Map<String, long[]> theirs = new HashMap<>();
+            int files = in.readInt();
+            for (int i = 0; i < files; i++) {
+                theirs.put(in.readUTF(), new long[] {in.readLong(), in.readLong()});
+            }
+            // O início dos ficheiros não muda enquanto são acrescentados, pelo que é comparado fora da thread do Journal
+            Map<String, Integer> checkedGenerations = new HashMap<>(generations);
+            Set<String> matching = new HashSet<>();
+            for (String name : FILES) {
+                long[] state = theirs.getOrDefault(name, new long[] {0, 0});
+                if (prefixMatches(Paths.get(DataFiles.path(name)), state[0], state[1])) {
+                    matching.add(name);
+                }
+            }
+            Standby attached = new Standby(s);
+            standby = attached;
+            // Na thread do Journal só são registados os tamanhos; os ficheiros são lidos e enviados depois,
+            // por uma thread de transferência, seguidos dos registos escritos entretanto
+            Journal.barrier(() -> {
+                for (String name : FILES) {
+                    boolean unchanged = Objects.equals(generations.get(name), checkedGenerations.get(name));
+                    long size;
+                    try {
+                        size = sizeOf(Paths.get(DataFiles.path(name)));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    if (matching.contains(name) && unchanged) {
+                        attached.transfer(new FilePart(name, theirs.getOrDefault(name, new long[] {0, 0})[0], size, false));
+                    } else {
+                        attached.transfer(new FilePart(name, 0, size, true));
+                    }
+                }
+                attached.send(encode(CAUGHT_UP, null, position.get(), System.currentTimeMillis(), null, 0, 0));
+                standbys.add(attached);
+            }).join();
+            System.out.println("Standby ligado: " + attached.address);
+
+            while (true) {
+                byte[] body = readFrame(in);
+                if (body == null) {
+                    break;
+                }
+                if (body[0] == ACK) {
+                    attached.acked = new DataInputStream(new ByteArrayInputStream(body, 1, body.length - 1)).readLong();
+                }
+            }
+        } catch (IOException | CompletionException e) {
+            // O standby desligou-se, ou não foi possível obter o tamanho de um ficheiro
+        } finally {
+            if (standby != null) {
+                standbys.remove(standby);
+                standby.queue.close();
+                System.out.println("Standby desligado: " + standby.address);
+            }
+        }
+    }
+
+    /**
+     * Envia a um standby uma parte de um ficheiro, lida de CHUNK_SIZE em CHUNK_SIZE bytes e em blocos cortados
+     * no fim de uma linha. Cada bloco só é lido quando a fila do standby tem menos de MAX_QUEUED_CHUNKS tramas,
+     * pelo que um ficheiro grande não fica todo em memória.
+     * Os bytes até part.end não mudam enquanto o ficheiro só é acrescentado; se entretanto tiver sido reescrito,
+     * a parte é descartada, porque o backlog já tem a substituição seguinte.
+     *
+     * @param standby Standby de destino
+     * @param part Parte do ficheiro a enviar
+     */
+    private static void sendFile(Standby standby, FilePart part) {
+        if (!Objects.equals(generations.get(part.name), part.generation)) {
+            return;
+        }
+        Path path = Paths.get(DataFiles.path(part.name));
+        try (FileChannel channel = part.end > part.from ? FileChannel.open(path, StandardOpenOption.READ) : null) {
+            byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, Math.max(0, part.end - part.from))];
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            long offset = part.from;
+            boolean first = true;
+            while (offset < part.end || (first && part.replace)) {
+                if (!awaitCapacity(standby)) {
+                    return;
+                }
+                int length = (int) Math.min(chunk.length, part.end - offset);
+                buffer.clear().limit(length);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new EOFException("o ficheiro ficou mais curto durante o envio");
+                    }
+                }
+                if (offset + length < part.end) {
+                    int lineEnd = length;
+                    while (lineEnd > 0 && chunk[lineEnd - 1] != '\n') {
+                        lineEnd--;
+                    }
+                    length = lineEnd > 0 ? lineEnd : length;
+                }
+                byte opcode = first && part.replace ? REPLACE : RECORD;
+                // Os blocos já estão contados na posição do primário: a posição 0 indica que não é um registo novo
+                standby.queue.enqueue(encode(opcode, part.name, 0, System.currentTimeMillis(), chunk, 0, length));
+                offset += length;
+                first = false;
+            }
+        } catch (IOException e) {
+            System.out.println("Erro ao enviar " + part.name + " ao standby: " + e.getMessage());
+            standby.queue.close();
+        }
+    }
+
+    /**
+     * Espera que a fila de um standby tenha espaço para mais um bloco de um ficheiro.
+     *
+     * @param standby Standby de destino
+     * @return Verdadeiro se há espaço; falso se o standby se desligou
+     */
+    private static boolean awaitCapacity(Standby standby) {
+        while (standby.queue.size() >= MAX_QUEUED_CHUNKS) {
+            if (standby.queue.isClosed()) {
+                return false;
+            }
+            try {
+                Thread.sleep(BACKPRESSURE_WAIT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !standby.queue.isClosed();
+    }
+
+    /**
+     * Obtém o tamanho de um ficheiro, ou 0 se não existir.
+     *
+     * @param path Ficheiro
+     * @return Tamanho em bytes
+     * @throws IOException Se não for possível obter o tamanho
+     */
+    private static long sizeOf(Path path) throws IOException {
+        return Files.exists(path) ? Files.size(path) : 0;
+    }
+
+    /**
+     * Corre como standby até o primário deixar de responder: recebe e aplica os registos e mostra o atraso.
+     * Só passa a primário depois de ter estado sincronizado, para não o fazer com um estado incompleto.
+     */
+    static void runStandby() {
+        String[] parts = System.getProperty(PRIMARY_PROPERTY).split(":");
+        InetSocketAddress primary = new InetSocketAddress(parts[0], Integer.parseInt(parts[1]));
+        System.out.println("Standby do primário " + primary.getHostString() + ":" + primary.getPort());
+        long lastContact = System.currentTimeMillis();
+        long lastReport = System.currentTimeMillis();
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(primary, 1000);
+                socket.setSoTimeout((int) FAILOVER_TIMEOUT_MS);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                sendState(out);
+                byte[] body;
+                while ((body = readFrame(in)) != null) {
+                    lastContact = System.currentTimeMillis();
+                    apply(body, out);
+                    if (warm && lastContact - lastReport >= LAG_REPORT_INTERVAL_MS) {
+                        lastReport = lastContact;
+                        System.out.println("Replicação: atraso de " + Math.max(0, primaryPosition - appliedPosition)
+                                + " bytes, latência dos registos " + lag.formatMillis());
+                    }
+                }
+            } catch (IOException e) {
+                // O primário não está disponível
+            }
+            if (warm && System.currentTimeMillis() - lastContact > FAILOVER_TIMEOUT_MS) {
+                Journal.sync().join();
+                System.out.println("O primário não responde há mais de " + FAILOVER_TIMEOUT_MS + " ms: o standby passa a primário");
+                return;
+            }
+            try {
+                Thread.sleep(HEARTBEAT_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Envia ao primário o tamanho e o CRC de cada ficheiro deste standby.
+     *
+     * @param out Stream da conexão ao primário
+     * @throws IOException Se ocorrer um erro ao ler os ficheiros ou ao escrever no socket
+     */
+    private static void sendState(DataOutputStream out) throws IOException {
+        // Os registos recebidos numa conexão anterior podem ainda estar na fila do Journal
+        Journal.sync().join();
+        out.writeInt(FILES.length);
+        for (String name : FILES) {
+            Path path = Paths.get(DataFiles.path(name));
+            long size = Files.exists(path) ? Files.size(path) : 0;
+            out.writeUTF(name);
+            out.writeLong(size);
+            out.writeLong(crc(path, size));
+        }
+        out.flush();
+    }
+
+    /**
+     * Aplica uma trama recebida do primário.
+     *
+     * @param body Trama, sem o comprimento
+     * @param out Stream da conexão ao primário, para as confirmações
+     * @throws IOException Se a trama for inválida ou ocorrer um erro ao escrever no socket
+     */
+    private static void apply(byte[] body, DataOutputStream out) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte opcode = in.readByte();
+        switch (opcode) {
+            case RECORD:
+            case REPLACE:
+                String name = in.readUTF();
+                long recordPosition = in.readLong();
+                long time = in.readLong();
+                byte[] data = in.readAllBytes();
+                if (!Arrays.asList(FILES).contains(name)) {
+                    throw new ProtocolException("Ficheiro desconhecido: " + name);
+                }
+                if (opcode == REPLACE) {
+                    replace(name, data);
+                } else if (warm) {
+                    applyRecord(name, data);
+                } else {
+                    Journal.append(DataFiles.path(name), data, false);
+                }
+                if (recordPosition > 0) {
+                    appliedPosition = recordPosition;
+                    lag.record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - time));
+                }
+                break;
+            case HEARTBEAT:
+                primaryPosition = in.readLong();
+                out.writeInt(1 + Long.BYTES);
+                out.writeByte(ACK);
+                out.writeLong(appliedPosition);
+                out.flush();
+                break;
+            case CAUGHT_UP:
+                appliedPosition = in.readLong();
+                primaryPosition = Math.max(primaryPosition, appliedPosition);
+                if (!warm) {
+                    // Os ficheiros estão iguais aos do primário: o estado é carregado agora, uma única vez
+                    Journal.sync().join();
+                    ClientHandler.loadState();
+                    warm = true;
+                    System.out.println("Standby sincronizado com o primário; estado carregado em memória");
+                }
+                break;
+            default:
+                throw new ProtocolException("Trama de replicação desconhecida: " + opcode);
+        }
+    }
+
+    /**
+     * Aplica um registo ao ficheiro e ao estado em memória.
+     *
+     * @param name Nome do ficheiro
+     * @param data Bytes de uma ou mais linhas completas
+     */
+    private static void applyRecord(String name, byte[] data) {
+        if ("messages.log".equals(name)) {
+            MessageStore.appendRecord(data);
+            return;
+        }
+        if ("offline_inbox.log".equals(name)) {
+            OfflineInbox.applyRecord(data);
+            return;
+        }
+        Journal.append(DataFiles.path(name), data, false);
+        for (String line : new String(data, Charset.defaultCharset()).split("\\R")) {
+            switch (name) {
+                case "users.txt":
+                    ClientHandler.applyUserLine(line);
+                    break;
+                case "channels.txt":
+                    ServerChannels.applyChannelLine(line);
+                    break;
+                case "user_channel_membership.log":
+                    ServerChannels.applyMembershipLine(line);
+                    break;
+                case "approvals.log":
+                    PendingRequests.applyLine(line);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Substitui um ficheiro pelo conteúdo enviado pelo primário.
+     * Só o arquivo de pedidos e as caixas offline são recarregados em memória (são os únicos que o primário reescreve);
+     * os outros só são substituídos antes de o estado ser carregado.
+     *
+     * @param name Nome do ficheiro
+     * @param data Novo conteúdo
+     */
+    private static void replace(String name, byte[] data) {
+        Path path = Paths.get(DataFiles.path(name));
+        Journal.exclusive(DataFiles.path(name), () -> {
+            try {
+                Files.write(path, data);
+            } catch (IOException e) {
+                System.out.println("Erro ao substituir " + name + ": " + e.getMessage());
+            }
+        }).join();
+        if (warm && "approvals.log".equals(name)) {
+            PendingRequests.reload();
+        } else if (warm && "offline_inbox.log".equals(name)) {
+            OfflineInbox.load();
+        } else if (warm) {
+            System.out.println("O ficheiro " + name + " foi substituído pelo do primário; reinicie o standby para o carregar");
+        }
+    }
+
+    /**
+     * Verifica se os primeiros bytes de um ficheiro têm o CRC indicado.
+     *
+     * @param path Ficheiro
+     * @param size Número de bytes a comparar
+     * @param expected CRC esperado
+     * @return Verdadeiro se o ficheiro tem pelo menos esse tamanho e o CRC coincide
+     * @throws IOException Se ocorrer um erro ao ler o ficheiro
+     */
+    private static boolean prefixMatches(Path path, long size, long expected) throws IOException {
+        long actual = Files.exists(path) ? Files.size(path) : 0;
+        return size <= actual && crc(path, size) == expected;
+    }
+
+    /**
+     * Calcula o CRC dos primeiros bytes de um ficheiro.
+     *
+     * @param path Ficheiro
+     * @param size Número de bytes
+     * @return CRC32 dos bytes
+     * @throws IOException Se ocorrer um erro ao ler o ficheiro
+     */
+    private static long crc(Path path, long size) throws IOException {
+        CRC32 crc = new CRC32();
+        if (size == 0) {
+            return crc.getValue();
+        }
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path), 64 * 1024)) {
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = size;
+            int read;
+            while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+                crc.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Codifica uma trama: [comprimento][código][nome][posição][instante][bytes].
+     *
+     * @param opcode Código da trama
+     * @param name Nome do ficheiro, ou null se a trama não tiver ficheiro
+     * @param position Posição de replicação
+     * @param time Instante do envio
+     * @param data Bytes a enviar, ou null
+     * @param offset Início dos bytes
+     * @param length Número de bytes
+     * @return Bytes da trama, incluindo o comprimento
+     */
+    private static byte[] encode(byte opcode, String name, long position, long time, byte[] data, int offset, int length) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(length + 64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeByte(opcode);
+            if (name != null) {
+                out.writeUTF(name);
+            }
+            out.writeLong(position);
+            out.writeLong(time);
+            if (data != null) {
+                out.write(data, offset, length);
+            }
+            byte[] frame = bytes.toByteArray();
+            int bodyLength = frame.length - Integer.BYTES;
+            frame[0] = (byte) (bodyLength >>> 24);
+            frame[1] = (byte) (bodyLength >>> 16);
+            frame[2] = (byte) (bodyLength >>> 8);
+            frame[3] = (byte) bodyLength;
+            return frame;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Lê a próxima trama.
+     *
+     * @param in Stream da conexão
+     * @return Trama sem o comprimento, ou null se a conexão terminou entre tramas
+     * @throws IOException Se ocorrer um erro ao ler ou a trama for inválida
+     */
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Comprimento de trama inválido: " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return body;
+    }
+}
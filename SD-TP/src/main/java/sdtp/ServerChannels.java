@@ -0,0 +1,329 @@
+package sdtp;
+
+/**
+ * Classe que gere os canais de comunicação no servidor.
+ * Permite adicionar, obter e persistir os canais criados pelos utilizadores,
+ * e mantém em memória o índice de canais de cada utilizador, reconstruído a partir do registo de associações.
+ * O índice guarda, para cada número de utilizador (IdTable.USERS), o conjunto dos números dos seus canais.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+class ServerChannels {
+    static final String USER_CHANNEL_MEMBERSHIP_FILE = DataFiles.path("user_channel_membership.log");
+    private static final Map<String, CommunicationChannel> channels = new ConcurrentHashMap<>();
+    // Canais de cada utilizador, indexados pelo número do utilizador; cada alteração publica o array outra vez
+    private static volatile IntSet[] userChannels = new IntSet[0];
+
+    /**
+     * Adiciona um novo canal ao mapa de canais.
+     * 
+     * @param channel Canal de comunicação a ser adicionado
+     */
+    public static void addChannel(CommunicationChannel channel) {
+        channels.put(channel.getChannelId(), channel);
+    }
+
+    /**
+     * Obtém um canal com base no ID do canal.
+     * 
+     * @param channelId ID do canal
+     * @return Canal de comunicação correspondente ao ID fornecido, ou null se não existir
+     */
+    public static CommunicationChannel getChannel(String channelId) {
+        return channels.get(channelId);
+    }
+
+    /**
+     * Cria um canal, se ainda não existir, e persiste-o.
+     * 
+     * @param channelId ID do canal
+     * @return Canal com o ID indicado, já existente ou criado
+     */
+    public static CommunicationChannel createChannel(String channelId) {
+        boolean[] created = new boolean[1];
+        CommunicationChannel channel = channels.computeIfAbsent(channelId, id -> {
+            created[0] = true;
+            return new CommunicationChannel(id);
+        });
+        if (created[0]) {
+            saveChannelToFile(channelId);
+        }
+        return channel;
+    }
+
+    /**
+     * Persiste o ID do canal no ficheiro de registo de canais.
+     * 
+     * @param channelId ID do canal a ser salvo
+     */
+    public static void saveChannelToFile(String channelId) {
+        Journal.append(CommunicationChannel.CHANNELS_FILE, channelId).exceptionally(e -> {
+            System.out.println("Erro ao salvar o canal: " + e.getMessage());
+            return null;
+        });
+    }
+
+    public static Collection<CommunicationChannel> getChannels() {
+        return channels.values();
+    }
+
+    /**
+     * Carrega os canais do ficheiro de registo e adiciona-os ao mapa de canais,
+     * a partir da posição incluída no snapshot carregado (se houver).
+     */
+    public static void loadChannelsFromFile() {
+        try (BufferedReader br = Snapshot.openTail(CommunicationChannel.CHANNELS_FILE)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                applyChannelLine(line);
+            }
+        } catch (IOException e) {
+            System.out.println("Erro ao carregar os canais: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Aplica em memória uma linha do ficheiro de canais (no carregamento ou recebida do primário).
+     * 
+     * @param line ID do canal
+     */
+    static void applyChannelLine(String line) {
+        if (!line.isEmpty()) {
+            channels.computeIfAbsent(line, CommunicationChannel::new);
+        }
+    }
+
+    /**
+     * Reconstrói as associações entre utilizadores e canais a partir do registo, aplicando-as aos canais carregados.
+     * Com um snapshot carregado, só são lidas as linhas escritas depois dele.
+     * Deve ser chamado depois de {@link #loadChannelsFromFile()}.
+     */
+    public static void loadMembershipFromFile() {
+        try (BufferedReader br = Snapshot.openTail(USER_CHANNEL_MEMBERSHIP_FILE)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                applyMembershipLine(line);
+            }
+        } catch (FileNotFoundException e) {
+            // Ainda não há associações registadas
+        } catch (IOException e) {
+            System.out.println("Erro ao ler os canais do utilizador: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Aplica em memória uma linha do registo de associações (no carregamento ou recebida do primário).
+     * 
+     * @param line Linha no formato "utilizador entrou|saiu canal"
+     */
+    static void applyMembershipLine(String line) {
+        String[] parts = line.split(" ");
+        if (parts.length < 3) {
+            return;
+        }
+        CommunicationChannel channel = channels.get(parts[2]);
+        if (parts[1].equals("entrou")) {
+            channelsOf(IdTable.USERS.intern(parts[0])).add(IdTable.CHANNELS.intern(parts[2]));
+            if (channel != null) {
+                channel.addMember(parts[0]);
+            }
+        } else if (parts[1].equals("saiu")) {
+            IntSet joined = existingChannelsOf(IdTable.USERS.find(parts[0]));
+            if (joined != null) {
+                joined.remove(IdTable.CHANNELS.find(parts[2]));
+            }
+            if (channel != null) {
+                channel.removeMember(parts[0]);
+            }
+        }
+    }
+
+    /**
+     * Escreve os canais e as associações para o snapshot: a tabela de números dos canais, os canais existentes
+     * e os números dos canais de cada utilizador.
+     *
+     * @param out Stream da secção
+     * @throws IOException Se ocorrer um erro ao escrever
+     */
+    static void writeSnapshot(DataOutputStream out) throws IOException {
+        List<CommunicationChannel> existing = new ArrayList<>(channels.values());
+        IntSet[] current = userChannels;
+        List<int[]> joined = new ArrayList<>();
+        IntList owners = new IntList(64);
+        for (int user = 0; user < current.length; user++) {
+            if (current[user] != null && current[user].size() > 0) {
+                owners.add(user);
+                joined.add(current[user].toArray());
+            }
+        }
+        // A tabela é lida por último, para incluir os canais registados enquanto se copiavam os conjuntos
+        int tableSize = IdTable.CHANNELS.size();
+        Snapshot.writeVarInt(out, tableSize);
+        for (int i = 0; i < tableSize; i++) {
+            out.writeUTF(IdTable.CHANNELS.name(i));
+        }
+        Snapshot.writeVarInt(out, existing.size());
+        for (CommunicationChannel channel : existing) {
+            Snapshot.writeVarInt(out, channel.getChannelIndex());
+        }
+        Snapshot.writeVarInt(out, owners.size());
+        for (int i = 0; i < owners.size(); i++) {
+            out.writeUTF(IdTable.USERS.name(owners.get(i)));
+            int[] channelIndexes = joined.get(i);
+            Snapshot.writeVarInt(out, channelIndexes.length);
+            for (int channelIndex : channelIndexes) {
+                Snapshot.writeVarInt(out, channelIndex);
+            }
+        }
+    }
+
+    /**
+     * Carrega os canais e as associações guardados no snapshot, reconstruindo os membros de cada canal.
+     *
+     * @param in Stream da secção
+     * @throws IOException Se a secção for inválida
+     */
+    static void readSnapshot(DataInputStream in) throws IOException {
+        String[] names = new String[Snapshot.readVarInt(in)];
+        int[] indexes = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = in.readUTF();
+            indexes[i] = IdTable.CHANNELS.intern(names[i]);
+        }
+        int existing = Snapshot.readVarInt(in);
+        for (int i = 0; i < existing; i++) {
+            applyChannelLine(names[Snapshot.readVarInt(in)]);
+        }
+        int owners = Snapshot.readVarInt(in);
+        for (int i = 0; i < owners; i++) {
+            String userId = in.readUTF();
+            IntSet joined = channelsOf(IdTable.USERS.intern(userId));
+            int count = Snapshot.readVarInt(in);
+            for (int c = 0; c < count; c++) {
+                int position = Snapshot.readVarInt(in);
+                joined.add(indexes[position]);
+                CommunicationChannel channel = channels.get(names[position]);
+                if (channel != null) {
+                    channel.addMember(userId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Obtém o conjunto de canais de um utilizador, criando-o se ainda não existir.
+     * 
+     * @param userIndex Número do utilizador
+     * @return Conjunto dos números dos canais do utilizador
+     */
+    private static IntSet channelsOf(int userIndex) {
+        IntSet joined = existingChannelsOf(userIndex);
+        if (joined != null) {
+            return joined;
+        }
+        synchronized (ServerChannels.class) {
+            IntSet[] current = userChannels;
+            if (userIndex >= current.length) {
+                current = Arrays.copyOf(current, Math.max(userIndex + 1, Math.max(current.length * 2, IdTable.USERS.size())));
+            }
+            if (current[userIndex] == null) {
+                current[userIndex] = new IntSet();
+            }
+            userChannels = current;
+            return current[userIndex];
+        }
+    }
+
+    /**
+     * Obtém o conjunto de canais de um utilizador, se existir.
+     * 
+     * @param userIndex Número do utilizador, ou -1
+     * @return Conjunto dos números dos canais do utilizador, ou null
+     */
+    private static IntSet existingChannelsOf(int userIndex) {
+        IntSet[] current = userChannels;
+        return userIndex >= 0 && userIndex < current.length ? current[userIndex] : null;
+    }
+
+    /**
+     * Obtém os canais associados a um utilizador.
+     * 
+     * @param userId ID do utilizador
+     * @return Cópia do conjunto de canais em que o utilizador participa
+     */
+    public static Set<String> getUserChannels(String userId) {
+        IntSet joined = existingChannelsOf(IdTable.USERS.find(userId));
+        if (joined == null) {
+            return Collections.emptySet();
+        }
+        int[] indexes = joined.toArray();
+        Set<String> ids = new HashSet<>(indexes.length * 2);
+        for (int index : indexes) {
+            ids.add(IdTable.CHANNELS.name(index));
+        }
+        return ids;
+    }
+
+    /**
+     * Verifica se um utilizador está num canal.
+     * 
+     * @param userId ID do utilizador
+     * @param channelId ID do canal
+     * @return Verdadeiro se o utilizador está no canal, falso caso contrário
+     */
+    public static boolean isMember(String userId, String channelId) {
+        IntSet joined = existingChannelsOf(IdTable.USERS.find(userId));
+        return joined != null && joined.contains(IdTable.CHANNELS.find(channelId));
+    }
+
+    /**
+     * Adiciona um utilizador a um canal, atualizando o índice, os membros do canal e o registo.
+     * 
+     * @param userId ID do utilizador
+     * @param channel Canal em que o utilizador entra
+     * @return Verdadeiro se o utilizador entrou, falso se já estava no canal
+     */
+    public static boolean joinChannel(String userId, CommunicationChannel channel) {
+        String channelId = channel.getChannelId();
+        if (!channelsOf(IdTable.USERS.intern(userId)).add(channel.getChannelIndex())) {
+            return false;
+        }
+        logUserChannelMembership(userId, "entrou", channelId);
+        channel.addMember(userId);
+        return true;
+    }
+
+    /**
+     * Remove um utilizador de um canal, atualizando o índice, os membros do canal e o registo.
+     * 
+     * @param userId ID do utilizador
+     * @param channel Canal de que o utilizador sai
+     * @return Verdadeiro se o utilizador saiu, falso se não estava no canal
+     */
+    public static boolean leaveChannel(String userId, CommunicationChannel channel) {
+        String channelId = channel.getChannelId();
+        IntSet joined = existingChannelsOf(IdTable.USERS.find(userId));
+        if (joined == null || !joined.remove(channel.getChannelIndex())) {
+            return false;
+        }
+        channel.removeMember(userId);
+        logUserChannelMembership(userId, "saiu", channelId);
+        return true;
+    }
+
+    /**
+     * Regista a associação de um utilizador a um canal.
+     * 
+     * @param clientId ID do cliente
+     * @param action Ação realizada ("entrou" ou "saiu")
+     * @param channelId ID do canal
+     */
+    private static void logUserChannelMembership(String clientId, String action, String channelId) {
+        Journal.append(USER_CHANNEL_MEMBERSHIP_FILE, clientId + " " + action + " " + channelId).exceptionally(e -> {
+            System.out.println("Erro ao registrar a associação do utilizador ao canal: " + e.getMessage());
+            return null;
+        });
+    }
+}
\ No newline at end of file
@@ -0,0 +1,276 @@
+package sdtp;
+
+/**
+ * Classe que reúne as métricas operacionais do servidor.
+ * Os contadores usam LongAdder para que as threads que os atualizam não disputem a mesma linha de cache,
+ * e as latências e tamanhos são guardados em histogramas, para se poder consultar percentis.
+ * Os valores que dependem do estado atual (filas de saída, pools) só são calculados quando se pede um resumo.
+ */
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+class ServerMetrics {
+    // Número de mensagens em fila a partir do qual um cliente é considerado lento
+    private static final int SLOW_CLIENT_QUEUE_DEPTH = 1000;
+    // Número de clientes mais atrasados mostrados no resumo
+    private static final int LAGGING_CLIENTS_SHOWN = 5;
+
+    private static final LongAdder accepts = new LongAdder();
+    private static final LongAdder handshakesFailed = new LongAdder();
+    private static final LongAdder handshakesTimedOut = new LongAdder();
+    private static final LongAdder handshakesRejected = new LongAdder();
+    private static final Histogram handshakeLatency = new Histogram();
+    private static final Map<String, Histogram> commandLatency = new ConcurrentSkipListMap<>();
+    private static final Histogram fanout = new Histogram();
+    private static final LongAdder outboundDropped = new LongAdder();
+    private static final LongAdder slowConsumerDisconnects = new LongAdder();
+    private static final LongAdder commandsThrottled = new LongAdder();
+    private static final Histogram journalLatency = new Histogram();
+    private static final Histogram journalBatchSize = new Histogram();
+    private static final Map<String, ThreadPoolExecutor> pools = new ConcurrentSkipListMap<>();
+    private static final LongAdder eventLoopBusyNanos = new LongAdder();
+    private static volatile int eventLoops;
+
+    private static long lastSnapshotAccepts;
+    private static long lastSnapshotBusyNanos;
+    private static long lastSnapshotTime = System.nanoTime();
+
+    /**
+     * Regista a aceitação de uma nova conexão.
+     */
+    public static void recordAccept() {
+        accepts.increment();
+    }
+
+    /**
+     * Regista um handshake de login concluído com sucesso.
+     *
+     * @param startNanos Instante (System.nanoTime) em que a conexão foi aceite
+     */
+    public static void recordHandshake(long startNanos) {
+        handshakeLatency.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Regista um handshake terminado sem autenticação (credenciais inválidas ou conexão fechada).
+     */
+    public static void recordHandshakeFailure() {
+        handshakesFailed.increment();
+    }
+
+    /**
+     * Regista um handshake que excedeu o tempo limite.
+     */
+    public static void recordHandshakeTimeout() {
+        handshakesTimedOut.increment();
+    }
+
+    /**
+     * Regista uma conexão recusada por a fila de handshakes pendentes estar cheia.
+     */
+    public static void recordHandshakeRejected() {
+        handshakesRejected.increment();
+    }
+
+    /**
+     * Regista a execução de um comando de um cliente.
+     *
+     * @param command Nome do comando
+     * @param nanos Tempo de execução
+     */
+    public static void recordCommand(String command, long nanos) {
+        commandLatency(command).record(nanos);
+    }
+
+    /**
+     * Obtém o histograma de latências de um comando, criando-o se ainda não existir.
+     * Quem executa o mesmo comando muitas vezes pode guardar o histograma e registar diretamente nele.
+     *
+     * @param command Nome do comando
+     * @return Histograma de latências do comando
+     */
+    static Histogram commandLatency(String command) {
+        Histogram histogram = commandLatency.get(command);
+        if (histogram == null) {
+            histogram = commandLatency.computeIfAbsent(command, k -> new Histogram());
+        }
+        return histogram;
+    }
+
+    /**
+     * Regista uma difusão para vários destinatários (canal ou emergência).
+     *
+     * @param recipients Número de destinatários
+     */
+    public static void recordFanout(int recipients) {
+        fanout.record(recipients);
+    }
+
+    /**
+     * Regista mensagens descartadas da fila de saída de um cliente que passou do limite.
+     *
+     * @param count Número de mensagens descartadas
+     */
+    public static void recordOutboundDropped(int count) {
+        outboundDropped.add(count);
+    }
+
+    /**
+     * Regista um cliente desligado por a sua fila de saída ter passado do limite.
+     */
+    public static void recordSlowConsumerDisconnect() {
+        slowConsumerDisconnects.increment();
+    }
+
+    /**
+     * Regista um comando ignorado por o cliente ter excedido o limite de comandos por segundo.
+     */
+    public static void recordCommandThrottled() {
+        commandsThrottled.increment();
+    }
+
+    /**
+     * Regista a escrita de um lote pelo Journal.
+     *
+     * @param entries Número de pedidos no lote
+     * @param nanos Tempo de escrita (e sincronização) do lote
+     */
+    public static void recordJournalBatch(int entries, long nanos) {
+        journalBatchSize.record(entries);
+        journalLatency.record(nanos);
+    }
+
+    /**
+     * Regista o tempo que um event loop passou a processar eventos, fora da espera no Selector.
+     *
+     * @param nanos Tempo de processamento
+     */
+    public static void recordEventLoopBusy(long nanos) {
+        eventLoopBusyNanos.add(nanos);
+    }
+
+    /**
+     * Indica o número de event loops do modo NIO, para calcular a sua utilização.
+     *
+     * @param count Número de event loops
+     */
+    public static void registerEventLoops(int count) {
+        eventLoops = count;
+    }
+
+    /**
+     * Regista um pool de threads cuja utilização deve aparecer nos resumos.
+     * Executores que não são ThreadPoolExecutor (ex.: threads virtuais) são ignorados.
+     *
+     * @param name Nome do pool
+     * @param pool Executor do pool
+     */
+    public static void registerPool(String name, ExecutorService pool) {
+        if (pool instanceof ThreadPoolExecutor) {
+            pools.put(name, (ThreadPoolExecutor) pool);
+        }
+    }
+
+    /**
+     * Produz um resumo das métricas, incluindo as taxas desde o resumo anterior.
+     *
+     * @return Linhas de texto com as métricas atuais
+     */
+    public static synchronized List<String> snapshot() {
+        long now = System.nanoTime();
+        double seconds = (now - lastSnapshotTime) / 1_000_000_000.0;
+        long totalAccepts = accepts.sum();
+        double acceptsPerSecond = seconds > 0 ? (totalAccepts - lastSnapshotAccepts) / seconds : 0;
+        long busyNanos = eventLoopBusyNanos.sum();
+        double loopUtilization = seconds > 0 && eventLoops > 0
+                ? (busyNanos - lastSnapshotBusyNanos) / ((now - lastSnapshotTime) * (double) eventLoops) : 0;
+        lastSnapshotAccepts = totalAccepts;
+        lastSnapshotBusyNanos = busyNanos;
+        lastSnapshotTime = now;
+
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("Conexoes: %d aceites (%.2f/s), %d sessoes ativas | Handshakes: %d ok, %d falhados,"
+                + " %d expirados, %d recusados, latencia %s",
+                totalAccepts, acceptsPerSecond, ClientHandler.clients.size(), handshakeLatency.count(),
+                handshakesFailed.sum(), handshakesTimedOut.sum(), handshakesRejected.sum(),
+                handshakeLatency.formatMillis()));
+        for (Map.Entry<String, Histogram> entry : commandLatency.entrySet()) {
+            lines.add("Comando '" + entry.getKey() + "': " + entry.getValue().formatMillis());
+        }
+        lines.add("Difusoes (destinatarios): " + fanout.formatValues());
+        lines.add(EmergencyLane.summary());
+        lines.add(Sessions.summary());
+        lines.add(OfflineInbox.summary());
+        lines.add(Snapshot.summary());
+        lines.addAll(outboundSummary());
+        lines.add("Journal: escrita " + journalLatency.formatMillis() + " | registos por lote " + journalBatchSize.formatValues());
+        StringBuilder poolSummary = new StringBuilder("Pools:");
+        for (Map.Entry<String, ThreadPoolExecutor> entry : pools.entrySet()) {
+            ThreadPoolExecutor pool = entry.getValue();
+            poolSummary.append(String.format(" %s %d/%d ativas, %d em fila;", entry.getKey(), pool.getActiveCount(),
+                    pool.getPoolSize(), pool.getQueue().size()));
+        }
+        if (eventLoops > 0) {
+            poolSummary.append(String.format(" event loops %d, utilizacao %.1f%%;", eventLoops, loopUtilization * 100));
+        }
+        lines.add(poolSummary.toString());
+        String replication = Replication.summary();
+        if (replication != null) {
+            lines.add(replication);
+        }
+        if (Cluster.isEnabled()) {
+            lines.add("Cluster: no " + Cluster.nodeId() + ", vista " + Cluster.view() + ", "
+                    + Cluster.remoteUserCount() + " utilizadores noutros nos, " + ChannelOwnership.summary());
+        }
+        return lines;
+    }
+
+    /**
+     * Resume as filas de saída dos clientes ligados e as medidas tomadas contra clientes lentos.
+     *
+     * @return Linha com o total, o máximo e o número de clientes lentos, e linha com os clientes mais atrasados
+     */
+    private static List<String> outboundSummary() {
+        long total = 0;
+        int max = 0;
+        String deepest = "-";
+        int slow = 0;
+        List<ClientHandler> lagging = new ArrayList<>();
+        for (ClientHandler client : ClientHandler.clients.values()) {
+            int depth = client.outboundDepth();
+            total += depth;
+            if (depth > max) {
+                max = depth;
+                deepest = client.getClientId();
+            }
+            if (depth >= SLOW_CLIENT_QUEUE_DEPTH) {
+                slow++;
+            }
+            if (depth > 0) {
+                lagging.add(client);
+            }
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("Filas de saida: %d mensagens, maior %d (%s), %d clientes com %d ou mais | limite %d (%s),"
+                + " %d mensagens descartadas, %d clientes desligados | %d comandos acima do limite de taxa",
+                total, max, deepest, slow, SLOW_CLIENT_QUEUE_DEPTH, OutboundQueue.CLIENT_LIMIT,
+                OutboundQueue.CLIENT_POLICY.name().toLowerCase(), outboundDropped.sum(), slowConsumerDisconnects.sum(),
+                commandsThrottled.sum()));
+        if (!lagging.isEmpty()) {
+            // O atraso é lido uma vez por cliente, porque continua a mudar enquanto se ordena
+            Map<ClientHandler, Long> lags = new HashMap<>();
+            for (ClientHandler client : lagging) {
+                lags.put(client, client.outboundLagNanos());
+            }
+            lagging.sort((a, b) -> Long.compare(lags.get(b), lags.get(a)));
+            StringBuilder line = new StringBuilder("Clientes mais atrasados:");
+            for (ClientHandler client : lagging.subList(0, Math.min(LAGGING_CLIENTS_SHOWN, lagging.size()))) {
+                line.append(String.format(" %s %.1fms (%d em fila, %d descartadas);", client.getClientId(),
+                        lags.get(client) / 1_000_000.0, client.outboundDepth(), client.outboundDropped()));
+            }
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,210 @@
+package sdtp;
+
+/**
+ * Classe que guarda as sessões dos clientes autenticados, para que um cliente cuja conexão caiu as possa retomar
+ * com o token de sessão em vez da senha, numa única ida e volta.
+ * Quando a conexão cai, a sessão fica desligada durante algum tempo (sdtp.session.ttlSeconds, 60s por omissão):
+ * o utilizador continua em ClientHandler.clients, representado por um ClientHandler sem conexão cuja fila de saída
+ * apenas guarda as mensagens que lhe são entregues, mas conta como desligado: as mensagens diretas vão para a
+ * OfflineInbox, entregue ao retomar ou no próximo login, para não se perderem se a sessão expirar. As mensagens que já tinham sido escritas na conexão antiga,
+ * mas que o cliente não chegou a receber, estão no ReplayLog dessa conexão.
+ * Ao retomar, o cliente indica quantas linhas recebeu e a nova conexão recebe apenas o que lhe falta,
+ * sem ler o histórico do disco; a pertença aos canais, que não depende da conexão, mantém-se.
+ * As sessões só existem na memória deste servidor: depois de uma mudança para o standby, o cliente usa a senha.
+ */
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+class Sessions {
+    static final long TTL_MS = TimeUnit.SECONDS.toMillis(Long.getLong("sdtp.session.ttlSeconds", 60));
+    // Número de mensagens escritas guardadas por conexão para reenviar ao retomar
+    static final int REPLAY_CAPACITY = Integer.getInteger("sdtp.session.replay", 256);
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
+    private static final Map<String, Session> byToken = new ConcurrentHashMap<>();
+    private static final SecureRandom random = new SecureRandom();
+    private static final AtomicLong resumed = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+    private static final AtomicLong expired = new AtomicLong();
+    private static final AtomicLong replayed = new AtomicLong();
+
+    /**
+     * Estado de uma sessão, ligada a uma conexão ou à espera de ser retomada.
+     * As mudanças de estado são feitas com o lock da sessão.
+     */
+    static final class Session {
+        final String token;
+        final String clientId;
+        final WireFormat format;
+        // ClientHandler da conexão atual, ou o que guarda as mensagens enquanto a sessão está desligada
+        ClientHandler handler;
+        ReplayLog log;
+        boolean detached;
+        long detachedAt;
+
+        Session(String token, String clientId, WireFormat format) {
+            this.token = token;
+            this.clientId = clientId;
+            this.format = format;
+        }
+    }
+
+    static {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(Sessions::expire, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gera um token de sessão. É gerado antes de a sessão ser aberta, porque a linha marcadora do ReplayLog o contém.
+     *
+     * @return Token aleatório de 128 bits, em hexadecimal
+     */
+    static String newToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(32);
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+        return token.toString();
+    }
+
+    /**
+     * Abre uma sessão para um cliente que se autenticou com a senha.
+     *
+     * @param token Token gerado com newToken
+     * @param handler ClientHandler da conexão
+     * @param format Protocolo da conexão; a sessão só pode ser retomada com o mesmo, porque as mensagens guardadas
+     *               já estão codificadas
+     * @param log Registo das mensagens escritas na conexão
+     * @return Sessão criada
+     */
+    static Session open(String token, ClientHandler handler, WireFormat format, ReplayLog log) {
+        Session session = new Session(token, handler.getClientId(), format);
+        session.handler = handler;
+        session.log = log;
+        byToken.put(token, session);
+        return session;
+    }
+
+    /**
+     * Desliga a sessão de uma conexão que caiu, passando as entregas para um ClientHandler sem conexão.
+     *
+     * @param session Sessão da conexão
+     * @param handler ClientHandler da conexão que caiu
+     * @param buffer ClientHandler sem conexão que guarda as mensagens até a sessão ser retomada
+     * @return Verdadeiro se a sessão ficou desligada; falso se já tinha sido retomada noutra conexão
+     */
+    static boolean detach(Session session, ClientHandler handler, ClientHandler buffer) {
+        synchronized (session) {
+            if (session.handler != handler || !byToken.containsKey(session.token)) {
+                return false;
+            }
+            session.handler = buffer;
+            session.detached = true;
+            session.detachedAt = System.currentTimeMillis();
+            return true;
+        }
+    }
+
+    /**
+     * Termina uma sessão a pedido do cliente ("sair"): o token deixa de ser válido.
+     *
+     * @param session Sessão a terminar
+     */
+    static void close(Session session) {
+        byToken.remove(session.token, session);
+    }
+
+    /**
+     * Obtém a sessão indicada por um token, para ser retomada por uma nova conexão do mesmo utilizador.
+     * Se a conexão antiga ainda não tiver sido dada como caída, é fechada e a sessão fica desligada.
+     *
+     * @param clientId ID do cliente que pede a sessão
+     * @param token Token da sessão
+     * @param format Protocolo da nova conexão
+     * @return Sessão desligada, pronta a ser ligada à nova conexão, ou null se o token não for válido
+     */
+    static Session claim(String clientId, String token, WireFormat format) {
+        Session session = byToken.get(token);
+        if (session == null || !session.clientId.equals(clientId) || session.format != format) {
+            rejected.incrementAndGet();
+            return null;
+        }
+        ClientHandler previous;
+        synchronized (session) {
+            previous = session.detached ? null : session.handler;
+        }
+        if (previous != null) {
+            previous.closeSession();
+        }
+        synchronized (session) {
+            if (!session.detached || byToken.get(token) != session) {
+                rejected.incrementAndGet();
+                return null;
+            }
+            session.detached = false;
+            resumed.incrementAndGet();
+            return session;
+        }
+    }
+
+    /**
+     * Liga a sessão retomada à nova conexão.
+     *
+     * @param session Sessão obtida com claim
+     * @param handler ClientHandler da nova conexão
+     * @param log Registo das mensagens escritas na nova conexão
+     * @param frames Número de mensagens reenviadas
+     */
+    static void attach(Session session, ClientHandler handler, ReplayLog log, int frames) {
+        synchronized (session) {
+            session.handler = handler;
+            session.log = log;
+        }
+        replayed.addAndGet(frames);
+    }
+
+    /**
+     * Termina as sessões desligadas há mais tempo do que o permitido: o utilizador fica desligado.
+     */
+    private static void expire() {
+        long now = System.currentTimeMillis();
+        for (Session session : byToken.values()) {
+            ClientHandler buffer;
+            synchronized (session) {
+                if (!session.detached || now - session.detachedAt < TTL_MS) {
+                    continue;
+                }
+                byToken.remove(session.token);
+                buffer = session.handler;
+            }
+            expired.incrementAndGet();
+            buffer.closeSession();
+        }
+    }
+
+    /**
+     * Produz uma linha de resumo para as métricas.
+     *
+     * @return Linha com as sessões abertas e desligadas e os resultados das retomas
+     */
+    static String summary() {
+        int detached = 0;
+        for (Session session : byToken.values()) {
+            synchronized (session) {
+                if (session.detached) {
+                    detached++;
+                }
+            }
+        }
+        return "Sessoes: " + byToken.size() + " abertas, " + detached + " desligadas | retomadas " + resumed.get()
+                + ", recusadas " + rejected.get() + ", expiradas " + expired.get() + ", mensagens reenviadas " + replayed.get();
+    }
+}
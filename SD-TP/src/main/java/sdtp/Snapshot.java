@@ -0,0 +1,432 @@
+package sdtp;
+
+/**
+ * Classe que guarda periodicamente o estado do servidor num ficheiro binário compacto (state.snapshot),
+ * para que o arranque não tenha de reler todos os registos desde o início.
+ * O snapshot tem uma secção por parte do estado (utilizadores; canais e associações; pedidos pendentes;
+ * índice do histórico), e cada secção indica, para cada ficheiro de onde o estado vem, a posição até onde
+ * já o inclui e o CRC dos bytes imediatamente antes dessa posição. No arranque, cada secção válida é carregada
+ * e o ficheiro correspondente só é lido a partir dessa posição; uma secção cujo ficheiro foi substituído ou truncado
+ * (ex.: o arquivo de pedidos depois de compactado) é ignorada e o ficheiro é lido desde o início.
+ * O estado em memória é guardado depois de registadas as posições: as linhas escritas entretanto podem já estar
+ * incluídas, mas voltam a ser aplicadas no arranque, o que não altera o resultado (a última linha de cada chave prevalece).
+ * Os pedidos pendentes, que não são idempotentes, são lidos do próprio ficheiro na thread do Journal,
+ * e o índice do histórico só inclui as linhas já escritas, pelo que estes correspondem exatamente à posição registada.
+ * O intervalo é lido da propriedade sdtp.snapshot.intervalSeconds (300 por omissão; 0 desativa).
+ * Uso (gerar o snapshot sem iniciar o servidor): java -Dsdtp.data.dir=<pasta> sdtp.Snapshot
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+class Snapshot {
+    static final String SNAPSHOT_FILE = DataFiles.path("state.snapshot");
+    static final long INTERVAL_SECONDS = Long.getLong("sdtp.snapshot.intervalSeconds", 300);
+    private static final int MAGIC = 0x53445450; // "SDTP"
+    private static final int VERSION = 1;
+    // Número de bytes antes da posição registada cujo CRC confirma que o ficheiro não foi substituído
+    private static final int TAIL_CHECK_BYTES = 4096;
+
+    private static final String USERS = "utilizadores";
+    private static final String CHANNELS = "canais";
+    private static final String APPROVALS = "pedidos";
+    private static final String MESSAGES = "mensagens";
+
+    // Posição a partir da qual cada ficheiro deve ser lido no arranque, para as secções carregadas
+    private static final Map<String, Long> replayFrom = new ConcurrentHashMap<>();
+    // Posições do último snapshot escrito, para não escrever outro igual
+    private static Map<String, Long> lastPositions = Collections.emptyMap();
+    private static volatile String lastSummary = "Snapshot: nenhum escrito";
+    private static volatile String restoreSummary = "nenhum snapshot carregado";
+
+    /**
+     * Posição de um ficheiro incluída numa secção.
+     */
+    private static final class Mark {
+        final String name;
+        final long position;
+        final long tailCrc;
+
+        Mark(String name, long position, long tailCrc) {
+            this.name = name;
+            this.position = position;
+            this.tailCrc = tailCrc;
+        }
+    }
+
+    /**
+     * Secção lida do snapshot, ainda por aplicar.
+     */
+    private static final class Section {
+        final String name;
+        final List<Mark> marks;
+        final byte[] body;
+
+        Section(String name, List<Mark> marks, byte[] body) {
+            this.name = name;
+            this.marks = marks;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Método principal: carrega o estado a partir dos ficheiros de dados e escreve o snapshot.
+     *
+     * @param args Não usados
+     */
+    public static void main(String[] args) {
+        ClientHandler.loadState();
+        try {
+            write();
+            System.out.println(lastSummary);
+        } catch (IOException e) {
+            System.err.println("Erro ao escrever o snapshot: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Obtém a posição a partir da qual um ficheiro deve ser lido no arranque.
+     *
+     * @param path Caminho do ficheiro (DataFiles.path)
+     * @return Posição incluída no snapshot carregado, ou 0 se o ficheiro deve ser lido desde o início
+     */
+    static long replayFrom(String path) {
+        return replayFrom.getOrDefault(path, 0L);
+    }
+
+    /**
+     * Abre um ficheiro de texto para leitura a partir da posição incluída no snapshot carregado.
+     *
+     * @param path Caminho do ficheiro (DataFiles.path)
+     * @return Leitor posicionado depois das linhas já carregadas do snapshot
+     * @throws IOException Se o ficheiro não existir ou não puder ser aberto
+     */
+    static BufferedReader openTail(String path) throws IOException {
+        return open(path, replayFrom(path));
+    }
+
+    /**
+     * Abre um ficheiro de texto para leitura a partir de uma posição.
+     *
+     * @param path Caminho do ficheiro
+     * @param position Posição do início de uma linha
+     * @return Leitor posicionado
+     * @throws IOException Se o ficheiro não existir ou não puder ser aberto
+     */
+    static BufferedReader open(String path, long position) throws IOException {
+        FileInputStream in = new FileInputStream(path);
+        in.getChannel().position(position);
+        return new BufferedReader(new InputStreamReader(in));
+    }
+
+    /**
+     * Carrega as secções válidas do snapshot, se existir. Deve ser chamado no arranque, antes de ler os ficheiros.
+     */
+    static void restore() {
+        Path path = Paths.get(SNAPSHOT_FILE);
+        if (!Files.exists(path)) {
+            return;
+        }
+        long start = System.nanoTime();
+        // Secções cujos ficheiros coincidem, pela ordem do snapshot
+        List<Section> valid = new ArrayList<>();
+        try {
+            byte[] data = Files.readAllBytes(path);
+            if (data.length < Long.BYTES) {
+                throw new IOException("snapshot truncado");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length - Long.BYTES);
+            if (crc.getValue() != ByteBuffer.wrap(data, data.length - Long.BYTES, Long.BYTES).getLong()) {
+                throw new IOException("CRC do snapshot inválido");
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - Long.BYTES));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("formato do snapshot desconhecido");
+            }
+            int sections = in.readInt();
+            for (int i = 0; i < sections; i++) {
+                String section = in.readUTF();
+                List<Mark> marks = new ArrayList<>();
+                int files = in.readInt();
+                for (int f = 0; f < files; f++) {
+                    marks.add(new Mark(in.readUTF(), in.readLong(), in.readLong()));
+                }
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                if (matches(marks)) {
+                    valid.add(new Section(section, marks, body));
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Snapshot ignorado: " + e.getMessage());
+            return;
+        }
+        // O CRC já foi confirmado: um erro a partir daqui deixaria o estado incompleto, pelo que interrompe o arranque
+        List<String> restored = new ArrayList<>();
+        for (Section section : valid) {
+            try {
+                readSection(section.name, new DataInputStream(new ByteArrayInputStream(section.body)));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Secção " + section.name + " do snapshot inválida", e);
+            }
+            for (Mark mark : section.marks) {
+                replayFrom.put(DataFiles.path(mark.name), mark.position);
+            }
+            restored.add(section.name);
+        }
+        restoreSummary = "carregado em " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                + " ms (secções " + restored + ")";
+    }
+
+    /**
+     * Verifica se os ficheiros de uma secção ainda contêm os bytes que a secção inclui.
+     *
+     * @param marks Posições da secção
+     * @return Verdadeiro se todos os ficheiros têm pelo menos esse tamanho e o CRC coincide
+     * @throws IOException Se ocorrer um erro ao ler um ficheiro
+     */
+    private static boolean matches(List<Mark> marks) throws IOException {
+        for (Mark mark : marks) {
+            Path path = Paths.get(DataFiles.path(mark.name));
+            long size = Files.exists(path) ? Files.size(path) : 0;
+            if (size < mark.position || tailCrc(path, mark.position) != mark.tailCrc) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Aplica uma secção ao estado em memória.
+     *
+     * @param section Nome da secção
+     * @param in Conteúdo da secção
+     * @throws IOException Se a secção for inválida
+     */
+    private static void readSection(String section, DataInputStream in) throws IOException {
+        switch (section) {
+            case USERS:
+                ClientHandler.readSnapshot(in);
+                break;
+            case CHANNELS:
+                ServerChannels.readSnapshot(in);
+                break;
+            case APPROVALS:
+                PendingRequests.readSnapshot(in);
+                break;
+            case MESSAGES:
+                MessageStore.readSnapshot(in);
+                break;
+            default:
+                // Secção de uma versão futura; o ficheiro correspondente é lido desde o início
+                break;
+        }
+    }
+
+    /**
+     * Escreve um snapshot, se o estado mudou desde o último, e mostra o erro na consola se falhar.
+     * Usado pelo agendamento periódico do servidor.
+     */
+    static void writePeriodic() {
+        try {
+            write();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Erro ao escrever o snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Escreve um snapshot do estado atual, substituindo o anterior, se algum ficheiro mudou desde o último.
+     *
+     * @throws IOException Se ocorrer um erro ao escrever o ficheiro
+     */
+    static synchronized void write() throws IOException {
+        long start = System.nanoTime();
+        String[] logged = {"users.txt", "channels.txt", "user_channel_membership.log", "approvals.log"};
+        Map<String, Long> positions = new HashMap<>();
+        ByteArrayOutputStream approvals = new ByteArrayOutputStream();
+        IOException[] failure = new IOException[1];
+        // Na thread do Journal: nada é acrescentado enquanto se registam as posições e se lê o arquivo de pedidos
+        Journal.barrier(() -> {
+            try {
+                for (String name : logged) {
+                    Path path = Paths.get(DataFiles.path(name));
+                    positions.put(name, Files.exists(path) ? Files.size(path) : 0);
+                }
+                PendingRequests.writeSnapshot(new DataOutputStream(approvals));
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        }).join();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        ByteArrayOutputStream messages = new ByteArrayOutputStream();
+        positions.put("messages.log", MessageStore.writeSnapshot(new DataOutputStream(messages)));
+        if (positions.equals(lastPositions)) {
+            return;
+        }
+        ByteArrayOutputStream users = new ByteArrayOutputStream();
+        ClientHandler.writeSnapshot(new DataOutputStream(users));
+        ByteArrayOutputStream channels = new ByteArrayOutputStream();
+        ServerChannels.writeSnapshot(new DataOutputStream(channels));
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(4);
+        writeSection(out, USERS, users, positions, "users.txt");
+        writeSection(out, CHANNELS, channels, positions, "channels.txt", "user_channel_membership.log");
+        writeSection(out, APPROVALS, approvals, positions, "approvals.log");
+        writeSection(out, MESSAGES, messages, positions, "messages.log");
+        CRC32 crc = new CRC32();
+        crc.update(buffer.toByteArray());
+        out.writeLong(crc.getValue());
+        out.flush();
+
+        Path file = Paths.get(SNAPSHOT_FILE);
+        Path temp = Paths.get(DataFiles.path("temp_state.snapshot"));
+        Files.write(temp, buffer.toByteArray());
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lastPositions = positions;
+        lastSummary = "Snapshot: " + buffer.size() + " bytes escritos em "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, " + MessageStore.size() + " mensagens";
+    }
+
+    /**
+     * Escreve uma secção: as posições dos seus ficheiros e o seu conteúdo.
+     *
+     * @param out Stream do snapshot
+     * @param section Nome da secção
+     * @param body Conteúdo da secção
+     * @param positions Posição de cada ficheiro
+     * @param names Ficheiros de onde vem o estado da secção
+     * @throws IOException Se ocorrer um erro ao ler um ficheiro
+     */
+    private static void writeSection(DataOutputStream out, String section, ByteArrayOutputStream body,
+            Map<String, Long> positions, String... names) throws IOException {
+        out.writeUTF(section);
+        out.writeInt(names.length);
+        for (String name : names) {
+            long position = positions.get(name);
+            out.writeUTF(name);
+            out.writeLong(position);
+            out.writeLong(tailCrc(Paths.get(DataFiles.path(name)), position));
+        }
+        out.writeInt(body.size());
+        body.writeTo(out);
+    }
+
+    /**
+     * Calcula o CRC dos bytes de um ficheiro imediatamente antes de uma posição.
+     *
+     * @param path Ficheiro
+     * @param position Posição
+     * @return CRC dos últimos TAIL_CHECK_BYTES bytes (ou menos, no início do ficheiro) antes da posição
+     * @throws IOException Se ocorrer um erro ao ler o ficheiro
+     */
+    private static long tailCrc(Path path, long position) throws IOException {
+        CRC32 crc = new CRC32();
+        if (position == 0) {
+            return crc.getValue();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(TAIL_CHECK_BYTES, position));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long from = position - buffer.capacity();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, from + buffer.position()) < 0) {
+                    break;
+                }
+            }
+        }
+        buffer.flip();
+        crc.update(buffer);
+        return crc.getValue();
+    }
+
+    /**
+     * Escreve um inteiro não negativo em 1 a 5 bytes (7 bits por byte).
+     *
+     * @param out Stream de destino
+     * @param value Valor não negativo
+     * @throws IOException Se ocorrer um erro ao escrever
+     */
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Lê um inteiro escrito com writeVarInt.
+     *
+     * @param in Stream de origem
+     * @return Valor lido
+     * @throws IOException Se ocorrer um erro ao ler
+     */
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("inteiro inválido no snapshot");
+    }
+
+    /**
+     * Escreve as primeiras posições de uma lista ordenada de sequências, como diferenças entre valores seguidos.
+     *
+     * @param out Stream de destino
+     * @param list Lista ordenada
+     * @param size Número de valores a escrever
+     * @throws IOException Se ocorrer um erro ao escrever
+     */
+    static void writeIntList(DataOutput out, IntList list, int size) throws IOException {
+        writeVarInt(out, size);
+        int previous = 0;
+        for (int i = 0; i < size; i++) {
+            writeVarInt(out, list.get(i) - previous);
+            previous = list.get(i);
+        }
+    }
+
+    /**
+     * Lê uma lista escrita com writeIntList.
+     *
+     * @param in Stream de origem
+     * @return Lista ordenada
+     * @throws IOException Se ocorrer um erro ao ler
+     */
+    static IntList readIntList(DataInput in) throws IOException {
+        int size = readVarInt(in);
+        IntList list = new IntList(Math.max(4, size));
+        int value = 0;
+        for (int i = 0; i < size; i++) {
+            value += readVarInt(in);
+            list.add(value);
+        }
+        return list;
+    }
+
+    /**
+     * Produz as linhas de resumo para as métricas.
+     *
+     * @return Linha com o último snapshot escrito e o carregado no arranque
+     */
+    static String summary() {
+        return lastSummary + " | arranque: " + restoreSummary;
+    }
+}
@@ -0,0 +1,67 @@
+package sdtp;
+
+/**
+ * Formatos em que o servidor envia mensagens a um cliente: linhas de texto ou tramas TEXT do protocolo binário.
+ */
+import java.nio.charset.*;
+import java.util.*;
+
+enum WireFormat {
+    TEXT,
+    BINARY;
+
+    /**
+     * Codifica uma linha para enviar a um cliente neste formato.
+     *
+     * @param line Linha a codificar, sem terminador
+     * @return Bytes a colocar na fila de saída
+     */
+    byte[] encode(String line) {
+        if (this == TEXT) {
+            return (line + System.lineSeparator()).getBytes(Charset.defaultCharset());
+        }
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return BinaryProtocol.encode(BinaryProtocol.TEXT, bytes, bytes.length);
+    }
+
+    /**
+     * Obtém o charset com que o PrintWriter da sessão deve codificar o texto.
+     *
+     * @return Charset do formato
+     */
+    Charset charset() {
+        return this == TEXT ? Charset.defaultCharset() : StandardCharsets.UTF_8;
+    }
+
+    /**
+     * Converte os bytes escritos por um println neste formato.
+     * No formato binário, o terminador de linha é retirado e a linha é colocada numa trama TEXT.
+     *
+     * @param written Bytes escritos pelo PrintWriter, incluindo o terminador de linha
+     * @return Bytes a colocar na fila de saída
+     */
+    byte[] fromWriter(byte[] written) {
+        if (this == TEXT) {
+            return written;
+        }
+        int length = written.length;
+        while (length > 0 && (written[length - 1] == '\n' || written[length - 1] == '\r')) {
+            length--;
+        }
+        return BinaryProtocol.encode(BinaryProtocol.TEXT, written, length);
+    }
+
+    /**
+     * Codifica uma linha em todos os formatos, para ser partilhada por todos os destinatários de uma difusão.
+     *
+     * @param line Linha a codificar, sem terminador
+     * @return Bytes da linha em cada formato
+     */
+    static Map<WireFormat, byte[]> encodeAll(String line) {
+        Map<WireFormat, byte[]> payloads = new EnumMap<>(WireFormat.class);
+        for (WireFormat format : values()) {
+            payloads.put(format, format.encode(line));
+        }
+        return payloads;
+    }
+}
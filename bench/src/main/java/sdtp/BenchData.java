@@ -0,0 +1,159 @@
+package sdtp;
+
+/**
+ * Classe que prepara o ambiente de cada benchmark.
+ * Cada conjunto de dados é gerado uma única vez numa diretoria de cache (a indicada pela propriedade sdtp.bench.data,
+ * ou target/bench-data) e copiado para uma diretoria temporária em cada fork, porque os benchmarks acrescentam
+ * registos aos ficheiros. A diretoria temporária passa a ser a diretoria de dados do servidor; por isso, este método
+ * tem de ser chamado antes de qualquer classe do servidor ser inicializada.
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+class BenchData {
+    private static final String CACHE_PROPERTY = "sdtp.bench.data";
+    private static final String COMPLETE_MARKER = ".completo";
+    private static final long SERVER_START_TIMEOUT_SECONDS = 120;
+
+    /**
+     * Prepara uma cópia de um conjunto de dados e usa-a como diretoria de dados do servidor.
+     *
+     * @param largeFile Registo que deve ter o número de linhas indicado
+     * @param lines Número de linhas desse registo
+     * @return Diretoria temporária com os dados, a apagar com {@link #discard(Path)}
+     * @throws IOException Se ocorrer um erro ao gerar ou copiar os dados
+     */
+    static Path use(String largeFile, int lines) throws IOException {
+        Path cache = Paths.get(System.getProperty(CACHE_PROPERTY, "target/bench-data"))
+                .resolve(largeFile.replace('.', '_') + "-" + lines);
+        if (!Files.exists(cache.resolve(COMPLETE_MARKER))) {
+            DataGenerator.generate(cache, largeFile, lines, DataGenerator.DEFAULT_SEED);
+            Files.createFile(cache.resolve(COMPLETE_MARKER));
+        }
+        Path directory = Files.createTempDirectory("sdtp-bench");
+        try (Stream<Path> files = Files.list(cache)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.copy(file, directory.resolve(file.getFileName()));
+            }
+        }
+        System.setProperty(DataFiles.DIRECTORY_PROPERTY, directory.toString());
+        return directory;
+    }
+
+    /**
+     * Apaga uma diretoria criada por {@link #use(String, int)}.
+     *
+     * @param directory Diretoria a apagar
+     */
+    static void discard(Path directory) {
+        if (directory == null) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            System.out.println("Não foi possível apagar " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Copia uma diretoria de dados gerados, porque o servidor acrescenta registos aos ficheiros.
+     *
+     * @param template Diretoria com os dados gerados
+     * @return Cópia, a apagar com {@link #discard(Path)}
+     * @throws IOException Se ocorrer um erro ao copiar
+     */
+    static Path copy(Path template) throws IOException {
+        Path directory = Files.createTempDirectory("sdtp-servidor");
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(template)) {
+            for (Path file : files) {
+                Files.copy(file, directory.resolve(file.getFileName()));
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * Inicia um servidor noutro processo, sobre uma diretoria de dados, e espera que aceite conexões.
+     * O limite de comandos por cliente fica desativado, para que a carga gerada não seja recusada;
+     * a saída do servidor fica em servidor.log, na diretoria de dados.
+     *
+     * @param mode Modo do servidor (nio, virtual ou pool)
+     * @param directory Diretoria de dados do servidor
+     * @param port Porta do servidor
+     * @return Processo do servidor
+     * @throws IOException Se o servidor não ficar disponível a tempo
+     * @throws InterruptedException Se a espera for interrompida
+     */
+    static Process startServer(String mode, Path directory, int port) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                "-D" + DataFiles.DIRECTORY_PROPERTY + "=" + directory,
+                "-Dsdtp.port=" + port,
+                "-Dsdtp.client.commandRate=0",
+                "sdtp.DistributedServer"));
+        if (!"pool".equals(mode)) {
+            command.add(mode);
+        }
+        Process process = new ProcessBuilder(command)
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(directory.resolve("servidor.log").toFile())
+                .start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SERVER_START_TIMEOUT_SECONDS);
+        while (System.nanoTime() < deadline) {
+            if (!process.isAlive()) {
+                throw new IOException("O servidor terminou ao iniciar (ver " + directory.resolve("servidor.log") + ")");
+            }
+            try (Socket probe = new Socket("localhost", port)) {
+                return process;
+            } catch (IOException e) {
+                Thread.sleep(200);
+            }
+        }
+        process.destroy();
+        throw new IOException("O servidor não aceitou conexões em " + SERVER_START_TIMEOUT_SECONDS + " s");
+    }
+
+    /**
+     * Cria uma fila de saída que descarta as mensagens no momento em que são colocadas,
+     * para medir o custo de as produzir sem depender de sockets.
+     *
+     * @return Fila de saída
+     */
+    static OutboundQueue discardingQueue() {
+        OutboundQueue[] queue = new OutboundQueue[1];
+        queue[0] = new OutboundQueue(() -> {
+            do {
+                while (queue[0].poll() != null) {
+                    // A mensagem é descartada
+                }
+            } while (queue[0].drainFinished());
+        }, () -> { }, () -> { });
+        return queue[0];
+    }
+
+    /**
+     * Abre uma sessão autenticada para um utilizador gerado, sem conexão de rede.
+     * O estado do servidor é carregado, como no arranque, se ainda não o tiver sido.
+     *
+     * @param userId Utilizador gerado (a senha é igual ao nome)
+     * @return Sessão autenticada
+     */
+    static ClientHandler login(String userId) {
+        ClientHandler.loadState();
+        ClientHandler client = new ClientHandler(discardingQueue(), userId, WireFormat.TEXT);
+        client.handleLine(userId);
+        if (!client.isAuthenticated()) {
+            throw new IllegalStateException("Não foi possível autenticar " + userId);
+        }
+        return client;
+    }
+}
@@ -0,0 +1,64 @@
+package sdtp;
+
+/**
+ * Benchmark dos dois protocolos: interpretar uma mensagem recebida (split da linha de texto ou
+ * descodificação da trama binária) e codificar uma linha para enviar ao cliente em cada formato.
+ */
+import java.net.*;
+import java.nio.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"16", "256", "4096"})
+    public int messageLength;
+
+    private String line;
+    private byte[] frame;
+    private String outgoing;
+
+    @Setup
+    public void setUp() {
+        StringBuilder text = new StringBuilder(messageLength);
+        while (text.length() < messageLength) {
+            text.append("incendio no setor norte ");
+        }
+        text.setLength(messageLength);
+        line = "mensagem:u1:" + text;
+        frame = BinaryProtocol.encodeCommand(line);
+        outgoing = "Mensagem recebida de u0: " + text;
+    }
+
+    /**
+     * Interpretação de uma mensagem direta recebida pelo protocolo de texto, como nos comandos originais.
+     */
+    @Benchmark
+    public String[] parseText() {
+        return line.startsWith("mensagem:") ? line.split(":", 3) : null;
+    }
+
+    /**
+     * Descodificação da mesma mensagem recebida pelo protocolo binário.
+     */
+    @Benchmark
+    public BinaryProtocol.Frame decodeBinary() throws ProtocolException {
+        return BinaryProtocol.decode(ByteBuffer.wrap(frame));
+    }
+
+    @Benchmark
+    public byte[] encodeText() {
+        return WireFormat.TEXT.encode(outgoing);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return WireFormat.BINARY.encode(outgoing);
+    }
+}
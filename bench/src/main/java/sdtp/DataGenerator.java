@@ -0,0 +1,169 @@
+package sdtp;
+
+/**
+ * Classe que gera conjuntos de dados reproduzíveis para os benchmarks e testes de carga.
+ * Os ficheiros têm o mesmo formato dos ficheiros do servidor (users.txt, channels.txt, messages.log,
+ * user_channel_membership.log e approvals.log) e o conteúdo depende apenas do número de linhas e da semente.
+ * Os utilizadores chamam-se u0, u1, ... (com senha igual ao nome) e os canais c0, c1, ...
+ * Uso: java sdtp.DataGenerator <diretoria> <linhas> [semente] [utilizadores]
+ */
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class DataGenerator {
+    static final int USERS = 1000;
+    static final int CHANNELS = 100;
+    static final long DEFAULT_SEED = 42;
+    // Número de linhas dos registos que não são o objeto de um benchmark
+    static final int SMALL_FILE_LINES = 1000;
+    static final String MESSAGES_FILE = "messages.log";
+    static final String MEMBERSHIP_FILE = "user_channel_membership.log";
+    static final String APPROVALS_FILE = "approvals.log";
+
+    private static final String[] PROFILES = {
+        "Operador de Nivel Baixo", "Operador de Nivel Medio", "Coordenador Regional", "Administrador"
+    };
+    private static final String[] REQUEST_TYPES = {"DRE", "ACE", "OEM"};
+    private static final String[] WORDS = {
+        "incendio", "evacuacao", "equipa", "zona", "norte", "sul", "recursos", "agua", "ambulancia",
+        "estrada", "cortada", "abrigo", "feridos", "confirmado", "aguardar", "ordens", "setor", "urgente"
+    };
+
+    /**
+     * Método principal: gera todos os registos com o número de linhas indicado.
+     *
+     * @param args Diretoria de destino, número de linhas e, opcionalmente, a semente e o número de utilizadores
+     * @throws IOException Se ocorrer um erro ao escrever os ficheiros
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Uso: java sdtp.DataGenerator <diretoria> <linhas> [semente] [utilizadores]");
+            return;
+        }
+        Path directory = Paths.get(args[0]);
+        int lines = Integer.parseInt(args[1]);
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_SEED;
+        int users = args.length > 3 ? Integer.parseInt(args[3]) : USERS;
+        generate(directory, users, lines, lines, lines, seed);
+        System.out.println("Dados gerados em " + directory.toAbsolutePath());
+    }
+
+    /**
+     * Gera um conjunto de dados em que só um dos registos é grande; os restantes ficam com SMALL_FILE_LINES linhas.
+     *
+     * @param directory Diretoria de destino
+     * @param largeFile Nome do registo grande (MESSAGES_FILE, MEMBERSHIP_FILE ou APPROVALS_FILE)
+     * @param lines Número de linhas do registo grande
+     * @param seed Semente do gerador
+     * @throws IOException Se ocorrer um erro ao escrever os ficheiros
+     */
+    static void generate(Path directory, String largeFile, int lines, long seed) throws IOException {
+        generate(directory, USERS,
+                MESSAGES_FILE.equals(largeFile) ? lines : SMALL_FILE_LINES,
+                MEMBERSHIP_FILE.equals(largeFile) ? lines : SMALL_FILE_LINES,
+                APPROVALS_FILE.equals(largeFile) ? lines : SMALL_FILE_LINES,
+                seed);
+    }
+
+    /**
+     * Gera todos os ficheiros de dados.
+     *
+     * @param directory Diretoria de destino
+     * @param users Número de utilizadores
+     * @param messages Número de linhas do messages.log
+     * @param memberships Número de linhas do user_channel_membership.log
+     * @param approvals Número de linhas do approvals.log
+     * @param seed Semente do gerador
+     * @throws IOException Se ocorrer um erro ao escrever os ficheiros
+     */
+    static void generate(Path directory, int users, int messages, int memberships, int approvals, long seed) throws IOException {
+        Files.createDirectories(directory);
+        // Cada ficheiro usa o seu próprio gerador, para que o conteúdo de um não dependa do tamanho dos outros
+        try (PrintWriter out = open(directory.resolve("users.txt"))) {
+            for (int i = 0; i < users; i++) {
+                out.println(user(i) + ":" + user(i) + ":" + profile(i));
+            }
+        }
+        try (PrintWriter out = open(directory.resolve("channels.txt"))) {
+            for (int i = 0; i < CHANNELS; i++) {
+                out.println(channel(i));
+            }
+        }
+        Random random = new Random(seed);
+        try (PrintWriter out = open(directory.resolve(MESSAGES_FILE))) {
+            for (int i = 0; i < messages; i++) {
+                String sender = user(random.nextInt(users));
+                if (random.nextBoolean()) {
+                    out.println("Canal: " + channel(random.nextInt(CHANNELS)) + " De: " + sender + " Mensagem: " + text(random));
+                } else {
+                    out.println("De: " + sender + " Para: " + user(random.nextInt(users)) + " Mensagem: " + text(random));
+                }
+            }
+        }
+        random = new Random(seed + 1);
+        try (PrintWriter out = open(directory.resolve(MEMBERSHIP_FILE))) {
+            for (int i = 0; i < memberships; i++) {
+                String action = random.nextInt(5) == 0 ? "saiu" : "entrou";
+                out.println(user(random.nextInt(users)) + " " + action + " " + channel(random.nextInt(CHANNELS)));
+            }
+        }
+        random = new Random(seed + 2);
+        try (PrintWriter out = open(directory.resolve(APPROVALS_FILE))) {
+            for (int i = 0; i < approvals; i++) {
+                String status = random.nextInt(10) < 3 ? "APPROVED" : "PENDING";
+                out.println(user(random.nextInt(users)) + ":" + REQUEST_TYPES[random.nextInt(REQUEST_TYPES.length)] + ":" + status);
+            }
+        }
+    }
+
+    /**
+     * Obtém o nome de um utilizador gerado.
+     *
+     * @param index Índice do utilizador
+     * @return Nome (e senha) do utilizador
+     */
+    static String user(int index) {
+        return "u" + index;
+    }
+
+    /**
+     * Obtém o perfil de um utilizador gerado.
+     *
+     * @param index Índice do utilizador
+     * @return Perfil do utilizador no users.txt
+     */
+    static String profile(int index) {
+        return PROFILES[index % PROFILES.length];
+    }
+
+    /**
+     * Obtém o ID de um canal gerado.
+     *
+     * @param index Índice do canal
+     * @return ID do canal
+     */
+    static String channel(int index) {
+        return "c" + index;
+    }
+
+    /**
+     * Gera o texto de uma mensagem, com 3 a 12 palavras.
+     *
+     * @param random Gerador a usar
+     * @return Texto da mensagem
+     */
+    static String text(Random random) {
+        StringBuilder text = new StringBuilder(WORDS[random.nextInt(WORDS.length)]);
+        int words = 2 + random.nextInt(10);
+        for (int i = 0; i < words; i++) {
+            text.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+
+    private static PrintWriter open(Path file) throws IOException {
+        return new PrintWriter(new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file), Charset.defaultCharset()), 1 << 16));
+    }
+}
@@ -0,0 +1,88 @@
+package sdtp;
+
+/**
+ * Benchmark da escolha do comando a executar para uma linha recebida: o CommandDispatcher, com os mesmos
+ * comandos da sessão mas sem trabalho, contra a cadeia original de toLowerCase, switch, startsWith e split.
+ * O dispatcher inclui o registo da latência de cada comando nas métricas do servidor.
+ */
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+    @Param({"ajuda", "mensagem:u1:incendio no setor norte", "canal:c1:aguardar ordens",
+            "mensagem emergencia:evacuar a zona sul", "comando desconhecido"})
+    public String line;
+
+    private CommandDispatcher<Blackhole> dispatcher;
+    private PrintWriter out;
+
+    @Setup
+    public void setUp() {
+        dispatcher = new CommandDispatcher<>();
+        CommandDispatcher.Command<Blackhole> consume = (blackhole, args, writer) -> {
+            for (int i = 0; i < args.count(); i++) {
+                blackhole.consume(args.get(i));
+            }
+        };
+        for (String name : new String[] {"ajuda", "sair", "aprovar", "ler mensagens"}) {
+            dispatcher.registerExact(name, consume);
+        }
+        dispatcher.registerPrefix("mensagem:", 2, "mensagem:<destinatário>:<mensagem>", consume);
+        dispatcher.registerPrefix("criar canal:", 1, "criar canal:<canal_id>", consume);
+        dispatcher.registerPrefix("entrar canal:", 1, "entrar canal:<canal_id>", consume);
+        dispatcher.registerPrefix("sair canal:", 1, "sair canal:<canal_id>", consume);
+        dispatcher.registerPrefix("canal:", 2, "canal:<canal_id>:<mensagem>", consume);
+        dispatcher.registerPrefix("solicitar:", 1, "solicitar:<tipo_operação>", consume);
+        dispatcher.registerPrefix("criar_user:", 3, "criar_user:<nome_user>:<senha>:<perfil>", consume);
+        dispatcher.registerPrefix("mensagem emergencia:", 1, "mensagem_emergencia:<mensagem>", consume);
+        out = new PrintWriter(Writer.nullWriter());
+    }
+
+    @Benchmark
+    public boolean dispatcher(Blackhole blackhole) throws IOException {
+        return dispatcher.dispatch(blackhole, line, out);
+    }
+
+    /**
+     * A escolha do comando tal como era feita antes do CommandDispatcher.
+     */
+    @Benchmark
+    public boolean legacy(Blackhole blackhole) {
+        switch (line.toLowerCase()) {
+            case "ajuda":
+            case "sair":
+                blackhole.consume(line);
+                return true;
+            default:
+                String[] parts;
+                if (line.startsWith("mensagem:")) {
+                    parts = line.split(":", 3);
+                } else if (line.startsWith("criar canal:") || line.startsWith("entrar canal:") || line.startsWith("sair canal:")) {
+                    parts = line.split(":");
+                } else if (line.startsWith("canal:")) {
+                    parts = line.split(":", 3);
+                } else if (line.startsWith("solicitar:")) {
+                    parts = line.split(":");
+                } else if (line.equalsIgnoreCase("aprovar") || line.equalsIgnoreCase("ler mensagens")) {
+                    parts = new String[0];
+                } else if (line.startsWith("criar_user:")) {
+                    parts = line.split(":");
+                } else if (line.startsWith("mensagem emergencia:")) {
+                    parts = line.split(":", 2);
+                } else {
+                    return false;
+                }
+                blackhole.consume(parts);
+                return true;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package sdtp;
+
+/**
+ * Verificação automática do alvo de latência das emergências, corrida numa versão curta em cada mvn verify,
+ * por inteiro com o perfil latencia do Maven (mvn -Platencia verify, a partir da pasta raiz) ou à mão.
+ * Mede a latência ponta a ponta (do envio do comando à leitura da linha no cliente), ao contrário do histograma
+ * do EmergencyLane, que só mede o tempo até as filas de saída do servidor.
+ * Gera um conjunto de dados, inicia um servidor noutro processo sobre uma cópia dele e corre o LoadGenerator
+ * com a mistura completa de ações, para que as emergências concorram com o tráfego normal. Por omissão, os primeiros
+ * 10 s de carga não são medidos, para que o p99 seja o do servidor em regime e não o da compilação JIT do arranque.
+ * Falha (código 1) se nenhuma emergência for entregue ou se o p99 da sua latência de entrega passar
+ * o alvo do servidor (EmergencyLane.TARGET_MILLIS, ou alvo.emergencia=ms).
+ * Uso: java -cp benchmarks.jar sdtp.EmergencyLatencyCheck [modo=nio] [operadores=N] [taxa=comandos/s] [duracao=s]
+ * [aquecimento=s] [porta=P] [mistura=...] [alvo.emergencia=ms]
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class EmergencyLatencyCheck {
+
+    /**
+     * Corre a verificação.
+     *
+     * @param options Opções no formato chave=valor (ver a descrição da classe)
+     * @return Verdadeiro se o alvo foi cumprido
+     * @throws IOException Se não for possível gerar os dados ou iniciar o servidor
+     * @throws InterruptedException Se uma espera for interrompida
+     */
+    static boolean check(Map<String, String> options) throws IOException, InterruptedException {
+        String mode = options.getOrDefault("modo", "nio");
+        int port = Integer.parseInt(options.getOrDefault("porta", "12410"));
+        Map<String, String> loadOptions = new HashMap<>(options);
+        loadOptions.put("porta", Integer.toString(port));
+        loadOptions.putIfAbsent("operadores", "200");
+        loadOptions.putIfAbsent("taxa", "1000");
+        loadOptions.putIfAbsent("duracao", "30");
+        loadOptions.putIfAbsent("aquecimento", "10");
+        int operators = Integer.parseInt(loadOptions.get("operadores"));
+
+        Path template = Files.createTempDirectory("sdtp-latencia");
+        Path directory = null;
+        Process server = null;
+        LoadGenerator generator = new LoadGenerator(loadOptions);
+        ExecutorService readers = DistributedServer.newThreadPerTaskExecutor();
+        try {
+            DataGenerator.generate(template, operators, DataGenerator.SMALL_FILE_LINES, DataGenerator.SMALL_FILE_LINES,
+                    DataGenerator.SMALL_FILE_LINES, DataGenerator.DEFAULT_SEED);
+            directory = BenchData.copy(template);
+            server = BenchData.startServer(mode, directory, port);
+            generator.connect(readers);
+            generator.run();
+        } finally {
+            generator.close();
+            readers.shutdown();
+            if (server != null) {
+                server.destroy();
+                server.waitFor();
+            }
+            BenchData.discard(directory);
+            BenchData.discard(template);
+        }
+
+        Histogram emergencies = generator.emergencyLatency();
+        if (emergencies.count() == 0) {
+            System.out.println("FALHOU: nenhuma emergência entregue (a mistura inclui emergencia?)");
+            return false;
+        }
+        double p99 = emergencies.percentile(0.99) / 1e6;
+        boolean met = p99 <= generator.emergencyTargetMillis();
+        System.out.printf("%s: p99 das emergências %.3fms (%d entregas), alvo %dms%n", met ? "OK" : "FALHOU",
+                p99, emergencies.count(), generator.emergencyTargetMillis());
+        return met;
+    }
+
+    /**
+     * Método principal que corre a verificação e termina com código 1 se o alvo não for cumprido.
+     *
+     * @param args Opções no formato chave=valor (ver a descrição da classe)
+     */
+    public static void main(String[] args) {
+        boolean met = false;
+        try {
+            met = check(LoadGenerator.parseOptions(args));
+        } catch (IOException e) {
+            System.err.println("Erro na verificação da latência das emergências: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.exit(met ? 0 : 1);
+    }
+}
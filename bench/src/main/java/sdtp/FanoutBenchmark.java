@@ -0,0 +1,52 @@
+package sdtp;
+
+/**
+ * Benchmark da difusão de uma mensagem para os membros de um canal (CommunicationChannel.broadcastMessage).
+ * Mede o custo de codificar a mensagem e de a colocar na fila de saída de cada membro; as filas descartam
+ * as mensagens, pelo que o envio pela rede não é incluído. Acima de PARALLEL_FANOUT_THRESHOLD membros
+ * a entrega é repartida pelos processadores.
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanoutBenchmark {
+    @Param({"10", "1000", "10000", "50000"})
+    public int members;
+
+    @Param({"TEXT", "BINARY"})
+    public String format;
+
+    private Path directory;
+    private CommunicationChannel channel;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchData.use(DataGenerator.MESSAGES_FILE, DataGenerator.SMALL_FILE_LINES);
+        ClientHandler.loadState();
+        channel = new CommunicationChannel("difusao");
+        for (int i = 0; i < members; i++) {
+            String memberId = "membro" + i;
+            ClientHandler.register(new ClientHandler(BenchData.discardingQueue(), memberId, WireFormat.valueOf(format)));
+            channel.addMember(memberId);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchData.discard(directory);
+    }
+
+    @Benchmark
+    public void broadcast() {
+        channel.broadcastMessage("membro0", "Incêndio confirmado no setor norte, aguardar ordens");
+    }
+}
@@ -0,0 +1,56 @@
+package sdtp;
+
+/**
+ * Benchmark da leitura do histórico de mensagens (ClientHandler.handleReadMessages e a leitura por páginas)
+ * sobre um messages.log gerado com o número de linhas indicado.
+ * A carga dos índices na inicialização do servidor também é medida, num modo de execução única.
+ * O limite de comandos por segundo de cada cliente é desativado, para medir a leitura e não o limite.
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dsdtp.client.commandRate=0")
+public class HistoryBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int lines;
+
+    private Path directory;
+    private ClientHandler client;
+    private String middlePage;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchData.use(DataGenerator.MESSAGES_FILE, lines);
+        client = BenchData.login(DataGenerator.user(0));
+        middlePage = "ler mensagens desde:" + (lines / 2) + ":50";
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchData.discard(directory);
+    }
+
+    /**
+     * Histórico completo de um utilizador: as mensagens diretas que recebeu e as dos seus canais.
+     */
+    @Benchmark
+    public void readAll() {
+        client.handleLine("ler mensagens");
+    }
+
+    /**
+     * Uma página de 50 mensagens a partir do meio do histórico.
+     */
+    @Benchmark
+    public void readPage() {
+        client.handleLine(middlePage);
+    }
+}
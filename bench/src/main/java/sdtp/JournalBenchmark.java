@@ -0,0 +1,86 @@
+package sdtp;
+
+/**
+ * Benchmark da escrita dos registos: linhas escritas por segundo pelo Journal, com e sem sincronização com o disco,
+ * comparadas com a escrita anterior ao Journal (legacy*), que abria o ficheiro com um FileWriter em modo de
+ * acréscimo, escrevia a linha e o fechava, em cada linha e na thread de quem a registava.
+ * Cada operação espera que a sua linha esteja escrita no ficheiro. As variantes com várias threads mostram o efeito
+ * do group commit, em que os pedidos que chegam durante uma escrita são juntos no lote seguinte.
+ * A política de fsync do Journal pode ser alterada com -jvmArgsAppend -Dsdtp.journal.fsync=batch.
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JournalBenchmark {
+    private static final String LINE = "Canal: c1 De: u1 Mensagem: incendio confirmado no setor norte, aguardar ordens";
+
+    private Path directory;
+    private String fileName;
+    private String legacyFileName;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchData.use(DataGenerator.MESSAGES_FILE, DataGenerator.SMALL_FILE_LINES);
+        fileName = DataFiles.path("journal_bench.log");
+        legacyFileName = DataFiles.path("legacy_bench.log");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Journal.sync().join();
+        BenchData.discard(directory);
+    }
+
+    @Benchmark
+    public void append() {
+        Journal.append(fileName, LINE).join();
+    }
+
+    @Benchmark
+    public void appendDurable() {
+        Journal.append(fileName, LINE, true).join();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void appendConcurrent() {
+        Journal.append(fileName, LINE).join();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void appendDurableConcurrent() {
+        Journal.append(fileName, LINE, true).join();
+    }
+
+    @Benchmark
+    public void legacy() throws IOException {
+        legacyAppend();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void legacyConcurrent() throws IOException {
+        legacyAppend();
+    }
+
+    /**
+     * Escrita de uma linha como antes do Journal (ClientHandler.logMessage original).
+     */
+    private void legacyAppend() throws IOException {
+        try (FileWriter fw = new FileWriter(legacyFileName, true);
+             BufferedWriter bw = new BufferedWriter(fw);
+             PrintWriter out = new PrintWriter(bw)) {
+            out.println(LINE);
+        }
+    }
+}
@@ -0,0 +1,522 @@
+package sdtp;
+
+/**
+ * Classe que gera carga sobre um servidor em localhost, simulando milhares de operadores numa só JVM.
+ * Cada operador é um DistributedClient sem consola, autenticado como um dos utilizadores u0, u1, ... gerados
+ * pelo DataGenerator (o servidor deve ser iniciado com -Dsdtp.data.dir a apontar para esses dados).
+ * As threads de envio escolhem, à taxa pedida, um operador e uma ação da mistura: mensagens diretas, mensagens
+ * de canal, entrada e saída de canais, pedidos com a respetiva aprovação e mensagens de emergência.
+ * Cada mensagem leva o instante em que devia ter sido enviada, e não o instante em que o foi, para que a latência
+ * de entrega inclua os atrasos do próprio envio quando o servidor não acompanha a taxa.
+ * Depois de cada ação, o operador envia o comando cursor na mesma conexão: como o servidor trata os comandos de uma
+ * conexão por ordem, a resposta mede a ida e volta da ação, desde o envio até o servidor a ter tratado.
+ * Os operadores inativos só se ligam e autenticam, e ficam com a conexão aberta sem enviar nada, como a maioria
+ * dos operadores de uma sala; são os utilizadores a seguir aos operadores ativos.
+ * Com aquecimento=s, a carga é gerada primeiro durante esse tempo sem ser medida, para que o arranque do servidor
+ * (compilação JIT, caches vazias) não entre nos percentis.
+ * No fim são mostrados o débito e os percentis da latência de entrega e da ida e volta dos comandos.
+ * As emergências são medidas à parte e o percentil 99 da sua latência de entrega é comparado com o alvo
+ * (por omissão o do servidor, EmergencyLane.TARGET_MILLIS): se o alvo não for cumprido, o processo termina com código 1.
+ * Uso: java -cp benchmarks.jar sdtp.LoadGenerator [operadores=N] [inativos=N] [taxa=comandos/s] [duracao=s] [aquecimento=s] [porta=P]
+ * [emissores=N] [canais=N] [binario] [mistura=mensagem:40,canal:40,entrar:8,sair:8,aprovacao:3,emergencia:1]
+ * [alvo.emergencia=ms]
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+public class LoadGenerator {
+    private static final String HOST = "localhost";
+    private static final String TIMESTAMP_MARK = "#t=";
+    private static final long LOGIN_TIMEOUT_SECONDS = 60;
+    private static final long DRAIN_MILLIS = 2000;
+    private static final long PROGRESS_SECONDS = 5;
+    private static final String PROBE = "cursor";
+    private static final String PROBE_REPLY = "Cursor atual: ";
+
+    /**
+     * Ações que um operador pode executar.
+     */
+    enum Action {
+        MENSAGEM,
+        CANAL,
+        ENTRAR,
+        SAIR,
+        APROVACAO,
+        EMERGENCIA
+    }
+
+    /**
+     * Um operador simulado: a sua conexão, os canais em que está e os instantes de envio das ações
+     * cuja ida e volta ainda não foi medida.
+     */
+    private final class Operator {
+        final DistributedClient client;
+        final Set<String> channels = ConcurrentHashMap.newKeySet();
+        final boolean administrator;
+        // Instantes de envio pela ordem dos comandos cursor, que o servidor responde pela mesma ordem
+        final Queue<Long> probes = new ConcurrentLinkedQueue<>();
+        // Garante que as ações e os comandos cursor de várias threads de envio não se intercalam na conexão
+        final ReentrantLock sendLock = new ReentrantLock();
+
+        Operator(int index) throws IOException {
+            this.administrator = "Administrador".equals(DataGenerator.profile(index));
+            this.client = new DistributedClient(HOST, port, binary, DataGenerator.user(index), this::receive);
+        }
+
+        /**
+         * Trata cada linha recebida do servidor, na thread de leitura da conexão.
+         *
+         * @param line Linha recebida
+         */
+        void receive(String line) {
+            int mark = line.indexOf(TIMESTAMP_MARK);
+            if (mark >= 0) {
+                int end = line.indexOf('#', mark + TIMESTAMP_MARK.length());
+                if (end > 0) {
+                    long latency = System.nanoTime() - Long.parseLong(line.substring(mark + TIMESTAMP_MARK.length(), end));
+                    (line.startsWith("[EMERG") ? emergencyDelivery : delivery).record(latency);
+                    delivered.increment();
+                }
+            } else if (line.startsWith(PROBE_REPLY)) {
+                Long sentAt = probes.poll();
+                if (sentAt != null) {
+                    roundTrip.record(System.nanoTime() - sentAt);
+                }
+            } else if (line.contains("bem-sucedida! Bem-vindo")) {
+                loggedIn.countDown();
+            } else if (line.contains("reconhecido") || line.startsWith("Formato inv") || line.contains("permiss")
+                    || line.startsWith("Desconectado") || line.startsWith("Limite de comandos")) {
+                // Procura só texto ASCII, porque os acentos dependem do charset por omissão das duas JVMs
+                rejected.increment();
+            }
+        }
+    }
+
+    private final int operatorCount;
+    private final int idleCount;
+    private final double rate;
+    private final long durationSeconds;
+    private final long warmupSeconds;
+    private final int port;
+    private final int senders;
+    private final int initialChannels;
+    private final boolean binary;
+    private final Action[] mix;
+    private final long emergencyTargetMillis;
+
+    private final List<Operator> operators = new ArrayList<>();
+    private final List<Operator> administrators = new ArrayList<>();
+    private final List<Operator> idle = new ArrayList<>();
+    // Substituídos no fim do aquecimento
+    private volatile Histogram delivery = new Histogram();
+    private volatile Histogram emergencyDelivery = new Histogram();
+    private volatile Histogram roundTrip = new Histogram();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final Map<Action, LongAdder> sent = new EnumMap<>(Action.class);
+    private CountDownLatch loggedIn;
+    private volatile boolean running;
+    private long elapsedNanos;
+
+    /**
+     * Construtor da classe LoadGenerator.
+     *
+     * @param options Opções no formato chave=valor (ver a descrição da classe)
+     */
+    LoadGenerator(Map<String, String> options) {
+        this.operatorCount = Integer.parseInt(options.getOrDefault("operadores", "1000"));
+        this.idleCount = Integer.parseInt(options.getOrDefault("inativos", "0"));
+        this.rate = Double.parseDouble(options.getOrDefault("taxa", "500"));
+        this.durationSeconds = Long.parseLong(options.getOrDefault("duracao", "30"));
+        this.warmupSeconds = Long.parseLong(options.getOrDefault("aquecimento", "0"));
+        this.port = Integer.parseInt(options.getOrDefault("porta", "12345"));
+        this.senders = Integer.parseInt(options.getOrDefault("emissores", "4"));
+        this.initialChannels = Integer.parseInt(options.getOrDefault("canais", "2"));
+        this.binary = options.containsKey("binario");
+        this.mix = parseMix(options.getOrDefault("mistura", "mensagem:40,canal:40,entrar:8,sair:8,aprovacao:3,emergencia:1"));
+        this.emergencyTargetMillis = Long.parseLong(options.getOrDefault("alvo.emergencia",
+                Long.toString(EmergencyLane.TARGET_MILLIS)));
+        for (Action action : Action.values()) {
+            sent.put(action, new LongAdder());
+        }
+    }
+
+    /**
+     * Converte a mistura de ações num array em que cada ação aparece tantas vezes quanto o seu peso,
+     * para que a escolha de uma ação seja um único acesso aleatório.
+     *
+     * @param text Mistura no formato acao:peso,acao:peso
+     * @return Ações repetidas de acordo com os pesos
+     */
+    private static Action[] parseMix(String text) {
+        List<Action> weighted = new ArrayList<>();
+        for (String part : text.split(",")) {
+            String[] pair = part.split(":");
+            Action action = Action.valueOf(pair[0].trim().toUpperCase());
+            int weight = pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+            for (int i = 0; i < weight; i++) {
+                weighted.add(action);
+            }
+        }
+        if (weighted.isEmpty()) {
+            throw new IllegalArgumentException("A mistura de ações está vazia");
+        }
+        return weighted.toArray(new Action[0]);
+    }
+
+    /**
+     * Liga e autentica todos os operadores, ativos e inativos, e coloca cada operador ativo nos seus canais iniciais.
+     *
+     * @param readers Executor onde correm as leituras das conexões
+     * @throws IOException Se não for possível ligar um operador
+     * @throws InterruptedException Se a espera pelas autenticações for interrompida
+     */
+    void connect(ExecutorService readers) throws IOException, InterruptedException {
+        int total = operatorCount + idleCount;
+        loggedIn = new CountDownLatch(total);
+        long start = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            Operator operator = new Operator(i);
+            operator.client.listen(readers);
+            operator.client.login(DataGenerator.user(i));
+            if (i >= operatorCount) {
+                idle.add(operator);
+                continue;
+            }
+            operators.add(operator);
+            if (operator.administrator) {
+                administrators.add(operator);
+            }
+        }
+        if (!loggedIn.await(LOGIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IOException("Só " + (total - loggedIn.getCount()) + " de " + total
+                    + " operadores se autenticaram; os utilizadores u0..u" + (total - 1) + " existem no servidor?");
+        }
+        System.out.printf("%d operadores autenticados (%d ativos, %d inativos) em %.1f s%n", total, operatorCount,
+                idleCount, (System.nanoTime() - start) / 1e9);
+
+        Random random = new Random(DataGenerator.DEFAULT_SEED);
+        for (Operator operator : operators) {
+            for (int i = 0; i < initialChannels; i++) {
+                join(operator, DataGenerator.channel(random.nextInt(DataGenerator.CHANNELS)));
+            }
+        }
+    }
+
+    /**
+     * Envia ações à taxa pedida durante o aquecimento e o tempo indicado, e mostra o resultado medido depois do aquecimento.
+     *
+     * @return Verdadeiro se a latência das emergências cumpriu o alvo
+     * @throws InterruptedException Se a espera pelas threads de envio for interrompida
+     */
+    boolean run() throws InterruptedException {
+        if (warmupSeconds > 0) {
+            System.out.println("Aquecimento durante " + warmupSeconds + " s (não medido)");
+            generate(warmupSeconds);
+            Thread.sleep(DRAIN_MILLIS);
+            resetMeasurements();
+        }
+        elapsedNanos = generate(durationSeconds);
+        // Dar tempo às últimas mensagens para chegarem aos destinatários
+        Thread.sleep(DRAIN_MILLIS);
+        return report(elapsedNanos);
+    }
+
+    /**
+     * Envia ações à taxa pedida durante o tempo indicado, mostrando o progresso.
+     *
+     * @param seconds Duração do envio, em segundos
+     * @return Duração efetiva do envio, em nanossegundos
+     * @throws InterruptedException Se a espera pelas threads de envio for interrompida
+     */
+    private long generate(long seconds) throws InterruptedException {
+        Thread[] threads = new Thread[senders];
+        running = true;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long interval = (long) (1e9 * senders / rate);
+        for (int i = 0; i < senders; i++) {
+            long first = start + interval * i / senders;
+            threads[i] = new Thread(() -> send(first, interval, end), "carga-" + i);
+            threads[i].start();
+        }
+        while (System.nanoTime() < end) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(PROGRESS_SECONDS));
+            System.out.printf("[%3.0f s] enviados %d, entregues %d, latência %s, ida e volta %s%n",
+                    (System.nanoTime() - start) / 1e9, totalSent(), delivered.sum(), delivery.formatMillis(),
+                    roundTrip.formatMillis());
+        }
+        running = false;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Descarta o que foi medido até agora. As idas e voltas ainda por responder continuam a ser medidas,
+     * com o seu instante de envio.
+     */
+    private void resetMeasurements() {
+        delivery = new Histogram();
+        emergencyDelivery = new Histogram();
+        roundTrip = new Histogram();
+        delivered.reset();
+        rejected.reset();
+        failed.reset();
+        for (LongAdder count : sent.values()) {
+            count.reset();
+        }
+    }
+
+    /**
+     * Ciclo de uma thread de envio: uma ação a cada intervalo, a partir do instante indicado.
+     *
+     * @param first Instante (System.nanoTime) da primeira ação
+     * @param interval Intervalo entre ações desta thread
+     * @param end Instante a partir do qual não são enviadas mais ações
+     */
+    private void send(long first, long interval, long end) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (long scheduled = first; running && scheduled < end; scheduled += interval) {
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            Action action = mix[random.nextInt(mix.length)];
+            Operator operator = operators.get(random.nextInt(operators.size()));
+            operator.sendLock.lock();
+            try {
+                long sentAt = System.nanoTime();
+                execute(action, operator, scheduled, random);
+                operator.probes.add(sentAt);
+                operator.client.send(PROBE);
+                sent.get(action).increment();
+            } catch (IOException e) {
+                failed.increment();
+            } finally {
+                operator.sendLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Executa uma ação em nome de um operador.
+     *
+     * @param action Ação a executar
+     * @param operator Operador que executa a ação
+     * @param scheduled Instante em que a ação devia ser enviada, incluído nas mensagens entregues a outros
+     * @param random Gerador da thread de envio
+     * @throws IOException Se ocorrer um erro ao escrever na conexão
+     */
+    private void execute(Action action, Operator operator, long scheduled, ThreadLocalRandom random) throws IOException {
+        String text = DataGenerator.text(random) + " " + TIMESTAMP_MARK + scheduled + "#";
+        switch (action) {
+            case MENSAGEM:
+                operator.client.send("mensagem:" + DataGenerator.user(random.nextInt(operatorCount)) + ":" + text);
+                break;
+            case CANAL:
+                String channel = anyChannel(operator, random);
+                if (channel == null) {
+                    join(operator, DataGenerator.channel(random.nextInt(DataGenerator.CHANNELS)));
+                } else {
+                    operator.client.send("canal:" + channel + ":" + text);
+                }
+                break;
+            case ENTRAR:
+                join(operator, DataGenerator.channel(random.nextInt(DataGenerator.CHANNELS)));
+                break;
+            case SAIR:
+                String joined = anyChannel(operator, random);
+                if (joined != null && operator.channels.size() > 1 && operator.channels.remove(joined)) {
+                    operator.client.send("sair canal:" + joined);
+                }
+                break;
+            case APROVACAO:
+                operator.client.send("solicitar:DRE");
+                Operator approver = operators.get(random.nextInt(operators.size()));
+                // Sem esperar pelo lock do aprovador, para não bloquear com uma thread que tenha os dois pela ordem inversa;
+                // se estiver ocupado, o pedido fica pendente
+                if (approver.sendLock.tryLock()) {
+                    try {
+                        if (binary) {
+                            approver.client.send("aprovar:" + operator.client.getClientId() + ":DRE");
+                        } else {
+                            approver.client.send("aprovar");
+                            approver.client.send("1");
+                        }
+                    } finally {
+                        approver.sendLock.unlock();
+                    }
+                }
+                break;
+            case EMERGENCIA:
+                if (!administrators.isEmpty()) {
+                    administrators.get(random.nextInt(administrators.size())).client.send("mensagem emergencia:" + text);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void join(Operator operator, String channel) throws IOException {
+        if (operator.channels.add(channel)) {
+            operator.client.send("entrar canal:" + channel);
+        }
+    }
+
+    private static String anyChannel(Operator operator, ThreadLocalRandom random) {
+        Object[] channels = operator.channels.toArray();
+        return channels.length == 0 ? null : (String) channels[random.nextInt(channels.length)];
+    }
+
+    private long totalSent() {
+        long total = 0;
+        for (LongAdder count : sent.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Mostra o débito e a latência de entrega, e verifica o alvo de latência das emergências.
+     *
+     * @param elapsed Duração do envio, em nanossegundos
+     * @return Verdadeiro se o alvo foi cumprido (ou se não houve emergências a medir)
+     */
+    private boolean report(long elapsed) {
+        double seconds = elapsed / 1e9;
+        System.out.println("=== Resultado (" + operatorCount + " operadores ativos, " + idleCount + " inativos, "
+                + (binary ? "binário" : "texto") + ") ===");
+        System.out.printf("Comandos enviados: %d (%.1f/s, alvo %.1f/s), falhados %d, recusados pelo servidor %d%n",
+                totalSent(), totalSent() / seconds, rate, failed.sum(), rejected.sum());
+        for (Map.Entry<Action, LongAdder> entry : sent.entrySet()) {
+            System.out.printf("  %-10s %d%n", entry.getKey().name().toLowerCase(), entry.getValue().sum());
+        }
+        System.out.printf("Mensagens entregues: %d (%.1f/s)%n", delivered.sum(), delivered.sum() / seconds);
+        System.out.printf("Latência de entrega: p50=%.3fms p90=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms%n",
+                delivery.percentile(0.5) / 1e6, delivery.percentile(0.9) / 1e6, delivery.percentile(0.99) / 1e6,
+                delivery.percentile(0.999) / 1e6, delivery.max() / 1e6);
+        System.out.printf("Ida e volta dos comandos: %d medidas, p50=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms%n",
+                roundTrip.count(), roundTrip.percentile(0.5) / 1e6, roundTrip.percentile(0.99) / 1e6,
+                roundTrip.percentile(0.999) / 1e6, roundTrip.max() / 1e6);
+        if (emergencyDelivery.count() == 0) {
+            System.out.println("Emergências: nenhuma entrega medida (a mistura inclui emergencia e há administradores?)");
+            return true;
+        }
+        double p99 = emergencyDelivery.percentile(0.99) / 1e6;
+        boolean met = p99 <= emergencyTargetMillis;
+        System.out.printf("Emergências: %d entregas, p50=%.3fms p99=%.3fms max=%.3fms, alvo p99 %dms: %s%n",
+                emergencyDelivery.count(), emergencyDelivery.percentile(0.5) / 1e6, p99, emergencyDelivery.max() / 1e6,
+                emergencyTargetMillis, met ? "cumprido" : "NÃO CUMPRIDO");
+        return met;
+    }
+
+    /**
+     * Obtém o número de comandos enviados por segundo na última execução.
+     *
+     * @return Comandos por segundo
+     */
+    double sentRate() {
+        return totalSent() / (elapsedNanos / 1e9);
+    }
+
+    /**
+     * Obtém o número de mensagens entregues por segundo na última execução.
+     *
+     * @return Mensagens entregues por segundo
+     */
+    double deliveredRate() {
+        return delivered.sum() / (elapsedNanos / 1e9);
+    }
+
+    /**
+     * Obtém a distribuição da latência de entrega das mensagens.
+     *
+     * @return Histograma da latência, em nanossegundos
+     */
+    Histogram deliveryLatency() {
+        return delivery;
+    }
+
+    /**
+     * Obtém a distribuição da latência de entrega das mensagens de emergência.
+     *
+     * @return Histograma da latência, em nanossegundos
+     */
+    Histogram emergencyLatency() {
+        return emergencyDelivery;
+    }
+
+    /**
+     * Obtém o alvo do percentil 99 da latência de entrega das emergências.
+     *
+     * @return Alvo, em milissegundos
+     */
+    long emergencyTargetMillis() {
+        return emergencyTargetMillis;
+    }
+
+    /**
+     * Obtém a distribuição da ida e volta dos comandos, desde o envio da ação até à resposta ao cursor enviado a seguir.
+     *
+     * @return Histograma da ida e volta, em nanossegundos
+     */
+    Histogram commandRoundTrip() {
+        return roundTrip;
+    }
+
+    /**
+     * Converte argumentos no formato chave=valor (ou só chave) num mapa de opções.
+     *
+     * @param args Argumentos da linha de comandos
+     * @return Opções
+     */
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            options.put(equals < 0 ? arg : arg.substring(0, equals), equals < 0 ? "" : arg.substring(equals + 1));
+        }
+        return options;
+    }
+
+    void close() {
+        for (Operator operator : operators) {
+            operator.client.close();
+        }
+        for (Operator operator : idle) {
+            operator.client.close();
+        }
+    }
+
+    /**
+     * Método principal que liga os operadores, gera a carga e mostra o resultado.
+     *
+     * @param args Opções no formato chave=valor (ver a descrição da classe)
+     */
+    public static void main(String[] args) {
+        LoadGenerator generator = new LoadGenerator(parseOptions(args));
+        ExecutorService readers = DistributedServer.newThreadPerTaskExecutor();
+        boolean met = false;
+        try {
+            generator.connect(readers);
+            met = generator.run();
+        } catch (IOException e) {
+            System.err.println("Erro no gerador de carga: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            generator.close();
+            readers.shutdown();
+        }
+        if (!met) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package sdtp;
+
+/**
+ * Benchmark dos canais de cada utilizador (getUserChannels): a reconstrução do índice a partir de um
+ * user_channel_membership.log com o número de linhas indicado, e a consulta do índice já carregado.
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MembershipBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int lines;
+
+    private Path directory;
+    private String[] users;
+    private String[] channels;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchData.use(DataGenerator.MEMBERSHIP_FILE, lines);
+        users = new String[DataGenerator.USERS];
+        channels = new String[DataGenerator.USERS];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = DataGenerator.user(i);
+            channels[i] = DataGenerator.channel(i % DataGenerator.CHANNELS);
+        }
+        ServerChannels.loadChannelsFromFile();
+        ServerChannels.loadMembershipFromFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchData.discard(directory);
+    }
+
+    /**
+     * Releitura completa do registo. Aplicar o registo outra vez ao índice já carregado produz o mesmo estado,
+     * pelo que cada invocação faz o mesmo trabalho que a carga no arranque do servidor.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void replay() {
+        ServerChannels.loadMembershipFromFile();
+    }
+
+    /**
+     * Consulta dos canais de um utilizador, como é feita em cada leitura do histórico.
+     */
+    @Benchmark
+    public Set<String> userChannels() {
+        next = (next + 1) % users.length;
+        return ServerChannels.getUserChannels(users[next]);
+    }
+
+    /**
+     * Verificação de que um utilizador pertence a um canal, como é feita em cada mensagem para um canal.
+     */
+    @Benchmark
+    public boolean isMember() {
+        next = (next + 1) % users.length;
+        return ServerChannels.isMember(users[next], channels[next]);
+    }
+}
@@ -0,0 +1,122 @@
+package sdtp;
+
+/**
+ * Medição da memória ocupada pelas associações entre utilizadores e canais, com o número de associações indicado
+ * (1 milhão por omissão). Compara o índice do servidor (números de IdTable em conjuntos IntSet, nos canais e
+ * em ServerChannels) com a organização anterior, em que os canais de cada utilizador e os membros de cada canal
+ * eram conjuntos de String (ConcurrentHashMap.newKeySet), construídos a partir das mesmas linhas do registo.
+ * A memória é medida como a diferença do heap usado antes e depois de construir cada índice, depois de um GC,
+ * pelo que o resultado é aproximado; o heap deve ser grande o suficiente para os dois índices (ex.: -Xmx2g).
+ * Uso: java -Xmx2g -cp benchmarks.jar sdtp.MembershipFootprint [associacoes=N] [utilizadores=N] [canais=N]
+ */
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class MembershipFootprint {
+    private static final int GC_ROUNDS = 5;
+
+    /**
+     * Método principal: constrói os dois índices e mostra a memória ocupada por cada um.
+     *
+     * @param args Opções no formato nome=valor
+     */
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            options.put(equals < 0 ? arg : arg.substring(0, equals), equals < 0 ? "" : arg.substring(equals + 1));
+        }
+        int memberships = Integer.parseInt(options.getOrDefault("associacoes", "1000000"));
+        int users = Integer.parseInt(options.getOrDefault("utilizadores", "100000"));
+        int channels = Integer.parseInt(options.getOrDefault("canais", "1000"));
+        if ((long) users * channels < memberships) {
+            System.err.println("utilizadores x canais tem de ser pelo menos o número de associações");
+            System.exit(1);
+        }
+
+        long before = usedMemory();
+        long start = System.nanoTime();
+        List<Map<String, Set<String>>> legacy = buildLegacy(memberships, users, channels);
+        long legacyNanos = System.nanoTime() - start;
+        long legacyBytes = usedMemory() - before;
+        Reference.reachabilityFence(legacy);
+        report("Conjuntos de String", legacyBytes, legacyNanos, memberships);
+        legacy = null;
+
+        before = usedMemory();
+        start = System.nanoTime();
+        for (int c = 0; c < channels; c++) {
+            ServerChannels.applyChannelLine(DataGenerator.channel(c));
+        }
+        for (int i = 0; i < memberships; i++) {
+            ServerChannels.applyMembershipLine(line(i, users, channels));
+        }
+        long internedNanos = System.nanoTime() - start;
+        long internedBytes = usedMemory() - before;
+        report("IdTable + IntSet", internedBytes, internedNanos, memberships);
+        // Confirma que as associações continuam acessíveis, e que o índice não foi recolhido antes da medição
+        if (!ServerChannels.isMember(DataGenerator.user(0), DataGenerator.channel(0))) {
+            System.err.println("Índice incompleto");
+        }
+    }
+
+    /**
+     * Constrói o índice com a organização anterior: canais de cada utilizador e membros de cada canal em conjuntos de String.
+     *
+     * @param memberships Número de associações
+     * @param users Número de utilizadores
+     * @param channels Número de canais
+     * @return Canais de cada utilizador e membros de cada canal
+     */
+    private static List<Map<String, Set<String>>> buildLegacy(int memberships, int users, int channels) {
+        Map<String, Set<String>> userChannels = new ConcurrentHashMap<>();
+        Map<String, Set<String>> members = new ConcurrentHashMap<>();
+        for (int i = 0; i < memberships; i++) {
+            String[] parts = line(i, users, channels).split(" ");
+            userChannels.computeIfAbsent(parts[0], k -> ConcurrentHashMap.newKeySet()).add(parts[2]);
+            members.computeIfAbsent(parts[2], k -> ConcurrentHashMap.newKeySet()).add(parts[0]);
+        }
+        return List.of(userChannels, members);
+    }
+
+    /**
+     * Produz a linha do registo de uma associação. Cada utilizador entra em canais consecutivos, sem repetições.
+     *
+     * @param index Número da associação
+     * @param users Número de utilizadores
+     * @param channels Número de canais
+     * @return Linha no formato "utilizador entrou canal"
+     */
+    private static String line(int index, int users, int channels) {
+        int user = index % users;
+        int channel = (index / users + user) % channels;
+        return DataGenerator.user(user) + " entrou " + DataGenerator.channel(channel);
+    }
+
+    /**
+     * Obtém o heap usado depois de alguns GC.
+     *
+     * @return Bytes usados
+     */
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < GC_ROUNDS; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Mostra a memória ocupada por um índice.
+     *
+     * @param name Nome do índice
+     * @param bytes Bytes ocupados
+     * @param nanos Tempo de construção
+     * @param memberships Número de associações
+     */
+    private static void report(String name, long bytes, long nanos, int memberships) {
+        System.out.printf("%-20s %8.1f MB  %6.1f bytes/associacao  construido em %d ms%n", name,
+                bytes / (1024.0 * 1024.0), (double) bytes / memberships, TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+}
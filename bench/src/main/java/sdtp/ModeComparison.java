@@ -0,0 +1,302 @@
+package sdtp;
+
+/**
+ * Comparação dos modos do servidor (nio, virtual e o pool de threads por omissão) em localhost.
+ * Para cada modo, inicia um servidor noutro processo, com uma cópia dos mesmos dados gerados, e mede:
+ * - quantas conexões atendidas aguenta: abre conexões em lotes, cada uma autentica-se e envia o comando cursor,
+ *   e pára no primeiro lote em que nem todas recebem a resposta dentro do tempo limite (conexões recusadas,
+ *   fechadas, ou autenticadas mas à espera de uma thread livre), ou no máximo pedido;
+ * - quantas mensagens por segundo aguenta: corre o LoadGenerator a taxas crescentes (por omissão só com mensagens
+ *   diretas, cada uma entregue a um destinatário), com os operadores ativos e inativos pedidos, e considera aguentada
+ *   uma taxa se os comandos foram enviados a pelo menos 95% dessa taxa, pelo menos 95% foram entregues e o p99
+ *   da latência de entrega e da ida e volta dos comandos não passaram o limite.
+ * As conexões da primeira medição são fechadas antes da segunda. No fim é mostrada uma tabela com os modos lado a lado.
+ * O limite de descritores de ficheiros (ulimit -n) tem de chegar para as conexões pedidas, nos dois processos.
+ * O modo virtual precisa de uma JVM com threads virtuais (Java 21 ou superior); noutras JVMs é mostrado como indisponível.
+ * Uso: java -cp benchmarks.jar sdtp.ModeComparison [modos=nio,virtual,pool] [ligacoes=N] [lote=N]
+ * [taxas=1000,2000,5000,10000] [duracao=s] [operadores=N] [inativos=N] [latencia.max=ms] [porta=P] [mistura=...]
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ModeComparison {
+    private static final String HOST = "localhost";
+    private static final long BATCH_TIMEOUT_SECONDS = 30;
+    private static final double SUSTAINED_RATE_FRACTION = 0.95;
+    // Texto ASCII da resposta ao comando cursor, enviado a seguir à senha
+    private static final byte[] SERVED = "Cursor atual: ".getBytes(StandardCharsets.US_ASCII);
+
+    private final List<String> modes;
+    private final int maxConnections;
+    private final int batchSize;
+    private final List<Integer> rates;
+    private final Map<String, String> loadOptions;
+    private final long latencyLimitMillis;
+    private final int port;
+    private final int operators;
+    private final int idle;
+
+    /**
+     * Resultado de um modo.
+     */
+    private static final class Result {
+        final String mode;
+        int connections;
+        String connectionLimit = "";
+        final Map<Integer, String> rates = new LinkedHashMap<>();
+        int sustainedRate;
+        boolean saturated;
+
+        Result(String mode) {
+            this.mode = mode;
+        }
+    }
+
+    /**
+     * Construtor da classe ModeComparison.
+     *
+     * @param options Opções no formato chave=valor (ver a descrição da classe)
+     */
+    ModeComparison(Map<String, String> options) {
+        this.modes = Arrays.asList(options.getOrDefault("modos", "nio,virtual,pool").split(","));
+        this.maxConnections = Integer.parseInt(options.getOrDefault("ligacoes", "5000"));
+        this.batchSize = Integer.parseInt(options.getOrDefault("lote", "250"));
+        this.rates = new ArrayList<>();
+        for (String rate : options.getOrDefault("taxas", "1000,2000,5000,10000").split(",")) {
+            rates.add(Integer.parseInt(rate.trim()));
+        }
+        this.latencyLimitMillis = Long.parseLong(options.getOrDefault("latencia.max", "1000"));
+        this.port = Integer.parseInt(options.getOrDefault("porta", "12400"));
+        this.operators = Integer.parseInt(options.getOrDefault("operadores", "500"));
+        this.idle = Integer.parseInt(options.getOrDefault("inativos", "0"));
+        this.loadOptions = new HashMap<>(options);
+        loadOptions.put("porta", Integer.toString(port));
+        loadOptions.put("operadores", Integer.toString(operators));
+        loadOptions.put("inativos", Integer.toString(idle));
+        loadOptions.putIfAbsent("duracao", "10");
+        loadOptions.putIfAbsent("mistura", "mensagem:1");
+    }
+
+    /**
+     * Mede todos os modos e mostra a tabela de resultados.
+     *
+     * @throws IOException Se não for possível gerar os dados ou iniciar um servidor
+     * @throws InterruptedException Se uma espera for interrompida
+     */
+    void run() throws IOException, InterruptedException {
+        Path template = Files.createTempDirectory("sdtp-modos");
+        List<Result> results = new ArrayList<>();
+        try {
+            DataGenerator.generate(template, Math.max(maxConnections, operators + idle), DataGenerator.SMALL_FILE_LINES,
+                    DataGenerator.SMALL_FILE_LINES, DataGenerator.SMALL_FILE_LINES, DataGenerator.DEFAULT_SEED);
+            for (String mode : modes) {
+                results.add(measure(mode.trim(), template));
+            }
+        } finally {
+            BenchData.discard(template);
+        }
+
+        System.out.println();
+        System.out.println("=== Comparação dos modos ===");
+        System.out.printf("%-8s %-26s %s%n", "modo", "conexões atendidas",
+                "mensagens/s (taxa pedida: enviados/s, entregues/s, p99 entrega, p99 ida e volta)");
+        for (Result result : results) {
+            System.out.printf("%-8s %-26s %s%n", result.mode, result.connections + result.connectionLimit,
+                    "aguenta " + result.sustainedRate + "/s");
+            for (Map.Entry<Integer, String> rate : result.rates.entrySet()) {
+                System.out.printf("%-8s %-26s   %6d/s: %s%n", "", "", rate.getKey(), rate.getValue());
+            }
+        }
+    }
+
+    /**
+     * Mede um modo, com um servidor novo sobre uma cópia dos dados.
+     *
+     * @param mode Modo do servidor (nio, virtual ou pool)
+     * @param template Diretoria com os dados gerados
+     * @return Resultado do modo
+     * @throws IOException Se não for possível iniciar o servidor
+     * @throws InterruptedException Se uma espera for interrompida
+     */
+    private Result measure(String mode, Path template) throws IOException, InterruptedException {
+        Result result = new Result(mode);
+        if ("virtual".equals(mode) && !DistributedServer.virtualThreadsAvailable()) {
+            // O servidor recusa-se a arrancar neste modo sem threads virtuais
+            System.out.println("=== " + mode + ": indisponível nesta JVM (Java " + Runtime.version().feature() + ") ===");
+            result.connectionLimit = " (indisponível: precisa de Java 21)";
+            return result;
+        }
+        for (int rate : rates) {
+            Path directory = BenchData.copy(template);
+            Process server = BenchData.startServer(mode, directory, port);
+            try {
+                if (result.rates.isEmpty()) {
+                    System.out.println("=== " + mode + ": conexões ===");
+                    measureConnections(result);
+                }
+                System.out.println("=== " + mode + ": " + rate + " comandos/s ===");
+                measureRate(result, rate);
+            } finally {
+                server.destroy();
+                server.waitFor();
+                BenchData.discard(directory);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Abre conexões em lotes até ao máximo pedido ou até um lote não ser todo atendido.
+     *
+     * @param result Resultado onde registar o número de conexões
+     * @throws IOException Se não for possível abrir o Selector
+     */
+    private void measureConnections(Result result) throws IOException {
+        List<SocketChannel> channels = new ArrayList<>();
+        try (Selector selector = Selector.open()) {
+            int authenticated = 0;
+            while (authenticated < maxConnections) {
+                int batch = Math.min(batchSize, maxConnections - authenticated);
+                Map<SocketChannel, Integer> matched = new HashMap<>();
+                try {
+                    for (int i = 0; i < batch; i++) {
+                        String user = DataGenerator.user(authenticated + i);
+                        SocketChannel channel = SocketChannel.open(new InetSocketAddress(HOST, port));
+                        channels.add(channel);
+                        channel.write(ByteBuffer.wrap((user + "\n" + user + "\ncursor\n").getBytes(StandardCharsets.US_ASCII)));
+                        channel.configureBlocking(false);
+                        channel.register(selector, SelectionKey.OP_READ);
+                        matched.put(channel, 0);
+                    }
+                } catch (IOException e) {
+                    result.connectionLimit = " (erro ao ligar: " + e.getMessage() + ")";
+                    break;
+                }
+                int ok = awaitLogins(selector, matched);
+                if (ok < batch) {
+                    authenticated += ok;
+                    result.connectionLimit = " (lote incompleto: " + ok + " de " + batch + " atendidas)";
+                    break;
+                }
+                authenticated += batch;
+                System.out.println(authenticated + " conexões atendidas");
+            }
+            result.connections = authenticated;
+        } finally {
+            for (SocketChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Lê as respostas das conexões de um lote até todas terem recebido a resposta ao comando cursor,
+     * ou até ao tempo limite. As respostas das conexões anteriores são lidas e descartadas.
+     *
+     * @param selector Selector com todas as conexões abertas
+     * @param matched Conexões do lote e número de bytes de SERVED já encontrados em cada uma
+     * @return Número de conexões do lote atendidas
+     * @throws IOException Se ocorrer um erro no Selector
+     */
+    private static int awaitLogins(Selector selector, Map<SocketChannel, Integer> matched) throws IOException {
+        int pending = matched.size();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(BATCH_TIMEOUT_SECONDS);
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (pending > 0 && System.nanoTime() < deadline) {
+            selector.select(100);
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                SocketChannel channel = (SocketChannel) key.channel();
+                buffer.clear();
+                int read;
+                try {
+                    read = channel.read(buffer);
+                } catch (IOException e) {
+                    read = -1;
+                }
+                if (read < 0) {
+                    key.cancel();
+                    continue;
+                }
+                Integer progress = matched.get(channel);
+                if (progress == null || progress == SERVED.length) {
+                    continue;
+                }
+                // Procura SERVED nos bytes recebidos, mesmo que venha dividido entre leituras
+                for (int i = 0; i < read && progress < SERVED.length; i++) {
+                    byte b = buffer.get(i);
+                    progress = b == SERVED[progress] ? progress + 1 : (b == SERVED[0] ? 1 : 0);
+                }
+                matched.put(channel, progress);
+                if (progress == SERVED.length) {
+                    pending--;
+                }
+            }
+        }
+        return matched.size() - pending;
+    }
+
+    /**
+     * Corre o LoadGenerator a uma taxa e regista o débito e a latência.
+     *
+     * @param result Resultado onde registar a taxa
+     * @param rate Comandos por segundo pedidos
+     * @throws InterruptedException Se a execução for interrompida
+     */
+    private void measureRate(Result result, int rate) throws InterruptedException {
+        Map<String, String> options = new HashMap<>(loadOptions);
+        options.put("taxa", Integer.toString(rate));
+        LoadGenerator generator = new LoadGenerator(options);
+        ExecutorService readers = DistributedServer.newThreadPerTaskExecutor();
+        try {
+            generator.connect(readers);
+            generator.run();
+            double p99 = generator.deliveryLatency().percentile(0.99) / 1e6;
+            double roundTripP99 = generator.commandRoundTrip().percentile(0.99) / 1e6;
+            boolean sustained = generator.sentRate() >= rate * SUSTAINED_RATE_FRACTION
+                    && generator.deliveredRate() >= generator.sentRate() * SUSTAINED_RATE_FRACTION
+                    && p99 <= latencyLimitMillis && roundTripP99 <= latencyLimitMillis;
+            result.rates.put(rate, String.format("%.0f enviados/s, %.0f entregues/s, p99 %.1fms, ida e volta p99 %.1fms%s",
+                    generator.sentRate(), generator.deliveredRate(), p99, roundTripP99, sustained ? "" : " (não aguenta)"));
+            // Uma taxa só conta se todas as anteriores também foram aguentadas
+            if (!sustained) {
+                result.saturated = true;
+            } else if (!result.saturated) {
+                result.sustainedRate = rate;
+            }
+        } catch (IOException e) {
+            result.rates.put(rate, "erro: " + e.getMessage());
+            result.saturated = true;
+        } finally {
+            generator.close();
+            readers.shutdown();
+        }
+    }
+
+    /**
+     * Método principal que mede os modos pedidos e mostra a comparação.
+     *
+     * @param args Opções no formato chave=valor (ver a descrição da classe)
+     */
+    public static void main(String[] args) {
+        try {
+            new ModeComparison(LoadGenerator.parseOptions(args)).run();
+        } catch (IOException e) {
+            System.err.println("Erro na comparação: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package sdtp;
+
+/**
+ * Benchmark da aprovação de pedidos (PendingRequests.removeRequest) com um approvals.log gerado
+ * com o número de linhas indicado. Antes de cada invocação é registado um pedido pendente, fora da medição.
+ * A anulação é escrita de forma durável, pelo que o resultado inclui a sincronização com o disco,
+ * e a cada COMPACTION_THRESHOLD aprovações o ficheiro é compactado em segundo plano.
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PendingRequestsBenchmark {
+    private static final String[] TYPES = {"DRE", "ACE", "OEM"};
+
+    @Param({"10000", "100000", "1000000"})
+    public int lines;
+
+    private Path directory;
+    private String[] users;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchData.use(DataGenerator.APPROVALS_FILE, lines);
+        PendingRequests.load();
+        users = new String[DataGenerator.USERS];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = DataGenerator.user(i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchData.discard(directory);
+    }
+
+    @Setup(Level.Invocation)
+    public void addRequest() {
+        next = (next + 1) % (users.length * TYPES.length);
+        PendingRequests.addRequest(users[next % users.length], TYPES[next / users.length]).join();
+    }
+
+    @Benchmark
+    public boolean removeRequest() {
+        return PendingRequests.removeRequest(users[next % users.length], TYPES[next / users.length]).join();
+    }
+}
@@ -0,0 +1,62 @@
+package sdtp;
+
+/**
+ * Benchmark do arranque do servidor: o carregamento do estado (utilizadores, canais, associações, pedidos
+ * e índices do histórico) a partir de um messages.log gerado com o número de linhas indicado,
+ * sem snapshot (todos os registos são relidos) e com um snapshot escrito antes da medição
+ * (só o fim dos registos é relido). O carregamento (ClientHandler.loadState) só é feito uma vez por JVM,
+ * pelo que cada medição corre num fork novo, uma única vez.
+ * O snapshot é escrito por outro processo (sdtp.Snapshot), para que as classes deste fork continuem por inicializar.
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(5)
+public class StartupBenchmark {
+    @Param({"100000", "1000000"})
+    public int lines;
+
+    @Param({"false", "true"})
+    public boolean snapshot;
+
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        directory = BenchData.use(DataGenerator.MESSAGES_FILE, lines);
+        if (snapshot) {
+            Process process = new ProcessBuilder(
+                    Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"),
+                    "-D" + DataFiles.DIRECTORY_PROPERTY + "=" + directory,
+                    "sdtp.Snapshot")
+                    .inheritIO()
+                    .start();
+            if (process.waitFor() != 0) {
+                throw new IllegalStateException("Não foi possível escrever o snapshot");
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchData.discard(directory);
+    }
+
+    /**
+     * Carregamento do estado, como no arranque do servidor.
+     */
+    @Benchmark
+    public int load() {
+        ClientHandler.loadState();
+        return MessageStore.size();
+    }
+}